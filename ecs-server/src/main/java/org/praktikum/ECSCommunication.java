@@ -1,10 +1,15 @@
 package org.praktikum;
 
+import org.praktikum.resources.RingList;
+
 import java.io.IOException;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
-import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class ECSCommunication implements Runnable {
     private boolean isOpen;
@@ -14,6 +19,14 @@ public class ECSCommunication implements Runnable {
     private String port;
     private final Socket clientSocket;
     private ECSCommunication prevConnection;
+    private final List<ECSCommunication> donorConnections = new ArrayList<>();
+    private int pendingTransfers;
+    // the partitions this server still has to take over, moved one after another
+    private final List<RingList.Node> pendingPartitions = new ArrayList<>();
+    // the nodes of the metadata this server was sent last, null if it has to receive the complete metadata
+    private final Object metadataLock = new Object();
+    private Set<String> distributedEntries;
+    private long distributedEpoch = -1;
 
     /**
      * Constructor for the ECSCommunication class.
@@ -51,23 +64,80 @@ public class ECSCommunication implements Runnable {
 
     /**
      * Adds a new Key-Value server to the ECS and recalculates metadata.
-     * Sends the updated metadata to the new server and triggers data transfer from the predecessor server if needed.
+     * Sends the updated metadata to the new server and triggers the data transfer from every server
+     * that owned one of its ranges. These servers transfer their ranges in parallel.
      *
      * @param hashString Custom end range hash string provided during server startup.
      */
     public synchronized void addNewKVServer(String hashString) {
+        if (ecsServer.isPartitioned()) {
+            addPartitionedKVServer();
+            return;
+        }
         //recalculates the Metadata since a new StorageService connected
-        AbstractMap.SimpleEntry<ECSCommunication, String> entry = ecsServer.addEscCommunication(ip, port, hashString);
-        prevConnection = entry.getKey();
+        Map<ECSCommunication, List<String[]>> transfers = ecsServer.addEscCommunication(ip, port, hashString);
         //Initialize the new storage server with the updated meta
         sendMetaData();
-        //write locks the successor
-        prevConnection.setWriteLock();
-        //sends request to the Successor to transfer the Data
-        prevConnection.getDataFromKeyRange(this.ip, this.port, entry.getValue());
+        if (transfers.isEmpty()) {
+            // the first server doesn't receive data from anyone
+            ecsServer.sendMetaDataToAll();
+            return;
+        }
+        donorConnections.clear();
+        pendingTransfers = 0;
+        for (Map.Entry<ECSCommunication, List<String[]>> transfer : transfers.entrySet()) {
+            ECSCommunication donor = transfer.getKey();
+            donorConnections.add(donor);
+            //write locks the server that hands over data
+            donor.setWriteLock();
+            for (String[] range : transfer.getValue()) {
+                pendingTransfers++;
+                donor.getDataFromKeyRange(this.ip, this.port, range[0], range[1]);
+            }
+        }
     }
 
 
+    /**
+     * Adds a new Key-Value server if the servers own a fixed number of partitions. The server takes over its share of
+     * partitions one at a time: a single partition is reassigned and transferred, and all servers receive the new
+     * metadata before the next partition follows. The donor only write-locks the partition that is
+     * moved, so at most one partition of one server rejects writes at a time.
+     */
+    private void addPartitionedKVServer() {
+        donorConnections.clear();
+        pendingPartitions.clear();
+        pendingPartitions.addAll(ecsServer.planPartitionMoves(ip, port));
+        sendMetaData();
+        if (!movePartition()) {
+            ecsServer.sendMetaDataToAll();
+        }
+    }
+
+    /**
+     * Moves the next pending partition to this server.
+     *
+     * @return true if a partition transfer was started, false if there is no partition left to move.
+     */
+    private boolean movePartition() {
+        while (!pendingPartitions.isEmpty()) {
+            RingList.Node node = pendingPartitions.remove(0);
+            ECSCommunication donor = ecsServer.reassignPartition(node, ip, port);
+            if (donor == null) {
+                continue;
+            }
+            donorConnections.add(donor);
+            // the donor keeps accepting writes for all of its other partitions
+            donor.setWriteLock(node.getStartRange(), node.getEndRange());
+            pendingTransfers = 1;
+            // the server has to know it owns the partition before the data arrives
+            sendMetaData();
+            donor.getDataFromKeyRange(ip, port, node.getStartRange(), node.getEndRange());
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Parses and executes the provided request from the server.
      * Based on the command, different actions are taken, such as adding a new KV server or updating metadata.
@@ -92,7 +162,7 @@ public class ECSCommunication implements Runnable {
                 //finds the right successor for every request, as the connection isn't notified about updates and the successor might be outdated.
                 //successor = ecsServer.findSuccessorConnection(ip, port);
                 try {
-                    PingCommunication pingCommunication = new PingCommunication(new Socket(ip, Integer.parseInt(port)), ip, port);
+                    PingCommunication pingCommunication = new PingCommunication(ecsServer, new Socket(ip, Integer.parseInt(port)), ip, port);
                     new Thread(pingCommunication).start();
 
                 } catch (IOException e) {
@@ -100,6 +170,7 @@ public class ECSCommunication implements Runnable {
                 }
                 messageHandler.send("connection_ecs_established");
                 sent(ip, port, "connection_ecs_established");
+                send("hash_function " + ecsServer.getHashFunctionName());
                 addNewKVServer(customHashString);
             }
             //KVServer tries to close
@@ -110,23 +181,51 @@ public class ECSCommunication implements Runnable {
                 setWriteLock();
                 prevConnection.sendMetaData();
             }
-            //Signals the ECS that all the data from the keyRange is sent
+            //Signals the ECS that the data of one of the requested key ranges was received
             case "data_key_range_sent" -> {
-                //finds the left predecessor for every request, as the connection isn't notified about updates and the successor might be outdated.
-                ECSCommunication nextConnection = ecsServer.findNextPartnerConnection(ip, port);
+                pendingTransfers--;
+                if (pendingTransfers > 0) {
+                    break;
+                }
                 ecsServer.sendMetaDataToAll();
-                nextConnection.releaseWriteLock();
-
+                for (ECSCommunication donor : donorConnections) {
+                    donor.releaseWriteLock();
+                }
+                donorConnections.clear();
+                movePartition();
             }
             case "data_from_key_range" -> {
-                prevConnection = ecsServer.findPrevPartnerConnection(ip, port);
-                prevConnection.send("data_received");
+                // the server names the receiver of the data, since it might hand over ranges to several new servers
+                if (tokens.length >= 3) {
+                    prevConnection = ecsServer.ecsCommunicationHashMap.get(tokens[1].concat(tokens[2]));
+                } else {
+                    prevConnection = ecsServer.findPrevPartnerConnection(ip, port);
+                }
+                if (prevConnection != null) {
+                    prevConnection.send("data_received");
+                }
             }
             //Signals the ECS that all the data is sent
             case "data_complete_send" -> {
                 closeConnection();
                 ecsServer.sendMetaDataToAll();
             }
+            // the server couldn't apply a delta, since it missed an update
+            case "metadata_request" -> {
+                synchronized (metadataLock) {
+                    distributedEntries = null;
+                    distributedEpoch = -1;
+                }
+                sendMetaData();
+            }
+            // CMD: switch_hash name, forwarded by a server on behalf of an administrator
+            case "switch_hash" -> {
+                if (tokens.length == 2) {
+                    ecsServer.switchHashFunction(tokens[1]);
+                }
+            }
+            // the server moved its keys to their owners under the new hash function
+            case "hash_switched" -> ecsServer.hashSwitched(ip, port);
             // CMD: update_keyrange start_range end_range
             case "update_keyrange" -> {
                 String newStartRange = tokens[1];
@@ -146,6 +245,18 @@ public class ECSCommunication implements Runnable {
     }
 
 
+    /**
+     * Sends a write lock command to the server that only blocks write operations on the keys of a single partition.
+     *
+     * @param startRange The start of the locked partition.
+     * @param endRange   The end of the locked partition.
+     */
+    public synchronized void setWriteLock(String startRange, String endRange) {
+        String message = "set_write_lock " + startRange + " " + endRange;
+        messageHandler.send(message);
+        sent(ip, port, message);
+    }
+
     /**
      * Sends a command to the server to release any previously set write locks.
      */
@@ -158,13 +269,25 @@ public class ECSCommunication implements Runnable {
      * Requests a given server to send data for a specific hash range.
      * This is typically used during data migration between servers.
      *
-     * @param ip       IP address of the server to request data from.
-     * @param port     Port number of the server to request data from.
-     * @param keyRange Hash range of the data to be requested.
+     * @param ip         IP address of the server that receives the data.
+     * @param port       Port number of the server that receives the data.
+     * @param startRange Exclusive start of the hash range of the data to be requested.
+     * @param endRange   Inclusive end of the hash range of the data to be requested.
      */
-    public synchronized void getDataFromKeyRange(String ip, String port, String keyRange) {
-        messageHandler.send("request_data_key_range " + ip + " " + port + " " + keyRange);
-        sent(this.ip, this.port, "request_data_key_range Port: " + port + " Ip:" + ip + " KeyRange: " + keyRange);
+    public synchronized void getDataFromKeyRange(String ip, String port, String startRange, String endRange) {
+        messageHandler.send("request_data_key_range " + ip + " " + port + " " + endRange + " " + startRange);
+        sent(this.ip, this.port, "request_data_key_range Port: " + port + " Ip:" + ip + " KeyRange: " + startRange + "-" + endRange);
+    }
+
+    /**
+     * Tells the server to take over key ranges of a failed server by promoting the matching part of its replica store to primary data.
+     *
+     * @param ip     IP address of the failed server.
+     * @param port   Port number of the failed server.
+     * @param ranges The ranges the server takes over, in the format start,end;start,end;
+     */
+    public synchronized void promoteReplica(String ip, String port, String ranges) {
+        send("promote_replica " + ip + " " + port + " " + ranges);
     }
 
     /**
@@ -181,11 +304,70 @@ public class ECSCommunication implements Runnable {
 
     /**
      * Sends metadata to the client server identified by the current IP and port.
-     * Logs the sent metadata for debugging and tracking purposes.
+     * A server that already received metadata only gets the nodes that were added and removed since then:
+     * <p>
+     * metadata_delta baseEpoch epoch +endRange,ip:port;-endRange,ip:port;
+     * <p>
+     * Otherwise it gets the complete metadata followed by its epoch. Nothing is sent if the server is up-to-date.
+     * This isn't synchronized on the connection, so the metadata of all servers can be sent in parallel
+     * while the thread of one of the connections waits for it.
+     */
+    public void sendMetaData() {
+        RingList.Snapshot snapshot = ecsServer.fetchMetaData();
+        String message;
+        // the lock only orders the updates of this server, so a slow server doesn't delay the updates of the others
+        synchronized (metadataLock) {
+            if (snapshot.epoch() <= distributedEpoch) {
+                return;
+            }
+            if (distributedEntries == null || snapshot.metadata() == null) {
+                message = "metadata " + snapshot.metadata() + " " + snapshot.epoch();
+            } else {
+                StringBuilder changes = new StringBuilder();
+                for (String entry : distributedEntries) {
+                    if (!snapshot.entries().contains(entry)) {
+                        changes.append("-").append(entry).append(";");
+                    }
+                }
+                for (String entry : snapshot.entries()) {
+                    if (!distributedEntries.contains(entry)) {
+                        changes.append("+").append(entry).append(";");
+                    }
+                }
+                if (changes.isEmpty()) {
+                    return;
+                }
+                message = "metadata_delta " + distributedEpoch + " " + snapshot.epoch() + " " + changes;
+            }
+            distributedEntries = snapshot.entries();
+            distributedEpoch = snapshot.epoch();
+            messageHandler.send(message);
+        }
+        sent(ip, port, message);
+    }
+
+    /**
+     * Tells the server to switch to another hash function and sends it the ring of the new hash function along with it,
+     * since the server needs both to find the new owners of its keys. Like sendMetaData, this isn't synchronized on the connection.
+     *
+     * @param name The name of the new hash function.
+     */
+    public void switchHash(String name) {
+        RingList.Snapshot snapshot = ecsServer.fetchMetaData();
+        String message = "switch_hash " + name + " " + snapshot.metadata() + " " + snapshot.epoch();
+        synchronized (metadataLock) {
+            distributedEntries = snapshot.entries();
+            distributedEpoch = snapshot.epoch();
+            messageHandler.send(message);
+        }
+        sent(ip, port, message);
+    }
+
+    /**
+     * Tells the server that every server moved its keys to the new hash function, so it can serve requests again.
      */
-    public synchronized void sendMetaData() {
-        messageHandler.send("metadata " + ecsServer.fetchMetaData());
-        sent(ip, port, "metadata " + ecsServer.fetchMetaData());
+    public void finishHashSwitch() {
+        send("hash_switch_done");
     }
 
     /**
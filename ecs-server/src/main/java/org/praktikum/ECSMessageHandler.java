@@ -64,10 +64,11 @@ public class ECSMessageHandler {
      * Sends a message to the connected client.
      * <p>
      * The message is prefixed with "ECS " and suffixed with CRLF (i.e., "\r\n") before sending.
+     * Sending is synchronized, since metadata is sent by other threads than the one of the connection.
      *
      * @param data The message to be sent.
      */
-    public void send(String data) {
+    public synchronized void send(String data) {
         try {
             data = "ECS " + data + "\r\n";
             out.write(data.getBytes(StandardCharsets.UTF_8));
@@ -1,13 +1,26 @@
 package org.praktikum;
 
+import org.praktikum.resources.HashFunction;
 import org.praktikum.resources.RingList;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.security.NoSuchAlgorithmException;
-import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -20,6 +33,20 @@ public class ECSServer {
     private final int port;
     private boolean isRunning;
     private final RingList ringList;
+    private final int virtualNodes;
+    private final int partitions;
+    // the servers that haven't moved their keys yet during a switch of the hash function
+    private final Set<String> pendingHashSwitches = new HashSet<>();
+    // identifies the current switch, so the timeout of an earlier switch doesn't finish a later one
+    private long hashSwitchId;
+    // a server that neither reports nor fails within this time doesn't keep the others stopped any longer
+    private static final long HASH_SWITCH_TIMEOUT = 60000;
+    // sends to the servers block on their sockets, so they get their own threads instead of the common pool
+    private final ExecutorService broadcastExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public final HashMap<String, ECSCommunication> ecsCommunicationHashMap = new HashMap<>();
 
@@ -29,10 +56,15 @@ public class ECSServer {
      * @param port        The port on which the ECSServer will run.
      * @param address     The address of the ECSServer.
      * @param logFilePath The path where logs will be stored.
-     * @param logLevel    The level of logging.
+     * @param logLevel     The level of logging.
+     * @param virtualNodes The number of virtual nodes every KVServer gets on the ring.
+     * @param hashFunction The hash function that places keys and servers on the ring.
+     * @param partitions   The fixed number of partitions the servers own, or 0 to place the servers on the ring by their hash.
      */
-    public ECSServer(int port, String address, String logFilePath, Level logLevel) {
+    public ECSServer(int port, String address, String logFilePath, Level logLevel, int virtualNodes, HashFunction hashFunction, int partitions) {
         this.port = port;
+        this.virtualNodes = virtualNodes;
+        this.partitions = partitions;
         this.isRunning = false;
         this.address = address;
         log.setLevel(logLevel);
@@ -41,8 +73,9 @@ public class ECSServer {
             FileHandler fileHandler = new FileHandler(logFilePath, true);
             fileHandler.setFormatter(new SimpleFormatter());
             log.addHandler(fileHandler);
-            ringList = new RingList();
-        } catch (IOException | NoSuchAlgorithmException e) {
+            ringList = new RingList(hashFunction);
+            ringList.setPartitions(partitions);
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
@@ -70,33 +103,199 @@ public class ECSServer {
     }
 
     /**
-     * Adds a new ECSCommunication to the ring list and finds its successor.
-     * The method returns an `AbstractMap.SimpleEntry` object, where the key is the ECSCommunication object corresponding
-     * to the successor, and the value is the start range of the hash space that the successor is responsible for.
+     * Adds the virtual nodes of a new server to the ring list and determines which servers have to hand over data.
+     * The range of every new node was owned by the first following node of another server. The ranges are grouped
+     * by these servers, so every server can transfer its ranges in parallel to the others.
      *
      * @param ip         The IP address of the server to be added.
      * @param port       The port number of the server to be added.
      * @param hashString A custom endRange provided in the startup of the KVServer
-     * @return An `AbstractMap.SimpleEntry` where the key is the ECSCommunication of the successor,
-     * and the value is the hash range start value that the successor is responsible for.
+     * @return The ECSCommunication of every server that has to hand over data, mapped to the {start, end} ranges it has to send.
      */
-    public AbstractMap.SimpleEntry<ECSCommunication, String> addEscCommunication(String ip, String port, String hashString) {
-        RingList.Node node = ringList.add(ip, port, hashString).getNext();
-        String keyRange = node.getStartRange();
-        return new AbstractMap.SimpleEntry<>(ecsCommunicationHashMap.get(node.getIP().concat(node.getPort())), keyRange);
+    public Map<ECSCommunication, List<String[]>> addEscCommunication(String ip, String port, String hashString) {
+        Map<ECSCommunication, List<String[]>> transfers = new LinkedHashMap<>();
+        for (RingList.Node node : ringList.addServer(ip, port, hashString, virtualNodes)) {
+            RingList.Node owner = ringList.findSuccessorServer(node);
+            ECSCommunication connection = owner == null ? null : ecsCommunicationHashMap.get(owner.getIP().concat(owner.getPort()));
+            if (connection != null) {
+                transfers.computeIfAbsent(connection, k -> new ArrayList<>()).add(new String[]{node.getStartRange(), node.getEndRange()});
+            }
+        }
+        return transfers;
     }
 
     /**
-     * Removes a server from the hash ring and determines the next server.
+     * Removes all virtual nodes of a server from the hash ring.
      *
      * @param ip   The IP of the server to be removed.
      * @param port The port of the server to be removed.
-     * @return The ECSCommunication of the successor.
+     * @return The ECSCommunication of the successor of the server's first node.
      */
     public ECSCommunication removeFromRing(String ip, String port) {
-        RingList.Node node = ringList.remove(ip, port);
-        RingList.Node successor = node.getNext();
-        return ecsCommunicationHashMap.remove(successor.getIP().concat(node.getPort()));
+        List<RingList.Node> nodes = ringList.removeServer(ip, port);
+        ecsCommunicationHashMap.remove(ip.concat(port));
+        // a server that leaves during a switch of the hash function won't report anymore
+        hashSwitched(ip, port);
+        if (nodes.isEmpty()) {
+            return null;
+        }
+        RingList.Node successor = nodes.get(0).getNext();
+        return ecsCommunicationHashMap.get(successor.getIP().concat(successor.getPort()));
+    }
+
+    /**
+     * Handles a server that stopped answering pings without closing regularly.
+     * Without virtual nodes, the successor of the failed server takes over its key range. As the successor already
+     * holds a replica of the failed server's data, it is told to promote the replica store before it receives the new metadata.
+     * With virtual nodes or partitions, only the first two servers after the first node of the failed server hold its replica,
+     * so every node of the failed server is handed to the first of them instead of to the successor of the node.
+     *
+     * @param ip   The IP of the failed server.
+     * @param port The port of the failed server.
+     */
+    public synchronized void handleServerFailure(String ip, String port) {
+        List<RingList.Node> nodes = ringList.findAll(ip, port);
+        // a server that closed regularly was already removed from the ring
+        if (nodes.isEmpty()) {
+            return;
+        }
+        log.warning("Server " + ip + ":" + port + " failed, promoting the replica on its successors");
+        RingList.Node takeover = null;
+        if (nodes.size() > 1) {
+            RingList.Node first = nodes.stream().min(Comparator.comparing(RingList.Node::getEndKey)).get();
+            takeover = ringList.findSuccessorServer(first);
+        }
+        Map<ECSCommunication, StringBuilder> rangesBySuccessor = new LinkedHashMap<>();
+        for (RingList.Node node : nodes) {
+            RingList.Node successor = takeover != null ? takeover : ringList.findSuccessorServer(node);
+            ECSCommunication connection = successor == null ? null : ecsCommunicationHashMap.get(successor.getIP().concat(successor.getPort()));
+            if (connection != null) {
+                rangesBySuccessor.computeIfAbsent(connection, k -> new StringBuilder()).append(node.getStartRange()).append(",").append(node.getEndRange()).append(";");
+            }
+        }
+        ECSCommunication failed = ecsCommunicationHashMap.get(ip.concat(port));
+        if (takeover != null) {
+            for (RingList.Node node : nodes) {
+                ringList.reassign(node, takeover.getIP(), takeover.getPort());
+            }
+            ecsCommunicationHashMap.remove(ip.concat(port));
+            hashSwitched(ip, port);
+        } else {
+            removeFromRing(ip, port);
+        }
+        if (failed != null) {
+            failed.closeConnection();
+        }
+        for (Map.Entry<ECSCommunication, StringBuilder> entry : rangesBySuccessor.entrySet()) {
+            entry.getKey().promoteReplica(ip, port, entry.getValue().toString());
+        }
+        sendMetaDataToAll();
+    }
+
+    public boolean isPartitioned() {
+        return partitions > 0;
+    }
+
+    /**
+     * Returns the name of the hash function the servers and clients place keys with. With partitions, the number of
+     * partitions is appended, e.g. murmur3/256, since the servers map keys to partitions themselves.
+     *
+     * @return The name of the hash function.
+     */
+    public String getHashFunctionName() {
+        String name = ringList.getHashFunction().getName();
+        return isPartitioned() ? name + "/" + partitions : name;
+    }
+
+    /**
+     * Determines the partitions a joining server takes over, see {@link RingList#planPartitionMoves(String, String)}.
+     *
+     * @param ip   The IP address of the joining server.
+     * @param port The port number of the joining server.
+     * @return The nodes of the partitions to move to the server.
+     */
+    public List<RingList.Node> planPartitionMoves(String ip, String port) {
+        return ringList.planPartitionMoves(ip, port);
+    }
+
+    /**
+     * Hands a single partition over to a server.
+     *
+     * @param node The node of the partition.
+     * @param ip   The IP address of the server that takes over the partition.
+     * @param port The port number of the server that takes over the partition.
+     * @return The ECSCommunication of the server that owned the partition and has to send its data,
+     * or null if the partition doesn't have to be moved anymore.
+     */
+    public synchronized ECSCommunication reassignPartition(RingList.Node node, String ip, String port) {
+        String previousIP = node.getIP();
+        String previousPort = node.getPort();
+        if ((previousIP.equals(ip) && previousPort.equals(port)) || !ringList.reassign(node, ip, port)) {
+            return null;
+        }
+        return ecsCommunicationHashMap.get(previousIP.concat(previousPort));
+    }
+
+    /**
+     * Switches the whole cluster to another hash function. The servers are placed anew with the new hash function
+     * unless they own partitions, and every server is sent the new ring to move its keys to their new owners. The servers stay stopped until
+     * all of them moved their keys, then they request their replicas again.
+     *
+     * @param name The name of the new hash function.
+     */
+    public synchronized void switchHashFunction(String name) {
+        HashFunction hashFunction = HashFunction.forName(name);
+        if (hashFunction == null || hashFunction.getName().equals(ringList.getHashFunction().getName()) || !pendingHashSwitches.isEmpty()) {
+            log.warning("Ignored switching the hash function to " + name);
+            return;
+        }
+        if (isPartitioned()) {
+            // partitions keep their owners, only the partitions of the keys change
+            ringList.setHashFunction(hashFunction);
+        } else {
+            ringList.rehash(hashFunction, virtualNodes);
+        }
+        List<ECSCommunication> connections = new ArrayList<>(ecsCommunicationHashMap.values());
+        pendingHashSwitches.addAll(ecsCommunicationHashMap.keySet());
+        log.info("Switching " + pendingHashSwitches.size() + " servers to hash function " + hashFunction.getName());
+        long switchId = ++hashSwitchId;
+        CompletableFuture.delayedExecutor(HASH_SWITCH_TIMEOUT, TimeUnit.MILLISECONDS, broadcastExecutor).execute(() -> hashSwitchTimedOut(switchId));
+        String switchedName = getHashFunctionName();
+        broadcast(connections, connection -> connection.switchHash(switchedName));
+    }
+
+    /**
+     * Counts a server that moved its keys to the new hash function, or that left the ring during the switch.
+     * Once no server is pending anymore, the switch is finished.
+     *
+     * @param ip   The IP of the server.
+     * @param port The port of the server.
+     */
+    public synchronized void hashSwitched(String ip, String port) {
+        if (pendingHashSwitches.remove(ip.concat(port)) && pendingHashSwitches.isEmpty()) {
+            finishHashSwitch();
+        }
+    }
+
+    /**
+     * Finishes a switch whose servers didn't all report in time, so the reporting servers serve requests again.
+     *
+     * @param switchId The id of the switch that timed out.
+     */
+    private synchronized void hashSwitchTimedOut(long switchId) {
+        if (switchId != hashSwitchId || pendingHashSwitches.isEmpty()) {
+            return;
+        }
+        log.warning("Servers " + pendingHashSwitches + " didn't finish switching the hash function in time");
+        pendingHashSwitches.clear();
+        finishHashSwitch();
+    }
+
+    private void finishHashSwitch() {
+        for (ECSCommunication connection : new ArrayList<>(ecsCommunicationHashMap.values())) {
+            connection.finishHashSwitch();
+        }
+        log.info("Switched to hash function " + getHashFunctionName());
     }
 
     public void updateKeyRanges(String ip, String port, String startRange, String endRange) {
@@ -104,20 +303,43 @@ public class ECSServer {
     }
 
     /**
-     * Gets all meta data and converts them to a string
+     * Gets a consistent snapshot of the meta data together with its epoch
      *
-     * @return String of meta data
+     * @return Snapshot of the meta data
      */
-    public String fetchMetaData() {
-        return ringList.toString();
+    public RingList.Snapshot fetchMetaData() {
+        return ringList.snapshot();
     }
 
     /**
-     * Sends Metadata to all servers
+     * Sends Metadata to all servers in parallel and returns once every server was sent its update.
+     * Every server only receives the changes since the metadata it was sent last.
      */
     public void sendMetaDataToAll() {
-        for (ECSCommunication kvServers : ecsCommunicationHashMap.values()) {
-            kvServers.sendMetaData();
+        List<ECSCommunication> connections = new ArrayList<>(ecsCommunicationHashMap.values());
+        broadcast(connections, ECSCommunication::sendMetaData);
+    }
+
+    /**
+     * Runs a send for every connection in parallel and waits until all of them are done.
+     *
+     * @param connections The connections of the servers.
+     * @param send        The send for a single connection.
+     */
+    private void broadcast(List<ECSCommunication> connections, Consumer<ECSCommunication> send) {
+        List<Future<?>> sends = new ArrayList<>();
+        for (ECSCommunication connection : connections) {
+            sends.add(broadcastExecutor.submit(() -> send.accept(connection)));
+        }
+        for (Future<?> future : sends) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                log.warning("Sending to a server failed: " + e.getCause());
+            }
         }
     }
 
@@ -170,7 +392,7 @@ public class ECSServer {
     }
 
     public static void main(String[] args) {
-        ECSServer ecsServer = new ECSServer(44331, "0.0.0.0", "123", Level.ALL);
+        ECSServer ecsServer = new ECSServer(44331, "0.0.0.0", "123", Level.ALL, 1, HashFunction.forName(HashFunction.MD5), 0);
         ecsServer.runServer();
     }
 }
@@ -1,5 +1,7 @@
 package org.praktikum;
 
+import org.praktikum.resources.HashFunction;
+
 import java.util.Arrays;
 import java.util.logging.Level;
 
@@ -17,6 +19,9 @@ public class EntryPoint {
             case "-a" -> flags[1] = value;
             case "-l" -> flags[2] = value;
             case "-ll" -> flags[3] = value;
+            case "-vn" -> flags[4] = value;
+            case "-hf" -> flags[5] = value;
+            case "-pt" -> flags[6] = value;
             default -> printInvalidInput(flags);
         }
     }
@@ -49,6 +54,24 @@ public class EntryPoint {
                 "-ll <loglevel>",
                 "-ll INFO"
         );
+        printArgumentHelp(
+                "-vn", "Sets the number of virtual nodes every KVServer gets on the hash ring",
+                "-vn <count>",
+                "-vn 8",
+                "1"
+        );
+        printArgumentHelp(
+                "-hf", "Sets the hash function that places keys and servers on the ring (md5 or murmur3)",
+                "-hf <name>",
+                "-hf murmur3",
+                "md5"
+        );
+        printArgumentHelp(
+                "-pt", "Assigns a fixed number of partitions to the servers instead of placing them on the ring (a power of two, 0 disables partitions)",
+                "-pt <count>",
+                "-pt 256",
+                "0"
+        );
     }
 
     /**
@@ -84,9 +107,12 @@ public class EntryPoint {
 
     public static void main(String[] args) {
         System.out.println("provided args: " + Arrays.toString(args));
-        String[] flags = new String[4];
+        String[] flags = new String[7];
         flags[1] = "127.0.0.1";
         flags[2] = "logs/ecs.log";
+        flags[4] = "1";
+        flags[5] = HashFunction.MD5;
+        flags[6] = "0";
         //Parse CLI parameters
         for (int i = 0; i < args.length; i++) {
             String s = args[i];
@@ -109,7 +135,15 @@ public class EntryPoint {
         try {
             int port = Integer.parseInt(flags[0]);
             Level logLevel = Level.parse(flags[3]);
-            ECSServer ECS = new ECSServer(port, flags[1], flags[2], logLevel);
+            int virtualNodes = Integer.parseInt(flags[4]);
+            HashFunction hashFunction = HashFunction.forName(flags[5]);
+            int partitions = Integer.parseInt(flags[6]);
+            boolean validPartitions = partitions == 0 || (partitions >= 2 && partitions <= 65536 && Integer.bitCount(partitions) == 1);
+            if (virtualNodes < 1 || hashFunction == null || !validPartitions) {
+                printInvalidInput(flags);
+                return;
+            }
+            ECSServer ECS = new ECSServer(port, flags[1], flags[2], logLevel, virtualNodes, hashFunction, partitions);
             ECS.runServer();
         } catch (Exception e) {
             System.out.println("An error occurred while starting up the server");
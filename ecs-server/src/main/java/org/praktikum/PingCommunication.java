@@ -7,6 +7,7 @@ import java.util.AbstractMap;
 import java.util.Arrays;
 
 public class PingCommunication implements Runnable {
+    private final ECSServer ecsServer;
     private final ECSMessageHandler messageHandler;
     private final String ip;
     private final String port;
@@ -16,11 +17,13 @@ public class PingCommunication implements Runnable {
      * Constructor for the PingCommunication class.
      * Initializes the ECSMessageHandler with the provided client socket and sets the IP and port.
      *
+     * @param ecsServer    The ECSServer that is notified if the server fails.
      * @param clientSocket The socket for communication with the client.
      * @param ip           The IP address of the client.
      * @param port         The port number of the client.
      */
-    public PingCommunication(Socket clientSocket, String ip, String port) {
+    public PingCommunication(ECSServer ecsServer, Socket clientSocket, String ip, String port) {
+        this.ecsServer = ecsServer;
         this.messageHandler = new ECSMessageHandler(clientSocket);
         this.clientSocket = clientSocket;
         this.ip = ip;
@@ -32,7 +35,7 @@ public class PingCommunication implements Runnable {
      * <p>
      * Upon starting, a welcome message is read. Then, "ping_request" messages are
      * repeatedly sent to the server every 700 milliseconds. If no message is received
-     * back from the server, it is concluded that the server is down.
+     * back from the server, it is concluded that the server is down and the ECSServer hands its key range over.
      *
      * @throws RuntimeException if the thread is interrupted while sleeping.
      */
@@ -55,6 +58,7 @@ public class PingCommunication implements Runnable {
             }
             closeConnection();
             System.out.println("server with IP: " + ip + " and Port: " + port + " is down");
+            ecsServer.handleServerFailure(ip, port);
 
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
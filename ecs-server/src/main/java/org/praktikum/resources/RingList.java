@@ -1,28 +1,169 @@
 package org.praktikum.resources;
 
-import java.math.BigInteger;
-import java.security.MessageDigest;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class RingList {
     Node head;
     int size = 0;
+    // incremented on every change of the ring, so servers and clients can tell whether their metadata is current
+    private long epoch = 0;
 
-    private final MessageDigest digest;
+    private HashFunction hashFunction;
+    // the fixed number of partitions the servers own, 0 if the servers are placed on the ring by their hash
+    private int partitions;
 
     /**
      * Constructor for the RingList class.
-     * Initializes the digest with an MD5 hash algorithm.
+     * Places the servers with the MD5 hash of their address.
      *
      * @throws NoSuchAlgorithmException if the "MD5" algorithm isn't available.
      */
     public RingList() throws NoSuchAlgorithmException {
-        this.digest = MessageDigest.getInstance("MD5");
+        this(new MD5Hash());
+    }
+
+    /**
+     * Constructor for the RingList class.
+     *
+     * @param hashFunction The hash function that places the servers on the ring.
+     */
+    public RingList(HashFunction hashFunction) {
+        this.hashFunction = hashFunction;
+    }
+
+    public synchronized HashFunction getHashFunction() {
+        return hashFunction;
+    }
+
+    /**
+     * Replaces the hash function without moving any node, as the nodes of partitions don't depend on it.
+     * The epoch is still incremented, since the ring now places keys differently.
+     *
+     * @param hashFunction The new hash function.
+     */
+    public synchronized void setHashFunction(HashFunction hashFunction) {
+        this.hashFunction = hashFunction;
+        epoch++;
+    }
+
+    /**
+     * Switches the ring to a fixed number of partitions. Every partition is a node of the ring ending at
+     * partition * 2^128 / partitions, and servers own whole partitions instead of being placed by their hash.
+     * This has to happen before the first server is added.
+     *
+     * @param partitions The number of partitions, a power of two, or 0 to place servers by their hash.
+     */
+    public synchronized void setPartitions(int partitions) {
+        this.partitions = partitions;
+    }
+
+    public synchronized int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Returns the end of a partition on the ring.
+     *
+     * @param partition The partition.
+     * @return The end of the partition as a 32-character hexadecimal string.
+     */
+    private String getPartitionBoundary(int partition) {
+        int shift = 64 - Integer.numberOfTrailingZeros(partitions);
+        return new HashKey((long) partition << shift, 0).toHex();
+    }
+
+    /**
+     * Determines the partitions a joining server takes over. The first server gets all partitions right away.
+     * Every further server takes partitions from the servers that own the most until it owns its share.
+     * The partitions aren't reassigned yet, so they can be moved one after another.
+     *
+     * @param IP   The IP address of the joining server.
+     * @param port The port number of the joining server.
+     * @return The nodes of the partitions the server takes over, which are still owned by their previous servers.
+     */
+    public synchronized List<Node> planPartitionMoves(String IP, String port) {
+        List<Node> moves = new ArrayList<>();
+        if (size == 0) {
+            for (int i = 0; i < partitions; i++) {
+                add(IP, port, getPartitionBoundary(i));
+            }
+            return moves;
+        }
+        Map<String, List<Node>> nodesByServer = new LinkedHashMap<>();
+        Node node = head;
+        do {
+            nodesByServer.computeIfAbsent(node.getIP() + ":" + node.getPort(), k -> new ArrayList<>()).add(node);
+            node = node.getNext();
+        } while (node != head);
+        nodesByServer.remove(IP + ":" + port);
+        int share = partitions / (nodesByServer.size() + 1);
+        for (int i = 0; i < share; i++) {
+            List<Node> largest = null;
+            for (List<Node> serverNodes : nodesByServer.values()) {
+                if (largest == null || serverNodes.size() > largest.size()) {
+                    largest = serverNodes;
+                }
+            }
+            moves.add(largest.remove(largest.size() - 1));
+        }
+        return moves;
+    }
+
+    /**
+     * Hands a partition over to another server.
+     *
+     * @param node The node of the partition.
+     * @param IP   The IP address of the new owner.
+     * @param port The port number of the new owner.
+     * @return true if the partition was reassigned, false if it isn't part of the ring anymore.
+     */
+    public synchronized boolean reassign(Node node, String IP, String port) {
+        if (size == 0 || find(node.getEndKey()) != node) {
+            return false;
+        }
+        node.setIP(IP);
+        node.setPort(port);
+        epoch++;
+        return true;
+    }
+
+    /**
+     * Places all servers anew with another hash function. Custom end ranges of the servers are dropped,
+     * as they were chosen for the positions of the keys under the old hash function.
+     *
+     * @param hashFunction The new hash function.
+     * @param virtualNodes The number of virtual nodes of every server.
+     */
+    public synchronized void rehash(HashFunction hashFunction, int virtualNodes) {
+        Set<String> servers = new LinkedHashSet<>();
+        if (size > 0) {
+            Node node = head;
+            do {
+                servers.add(node.getIP() + ":" + node.getPort());
+                node = node.getNext();
+            } while (node != head);
+        }
+        head = null;
+        size = 0;
+        this.hashFunction = hashFunction;
+        for (String server : servers) {
+            String[] address = server.split(":");
+            addServer(address[0], address[1], null, virtualNodes);
+        }
+        epoch++;
     }
 
     /**
      * Adds a new node to the ring list based on the provided IP, port, and hash string.
-     * If no hash string is provided, an MD5 hash of the IP and port is used.
+     * If no hash string is provided, the hash of the IP and port is used.
      *
      * @param IP         The IP address of the node to be added.
      * @param port       The port number of the node to be added.
@@ -35,7 +176,7 @@ public class RingList {
             hashString = getMD5Hash(IP, port);
         }
 
-        Node previousNode = find(hashString);
+        Node previousNode = find(HashKey.fromHex(hashString));
 
         Node newNode;
         if (previousNode == null) {
@@ -49,11 +190,64 @@ public class RingList {
         }
 
         size++;
+        epoch++;
 
         return newNode;
     }
 
 
+    /**
+     * Adds a server with the given number of virtual nodes to the ring list. The first virtual node is placed at the
+     * custom hash string if one is provided and at the hash of the IP and port otherwise, every further virtual node
+     * at the hash of IP:port#index. Spreading a server over several ranges evens out the load, and its ranges are
+     * taken from several servers when it joins.
+     *
+     * @param IP           The IP address of the server to be added.
+     * @param port         The port number of the server to be added.
+     * @param hashString   A custom end range hash string for the first virtual node, or null.
+     * @param virtualNodes The number of virtual nodes of the server.
+     * @return The newly added nodes.
+     */
+    public synchronized List<Node> addServer(String IP, String port, String hashString, int virtualNodes) {
+        List<Node> nodes = new ArrayList<>();
+        nodes.add(add(IP, port, hashString));
+        for (int i = 1; i < virtualNodes; i++) {
+            nodes.add(add(IP, port, getMD5Hash(IP, port + "#" + i)));
+        }
+        return nodes;
+    }
+
+    /**
+     * Removes all virtual nodes of a server from the ring list. The successor of every removed node takes over its range.
+     *
+     * @param IP   The IP address of the server to be removed.
+     * @param port The port number of the server to be removed.
+     * @return The removed nodes, which still reference their old neighbours and ranges. The nodes of partitions
+     * stay in the ring and already belong to their new servers.
+     */
+    public synchronized List<Node> removeServer(String IP, String port) {
+        List<Node> nodes = findAll(IP, port);
+        if (partitions > 0 && !nodes.isEmpty()) {
+            // partitions keep their boundaries, the successor server takes over every partition of the server
+            for (Node node : nodes) {
+                Node successor = findSuccessorServer(node);
+                if (successor == null) {
+                    head = null;
+                    size = 0;
+                    break;
+                }
+                node.setIP(successor.getIP());
+                node.setPort(successor.getPort());
+            }
+            epoch++;
+            return nodes;
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            remove(IP, port);
+        }
+        return nodes;
+    }
+
     /**
      * Removes a node from the ring list based on the provided hash string.
      * Adjusts the neighboring nodes and the head of the list accordingly.
@@ -65,48 +259,56 @@ public class RingList {
     public synchronized Node remove(String hashString) {
         if (size == 0) {
             return null;
-        } else if (size == 1) {
+        }
+        epoch++;
+        if (size == 1) {
             Node node = head;
             head = null;
             size--;
             return node;
         }
 
-        Node toBeRemovedNode = find(hashString);
+        Node toBeRemovedNode = find(HashKey.fromHex(hashString));
+
+        unlink(toBeRemovedNode);
+        size--;
+        return toBeRemovedNode;
+    }
 
+    /**
+     * Unlinks a node from the ring. Its successor takes over the key range of the removed node,
+     * since the successor is the server the removed node transfers its data to, and the server holding its first replica.
+     *
+     * @param toBeRemovedNode The node to be removed, the list has to contain at least one other node.
+     */
+    private void unlink(Node toBeRemovedNode) {
+        Node next = toBeRemovedNode.getNext();
         if (size == 2) {
-            Node prev = toBeRemovedNode.getPrev();
-            prev.setNext(prev);
-            prev.setPrev(prev);
-            prev.setEndRange(toBeRemovedNode.getEndRange());
-            if (toBeRemovedNode == head) {
-                head = prev;
-            }
+            // the remaining node covers the whole ring
+            next.setNext(next);
+            next.setPrev(next);
+            next.setStartRange(next.getEndRange());
         } else {
-            toBeRemovedNode.getPrev().setNext(toBeRemovedNode.getNext());
-            toBeRemovedNode.getPrev().setEndRange(toBeRemovedNode.getEndRange());
-            toBeRemovedNode.getNext().setPrev(toBeRemovedNode.getPrev());
-
-            if (toBeRemovedNode == head) {
-                head = toBeRemovedNode.getPrev();
-            }
+            toBeRemovedNode.getPrev().setNext(next);
+            next.setPrev(toBeRemovedNode.getPrev());
+            next.setStartRange(toBeRemovedNode.getStartRange());
+        }
+        if (toBeRemovedNode == head) {
+            head = next;
         }
-        size--;
-        return toBeRemovedNode;
     }
 
     /**
-     * Generates an MD5 hash based on a server's IP and port.
+     * Generates a hash based on a server's IP and port with the hash function of the ring.
      * The resulting hash is represented as a 32-character hexadecimal string.
      *
      * @param IP   The IP address for which the hash needs to be generated.
      * @param port The port number for which the hash needs to be generated.
-     * @return The MD5 hash of the IP and port.
+     * @return The hash of the IP and port.
      */
     public String getMD5Hash(String IP, String port) {
-        byte[] hash = this.digest.digest((IP + ":" + port).getBytes());
-        BigInteger bigInteger = new BigInteger(1, hash);
-        return String.format("%032X", bigInteger);
+        byte[] bytes = (IP + ":" + port).getBytes(StandardCharsets.UTF_8);
+        return hashFunction.hash(bytes, 0, bytes.length).toHex();
     }
 
     /**
@@ -121,7 +323,9 @@ public class RingList {
     public synchronized Node remove(String IP, String port) {
         if (size == 0) {
             return null;
-        } else if (size == 1) {
+        }
+        epoch++;
+        if (size == 1) {
             Node node = head;
             head = null;
             size--;
@@ -130,23 +334,7 @@ public class RingList {
 
         Node toBeRemovedNode = find(IP, port);
 
-        if (size == 2) {
-            Node prev = toBeRemovedNode.getPrev();
-            prev.setNext(prev);
-            prev.setPrev(prev);
-            prev.setEndRange(toBeRemovedNode.getEndRange());
-            if (toBeRemovedNode == head) {
-                head = prev;
-            }
-        } else {
-            toBeRemovedNode.getPrev().setNext(toBeRemovedNode.getNext());
-            toBeRemovedNode.getPrev().setEndRange(toBeRemovedNode.getEndRange());
-            toBeRemovedNode.getNext().setPrev(toBeRemovedNode.getPrev());
-
-            if (toBeRemovedNode == head) {
-                head = toBeRemovedNode.getPrev();
-            }
-        }
+        unlink(toBeRemovedNode);
         size--;
         return toBeRemovedNode;
     }
@@ -159,7 +347,7 @@ public class RingList {
      * @param key The hash key used to search for a node.
      * @return The node that matches the criteria or null if no such node exists.
      */
-    public Node find(String key) {
+    public Node find(HashKey key) {
         if (size == 0) {
             return null;
         }
@@ -170,14 +358,8 @@ public class RingList {
 
         Node node = head;
         do {
-            if (node.getStartRange().compareTo(key) < 0 && node.getEndRange().compareTo(key) >= 0) {
+            if (node.isResponsibleFor(key)) {
                 return node;
-            } else if (node.getStartRange().compareTo(node.getEndRange()) >= 0) {
-                if (node.getStartRange().compareTo(key) < 0 && node.getEndRange().compareTo(key) <= 0) {
-                    return node;
-                } else if (node.getStartRange().compareTo(key) > 0 && node.getEndRange().compareTo(key) >= 0) {
-                    return node;
-                }
             }
             node = node.getNext();
         } while (node != head);
@@ -211,6 +393,46 @@ public class RingList {
         return null;
     }
 
+    /**
+     * Collects all virtual nodes of a server in the order of the ring.
+     *
+     * @param address The IP address of the server.
+     * @param port    The port number of the server.
+     * @return The nodes of the server, or an empty list if it isn't part of the ring.
+     */
+    public List<Node> findAll(String address, String port) {
+        List<Node> nodes = new ArrayList<>();
+        if (size == 0) {
+            return nodes;
+        }
+        Node node = head;
+        do {
+            if (node.getPort().equals(port) && node.getIP().equals(address)) {
+                nodes.add(node);
+            }
+            node = node.getNext();
+        } while (node != head);
+        return nodes;
+    }
+
+    /**
+     * Finds the first node after the given one that belongs to a different server. This server takes over the range
+     * of the node when its server leaves, and hands the range over when the server of the node joins.
+     *
+     * @param node The node whose successor is searched.
+     * @return The first node of a different server, or null if the ring consists of the node's server only.
+     */
+    public Node findSuccessorServer(Node node) {
+        Node successor = node.getNext();
+        while (successor != node) {
+            if (!successor.getIP().equals(node.getIP()) || !successor.getPort().equals(node.getPort())) {
+                return successor;
+            }
+            successor = successor.getNext();
+        }
+        return null;
+    }
+
     /**
      * Updates the hash ranges of a node identified by the provided IP address and port.
      * This method updates the start and end hash ranges of the specified node and adjusts the neighboring nodes accordingly.
@@ -229,6 +451,35 @@ public class RingList {
         //Update endRange
         node.setEndRange(endRange);
         node.getNext().setStartRange(endRange);
+        epoch++;
+    }
+
+    /**
+     * Takes a consistent snapshot of the ring for distributing it to the servers.
+     *
+     * @return The epoch, the metadata string and the nodes of the ring, each in the format endRange,IP:Port.
+     */
+    public synchronized Snapshot snapshot() {
+        Set<String> entries = new HashSet<>();
+        if (size > 0) {
+            Node node = head;
+            do {
+                entries.add(node.getEndRange() + "," + node.getIP() + ":" + node.getPort());
+                node = node.getNext();
+            } while (node != head);
+        }
+        return new Snapshot(epoch, toString(), entries);
+    }
+
+    /**
+     * A version of the ring. As every node starts where its predecessor ends, the nodes are fully described by their
+     * end ranges and addresses, which allows describing the difference between two versions as added and removed nodes.
+     *
+     * @param epoch    The epoch of the ring.
+     * @param metadata The metadata string as returned by toString, null if the ring is empty.
+     * @param entries  The nodes in the format endRange,IP:Port.
+     */
+    public record Snapshot(long epoch, String metadata, Set<String> entries) {
     }
 
     /**
@@ -268,8 +519,8 @@ public class RingList {
         private Node next;
         private String IP;
         private String port;
-        private String startRange;
-        private String endRange;
+        private HashKey startRange;
+        private HashKey endRange;
 
         /**
          * Constructs a standalone node with the given IP, port, and hash range.
@@ -284,8 +535,8 @@ public class RingList {
             this.next = this;
             this.IP = IP;
             this.port = port;
-            this.startRange = endRange;
-            this.endRange = endRange;
+            this.startRange = HashKey.fromHex(endRange);
+            this.endRange = this.startRange;
         }
 
         /**
@@ -306,9 +557,9 @@ public class RingList {
             prev.setPrev(this);
 
 
-            this.startRange = prev.getStartRange();
-            this.endRange = endRange;
-            this.getNext().setStartRange(endRange);
+            this.startRange = prev.getStartKey();
+            this.endRange = HashKey.fromHex(endRange);
+            this.getNext().startRange = this.endRange;
         }
 
         public Node getPrev() {
@@ -344,19 +595,37 @@ public class RingList {
         }
 
         public String getStartRange() {
-            return startRange;
+            return startRange.toHex();
         }
 
         public void setStartRange(String startRange) {
-            this.startRange = startRange;
+            this.startRange = HashKey.fromHex(startRange);
         }
 
         public String getEndRange() {
-            return endRange;
+            return endRange.toHex();
         }
 
         public void setEndRange(String endRange) {
-            this.endRange = endRange;
+            this.endRange = HashKey.fromHex(endRange);
+        }
+
+        public HashKey getStartKey() {
+            return startRange;
+        }
+
+        public HashKey getEndKey() {
+            return endRange;
+        }
+
+        /**
+         * Checks whether the node is responsible for a hash, i.e. whether the hash lies in (startRange, endRange].
+         *
+         * @param hash The hash of a key.
+         * @return true if the node is responsible for the hash, false otherwise.
+         */
+        public boolean isResponsibleFor(HashKey hash) {
+            return hash.isInRange(startRange, endRange);
         }
 
         @Override
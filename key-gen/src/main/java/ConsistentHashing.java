@@ -1,36 +1,39 @@
 import java.math.BigInteger;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class ConsistentHashing {
 
-    private final MessageDigest digest;
+    private final HashFunction hashFunction;
 
     public ConsistentHashing() throws NoSuchAlgorithmException {
-        this.digest = MessageDigest.getInstance("MD5");
+        this(new MD5Hash());
+    }
+
+    public ConsistentHashing(HashFunction hashFunction) {
+        this.hashFunction = hashFunction;
     }
 
     /**
-     * Computes the MD5 hash of the given key.
+     * Computes the hash of the given key.
      *
-     * @param key The string for which to compute the MD5 hash.
-     * @return The MD5 hash of the input key as a 32-character hexadecimal string.
+     * @param key The string for which to compute the hash.
+     * @return The hash of the input key as a 32-character hexadecimal string.
      */
     public String getMD5Hash(String key) {
-        byte[] hash = this.digest.digest(key.getBytes());
+        byte[] hash = this.hashFunction.hash(key.getBytes());
         BigInteger bigInteger = new BigInteger(1, hash);
         return String.format("%032X", bigInteger);
     }
 
     /**
-     * Computes the MD5 hash of the IP and port combination.
+     * Computes the hash of the IP and port combination.
      *
      * @param IP   The IP address as a string.
      * @param port The port as a string.
-     * @return The MD5 hash of the IP and port combination as a 32-character hexadecimal string.
+     * @return The hash of the IP and port combination as a 32-character hexadecimal string.
      */
     public String getMD5Hash(String IP, String port) {
-        byte[] hash = this.digest.digest((IP + ":" + port).getBytes());
+        byte[] hash = this.hashFunction.hash((IP + ":" + port).getBytes());
         BigInteger bigInteger = new BigInteger(1, hash);
         return String.format("%032X", bigInteger);
     }
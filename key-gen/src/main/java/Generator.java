@@ -22,6 +22,15 @@ public class Generator {
         }
     }
 
+    /**
+     * Generates keys for a cluster that places keys with the given hash function.
+     *
+     * @param hashFunction The hash function of the cluster.
+     */
+    public Generator(HashFunction hashFunction) {
+        this.consistentHashing = new ConsistentHashing(hashFunction);
+    }
+
     public void findMS4IPPortCombos() {
         for (int i = 1024; i <= 65535; i++) {
             String hash = consistentHashing.getMD5Hash("127.0.0.1", Integer.toString(i));
@@ -178,7 +187,8 @@ public class Generator {
     }
 
     public static void main(String[] args) {
-        Generator generator = new Generator();
+        // the hash function of the cluster can be passed as first argument, md5 by default
+        Generator generator = args.length > 0 ? new Generator(HashFunction.forName(args[0])) : new Generator();
         String folder = "/Users/carl/IdeaProjects/ms5/benchmarking/demo";
         generator.generateHashInRange(
                 "00000000000000000000000000000000",
@@ -0,0 +1,32 @@
+/**
+ * Places keys and servers on the 128-bit hash ring. The generated keys only fall into the requested ranges
+ * if the cluster uses the same hash function.
+ */
+public interface HashFunction {
+    String MD5 = "md5";
+    String MURMUR3 = "murmur3";
+
+    String getName();
+
+    /**
+     * Hashes the bytes of a key.
+     *
+     * @param bytes The bytes to hash.
+     * @return The 16 bytes of the hash, most significant byte first.
+     */
+    byte[] hash(byte[] bytes);
+
+    /**
+     * Looks up a hash function by its name.
+     *
+     * @param name The name of the hash function, md5 or murmur3.
+     * @return The hash function, or null if there is no hash function with that name.
+     */
+    static HashFunction forName(String name) {
+        return switch (name.toLowerCase()) {
+            case MD5 -> new MD5Hash();
+            case MURMUR3 -> new Murmur3Hash();
+            default -> null;
+        };
+    }
+}
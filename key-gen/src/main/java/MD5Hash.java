@@ -0,0 +1,24 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class MD5Hash implements HashFunction {
+    private final MessageDigest digest;
+
+    public MD5Hash() {
+        try {
+            this.digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return MD5;
+    }
+
+    @Override
+    public byte[] hash(byte[] bytes) {
+        return digest.digest(bytes);
+    }
+}
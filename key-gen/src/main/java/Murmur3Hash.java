@@ -0,0 +1,88 @@
+/**
+ * The 128-bit x64 variant of MurmurHash3 with seed 0, as the servers use it. The first 64-bit half of the hash
+ * makes up the most significant bytes.
+ */
+public class Murmur3Hash implements HashFunction {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    @Override
+    public String getName() {
+        return MURMUR3;
+    }
+
+    @Override
+    public byte[] hash(byte[] bytes) {
+        int length = bytes.length;
+        long h1 = 0;
+        long h2 = 0;
+        int blocks = length >>> 4;
+        for (int i = 0; i < blocks; i++) {
+            int index = i << 4;
+            h1 ^= mixK1(getLong(bytes, index));
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(getLong(bytes, index + 8));
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = blocks << 4;
+        int remaining = length & 15;
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = remaining - 1; i >= 8; i--) {
+            k2 ^= (long) (bytes[tail + i] & 0xFF) << ((i - 8) << 3);
+        }
+        for (int i = Math.min(remaining, 8) - 1; i >= 0; i--) {
+            k1 ^= (long) (bytes[tail + i] & 0xFF) << (i << 3);
+        }
+        if (remaining > 8) {
+            h2 ^= mixK2(k2);
+        }
+        if (remaining > 0) {
+            h1 ^= mixK1(k1);
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        byte[] hash = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            hash[i] = (byte) (h1 >>> (56 - (i << 3)));
+            hash[i + 8] = (byte) (h2 >>> (56 - (i << 3)));
+        }
+        return hash;
+    }
+
+    private static long mixK1(long k1) {
+        return Long.rotateLeft(k1 * C1, 31) * C2;
+    }
+
+    private static long mixK2(long k2) {
+        return Long.rotateLeft(k2 * C2, 33) * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long getLong(byte[] bytes, int index) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (bytes[index + i] & 0xFF);
+        }
+        return value;
+    }
+}
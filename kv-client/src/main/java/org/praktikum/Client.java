@@ -1,6 +1,9 @@
 package org.praktikum;
 
 import org.praktikum.resources.ConsistentHashing;
+import org.praktikum.resources.HashFunction;
+import org.praktikum.resources.HashKey;
+import org.praktikum.resources.NodeStats;
 import org.praktikum.resources.RingList;
 import sun.misc.Signal;
 import sun.misc.SignalHandler;
@@ -11,9 +14,12 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -22,7 +28,8 @@ import java.util.logging.SimpleFormatter;
 public class Client implements SignalHandler {
     private Socket client;
     private boolean isConnected = false;
-    private InputStream in;
+    // read by the receive threads of hedged gets to tell a closed losing connection from a failure
+    private volatile InputStream in;
     private OutputStream out;
     private Level logLevel = log.getLevel();
     private static final String PROMPT = "EchoClient> ";
@@ -36,7 +43,31 @@ public class Client implements SignalHandler {
     private static boolean EXECUTE = true;
 
     private int retryCount = 0;
+    private boolean hedgedReads = false;
+    // set once a server redirected a read to the tail of its chain, i.e. the servers replicate in chain mode
+    private boolean readsFromTail = false;
+    // epoch of the metadata the ring list was built from and the latest epoch a server reported
+    private long metadataEpoch = -1;
+    private long serverEpoch = -1;
+    private boolean epochTracked = false;
+    // set while a request is resent to the server a redirect named, a second redirect falls back to fetching the ring
+    private boolean redirected = false;
+    // redirects and metadata refreshes of the current request, a misconfigured ring would otherwise redirect forever
+    private int redirectCount = 0;
+    private static final int MAX_REDIRECTS = 5;
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private static final int HEDGE_MIN_SAMPLES = 20;
+    private static final long HEDGE_DEFAULT_DELAY = 50_000_000;
+    // connecting to another server (connect, greeting, track_epoch) takes about as long as this many requests
+    private static final int RECONNECT_REQUESTS = 3;
+    private static final ExecutorService hedgeExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
     private static final Random random = new Random(24058300);
+    // shared by all clients of this process, so concurrent clients see each other's outstanding requests
+    private static final Map<String, NodeStats> nodeStats = new ConcurrentHashMap<>();
 
 
     /**
@@ -45,16 +76,12 @@ public class Client implements SignalHandler {
      * It also registers a signal handler for the TERM signal.
      */
     public Client() {
-        try {
-            hashing = new ConsistentHashing();
-            ringList = new RingList();
-            Runtime runtime = Runtime.getRuntime();
-            runtime.addShutdownHook(new Thread(this::closeConnection));
-            Signal termSignal = new Signal("TERM");
-            Signal.handle(termSignal, this);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        hashing = new ConsistentHashing();
+        ringList = new RingList();
+        Runtime runtime = Runtime.getRuntime();
+        runtime.addShutdownHook(new Thread(this::closeConnection));
+        Signal termSignal = new Signal("TERM");
+        Signal.handle(termSignal, this);
     }
 
     /**
@@ -152,8 +179,16 @@ public class Client implements SignalHandler {
                 }
 
                 updateClientConnectionIfRequiredGet(tokens[1]);
+                if (hedgedReads) {
+                    hedgedGet(tokens);
+                    break;
+                }
+                NodeStats stats = getNodeStats(client.getInetAddress().getHostAddress(), Integer.toString(client.getPort()));
+                long start = System.nanoTime();
+                stats.requestStarted();
                 get(tokens[1]);
                 handleServerResponse(tokens);
+                stats.requestFinished(System.nanoTime() - start);
             }
             case "delete" -> {
                 if (!isConnected) {
@@ -205,6 +240,26 @@ public class Client implements SignalHandler {
                     error();
                 }
             }
+            case "hedge" -> {
+                if (tokens.length != 2 || (!tokens[1].equals("on") && !tokens[1].equals("off"))) {
+                    error();
+                    break;
+                }
+                hedgedReads = tokens[1].equals("on");
+                print("Hedged reads are now " + tokens[1]);
+            }
+            case "switch_hash" -> {
+                if (!isConnected) {
+                    print("You aren't connected to a server yet! Please connect to a server using the connect command first.");
+                    break;
+                }
+                if (tokens.length != 2) {
+                    error();
+                    break;
+                }
+                sendString("switch_hash " + tokens[1]);
+                handleServerResponse(tokens);
+            }
             case "help" -> printHelpText();
             case "quit" -> {
                 print("The client application will shutdown now.");
@@ -250,7 +305,7 @@ public class Client implements SignalHandler {
             return;
         }
 
-        String keyHash = hashing.getMD5Hash(key);
+        HashKey keyHash = hashing.getHashKey(key);
         RingList.Node node = ringList.findByHashKey(keyHash);
 
         if (node != null && (!client.getInetAddress().getHostAddress().equals(node.getIP()) || !Integer.toString(client.getPort()).equals(node.getPort()))) {
@@ -261,7 +316,13 @@ public class Client implements SignalHandler {
     }
 
     /**
-     * Updates the client connection based on the provided key and handles the replica logic.
+     * Updates the client connection for a read of the provided key. Any of the responsible server and its two
+     * replicas can answer the read, so two of them are sampled at random and the one with the lower expected cost
+     * (latency average weighted by outstanding requests) is chosen. This spreads reads over all replicas
+     * while still avoiding slow or busy servers.
+     * <p>
+     * The client only has a single connection, so if the connected server can answer the read, it is always one of
+     * the two samples and the client only switches if the other server is cheaper even including the reconnect.
      *
      * @param key The key to determine the appropriate server and replica logic.
      */
@@ -271,17 +332,240 @@ public class Client implements SignalHandler {
             return;
         }
 
-        String keyHash = hashing.getMD5Hash(key);
+        HashKey keyHash = hashing.getHashKey(key);
+        List<RingList.Node> candidates = ringList.getReadNodes(keyHash);
+        if (candidates.isEmpty()) {
+            return;
+        }
+        RingList.Node node = candidates.get(0);
+        if (readsFromTail) {
+            // in chain mode only the tail answers reads, the other servers would redirect anyway
+            node = candidates.get(candidates.size() - 1);
+        } else if (candidates.size() > 1) {
+            int first = -1;
+            for (int i = 0; i < candidates.size(); i++) {
+                if (isConnectedTo(candidates.get(i))) {
+                    first = i;
+                }
+            }
+            boolean connectedFirst = first >= 0;
+            if (!connectedFirst) {
+                first = random.nextInt(candidates.size());
+            }
+            int second = (first + 1 + random.nextInt(candidates.size() - 1)) % candidates.size();
+            RingList.Node firstNode = candidates.get(first);
+            RingList.Node secondNode = candidates.get(second);
+            NodeStats secondStats = getNodeStats(secondNode.getIP(), secondNode.getPort());
+            double firstCost = getNodeStats(firstNode.getIP(), firstNode.getPort()).getCost();
+            double secondCost = secondStats.getCost();
+            if (connectedFirst) {
+                secondCost += RECONNECT_REQUESTS * secondStats.getAverageLatency();
+            }
+            node = firstCost <= secondCost ? firstNode : secondNode;
+        }
 
-        // RingList.Node random_replica = ringList.getRandomNodeFromKey(keyHash);
-        RingList.Node node = ringList.findByHashKey(keyHash);
-        if (ringList.getFromReplica(client.getInetAddress().getHostAddress(), Integer.toString(client.getPort()), keyHash)) {
+        if (!isConnectedTo(node)) {
             int port = Integer.parseInt(node.getPort());
             closeConnection();
             connect(node.getIP(), port);
         }
     }
 
+    /**
+     * Checks whether the client is currently connected to a server.
+     *
+     * @param node The server.
+     * @return true if the connection of the client goes to the server, false otherwise.
+     */
+    private boolean isConnectedTo(RingList.Node node) {
+        return isConnected && client.getInetAddress().getHostAddress().equals(node.getIP()) && Integer.toString(client.getPort()).equals(node.getPort());
+    }
+
+    /**
+     * Sends a get request to the connected server and, if it doesn't answer within the hedge delay, sends the same
+     * request to one of the replicas of the key over a second connection. The first answer is used.
+     * The hedge delay is the 95th percentile of the connected server's recent latencies, so only the slowest
+     * few percent of the reads are duplicated. If the replica answers first, it becomes the connected server.
+     *
+     * @param tokens Tokens of the get command.
+     */
+    private void hedgedGet(String[] tokens) {
+        String ip = client.getInetAddress().getHostAddress();
+        String port = Integer.toString(client.getPort());
+        NodeStats stats = getNodeStats(ip, port);
+        long hedgeDelay = stats.getLatencyPercentile(HEDGE_PERCENTILE, HEDGE_MIN_SAMPLES);
+        if (hedgeDelay < 0) {
+            hedgeDelay = HEDGE_DEFAULT_DELAY;
+        }
+
+        long start = System.nanoTime();
+        stats.requestStarted();
+        get(tokens[1]);
+        InputStream primaryIn = in;
+        Future<byte[]> primaryResponse = hedgeExecutor.submit(() -> receive(primaryIn));
+        try {
+            byte[] received = primaryResponse.get(hedgeDelay, TimeUnit.NANOSECONDS);
+            stats.requestFinished(System.nanoTime() - start);
+            handleServerResponse(tokens, received);
+            return;
+        } catch (TimeoutException e) {
+            // the connected server is slow, the request is hedged below
+        } catch (InterruptedException | ExecutionException e) {
+            stats.requestFinished(System.nanoTime() - start);
+            handleServerResponse(tokens, null);
+            return;
+        }
+
+        RingList.Node hedgeNode = null;
+        // in chain mode no other server may answer the read
+        List<RingList.Node> hedgeCandidates = readsFromTail ? List.of() : ringList.getReadNodes(hashing.getHashKey(tokens[1]));
+        for (RingList.Node node : hedgeCandidates) {
+            boolean isConnectedNode = node.getIP().equals(ip) && node.getPort().equals(port);
+            if (!isConnectedNode && (hedgeNode == null || getNodeStats(node.getIP(), node.getPort()).getCost() < getNodeStats(hedgeNode.getIP(), hedgeNode.getPort()).getCost())) {
+                hedgeNode = node;
+            }
+        }
+        if (hedgeNode == null) {
+            awaitPrimaryResponse(tokens, primaryResponse, stats, start);
+            return;
+        }
+
+        log.info("Hedging get " + tokens[1] + " to " + hedgeNode.getIP() + ":" + hedgeNode.getPort());
+        NodeStats hedgeStats = getNodeStats(hedgeNode.getIP(), hedgeNode.getPort());
+        Socket hedgeSocket;
+        InputStream hedgeIn;
+        try {
+            hedgeSocket = new Socket(hedgeNode.getIP(), Integer.parseInt(hedgeNode.getPort()));
+            hedgeIn = hedgeSocket.getInputStream();
+            // this is the Connected successfully! message
+            receive(hedgeIn);
+            // epoch tracking is requested together with the get, so an adopted hedge connection keeps tracking epochs
+            hedgeSocket.getOutputStream().write(("track_epoch\r\nget " + tokens[1] + "\r\n").getBytes(StandardCharsets.UTF_8));
+            hedgeSocket.getOutputStream().flush();
+        } catch (IOException e) {
+            log.warning("Couldn't hedge get to " + hedgeNode.getIP() + ":" + hedgeNode.getPort());
+            awaitPrimaryResponse(tokens, primaryResponse, stats, start);
+            return;
+        }
+        long hedgeStart = System.nanoTime();
+        hedgeStats.requestStarted();
+
+        // whichever connection answers first completes the winner, the other one is closed
+        // if neither answers, the winner is completed with null once both attempts failed
+        CompletableFuture<Socket> winner = new CompletableFuture<>();
+        AtomicInteger failedAttempts = new AtomicInteger();
+        Runnable attemptFailed = () -> {
+            if (failedAttempts.incrementAndGet() == 2) {
+                winner.complete(null);
+            }
+        };
+        Socket primarySocket = client;
+        CompletableFuture<byte[]> hedgeTracking = CompletableFuture.supplyAsync(() -> receive(hedgeIn), hedgeExecutor);
+        CompletableFuture<byte[]> hedgeResponse = hedgeTracking.thenApplyAsync(tracking -> tracking == null ? null : receive(hedgeIn), hedgeExecutor);
+        hedgeExecutor.submit(() -> {
+            try {
+                if (primaryResponse.get() != null) {
+                    winner.complete(primarySocket);
+                    return;
+                }
+            } catch (InterruptedException | ExecutionException ignored) {
+            }
+            attemptFailed.run();
+        });
+        hedgeResponse.thenAccept(received -> {
+            if (received != null) {
+                winner.complete(hedgeSocket);
+            } else {
+                attemptFailed.run();
+            }
+        });
+        try {
+            Socket winningSocket = winner.get();
+            if (winningSocket == null) {
+                stats.requestFinished(System.nanoTime() - start);
+                hedgeStats.requestFinished(System.nanoTime() - hedgeStart);
+                hedgeSocket.close();
+                log.warning("Neither " + ip + ":" + port + " nor the hedge answered get " + tokens[1]);
+                handleServerResponse(tokens, null);
+            } else if (winningSocket == hedgeSocket) {
+                byte[] received = hedgeResponse.get();
+                hedgeStats.requestFinished(System.nanoTime() - hedgeStart);
+                // the primary is at least this slow, which is recorded so future hedges start earlier
+                stats.requestFinished(System.nanoTime() - start);
+                OutputStream primaryOut = out;
+                adoptConnection(hedgeSocket, hedgeTracking.get());
+                // closed after the hedge was adopted, so the pending receive of the primary fails silently
+                closeLosingConnection(primarySocket, primaryOut);
+                handleServerResponse(tokens, received);
+            } else {
+                stats.requestFinished(System.nanoTime() - start);
+                hedgeStats.requestFinished(System.nanoTime() - hedgeStart);
+                hedgeSocket.close();
+                handleServerResponse(tokens, primaryResponse.get());
+            }
+        } catch (InterruptedException | ExecutionException | IOException e) {
+            log.warning("Error during hedged get: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits for the response of the connected server after a get couldn't be hedged.
+     */
+    private void awaitPrimaryResponse(String[] tokens, Future<byte[]> primaryResponse, NodeStats stats, long start) {
+        try {
+            byte[] received = primaryResponse.get();
+            stats.requestFinished(System.nanoTime() - start);
+            handleServerResponse(tokens, received);
+        } catch (InterruptedException | ExecutionException e) {
+            stats.requestFinished(System.nanoTime() - start);
+            handleServerResponse(tokens, null);
+        }
+    }
+
+    /**
+     * Closes the connection of a server that lost a hedged read and is no longer the connection of the client.
+     *
+     * @param socket The socket of the connection.
+     * @param out    The output stream of the socket.
+     */
+    private void closeLosingConnection(Socket socket, OutputStream out) {
+        try {
+            out.write("closing_client\r\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            socket.close();
+            log.info("Disconnected from server " + socket.getInetAddress().getHostName() + ":" + socket.getPort());
+        } catch (IOException e) {
+            log.warning("Error while trying to disconnect from " + socket.getInetAddress().getHostName() + ":" + socket.getPort());
+        }
+    }
+
+    /**
+     * Uses an already established socket, whose greeting was already consumed, as the connection of the client.
+     *
+     * @param socket        The socket to use.
+     * @param trackingReply The reply of the server to track_epoch on this socket.
+     * @throws IOException If the streams of the socket can't be opened.
+     */
+    private void adoptConnection(Socket socket, byte[] trackingReply) throws IOException {
+        client = socket;
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+        isConnected = true;
+        handleTrackEpochReply(trackingReply);
+        log.info("Connected to server at " + client.getInetAddress().getHostName() + ":" + client.getPort());
+    }
+
+    /**
+     * Returns the statistics of a server, creating them on first use.
+     *
+     * @param ip   The IP address of the server.
+     * @param port The port of the server.
+     * @return The statistics of the server.
+     */
+    private static NodeStats getNodeStats(String ip, String port) {
+        return nodeStats.computeIfAbsent(ip + ":" + port, k -> new NodeStats());
+    }
+
     /**
      * Retrieves and prints the server's response.
      */
@@ -319,10 +603,13 @@ public class Client implements SignalHandler {
             isConnected = true;
 
             log.info("Connected to server at " + client.getInetAddress().getHostName() + ":" + client.getPort());
+            // sent before the greeting arrives, so tracking the epoch doesn't cost a round trip of its own
+            sendString("track_epoch");
             byte[] received = receive();
             if (received != null) {
                 System.out.print(PROMPT + new String(received));
             }
+            handleTrackEpochReply(receive());
 
         } catch (IOException e) {
             print("An error occurred while the creating the connection! Please try again.");
@@ -356,9 +643,18 @@ public class Client implements SignalHandler {
      * @param tokens Tokens of the executed command.
      */
     private void handleServerResponse(String[] tokens) {
-        byte[] received = receive();
+        handleServerResponse(tokens, receive());
+    }
+
+    /**
+     * Handles a response the server already sent after a command execution.
+     *
+     * @param tokens   Tokens of the executed command.
+     * @param received The received response, or null if nothing was received.
+     */
+    private void handleServerResponse(String[] tokens, byte[] received) {
         if (received != null) {
-            String receivedString = new String(received);
+            String receivedString = stripEpoch(new String(received));
             if (receivedString.startsWith("server_stopped")) {
                 try {
                     Thread.sleep(getBackoff() * 1000);
@@ -366,29 +662,125 @@ public class Client implements SignalHandler {
                     throw new RuntimeException(e);
                 }
                 executeCommand(tokens);
+            } else if (receivedString.startsWith("server_not_responsible") && ++redirectCount > MAX_REDIRECTS) {
+                print("The request was redirected " + MAX_REDIRECTS + " times without reaching a responsible server. Please try again later.");
+                redirected = false;
+                redirectCount = 0;
+            } else if (receivedString.startsWith("server_not_responsible ") && !redirected) {
+                String[] redirect = receivedString.trim().split(" ");
+                String[] address = redirect[1].split(":");
+                if (redirect.length > 2) {
+                    // the server named the owner of the key and the epoch of the ring it looked the owner up in
+                    serverEpoch = Math.max(serverEpoch, Long.parseLong(redirect[2]));
+                } else {
+                    // the server named the tail of the chain that answers the read
+                    readsFromTail = true;
+                }
+                redirected = true;
+                closeConnection();
+                connect(address[0], Integer.parseInt(address[1]));
+                resend(tokens);
+                handleServerResponse(tokens);
+                redirected = false;
             } else if (receivedString.startsWith("server_not_responsible")) {
                 //System.out.print(PROMPT + receivedString);
-                requestKeyRange();
-                handleKeyRangeResponse();
+                redirected = false;
+                refreshMetaData();
                 executeCommand(tokens);
             } else if (receivedString.startsWith("server_write_lock")) {
                 print("The server is currently write locked. Please try again later.");
+                this.redirectCount = 0;
             } else if (receivedString.startsWith("keyrange_success")) {
                 String[] keyRangeData = receivedString.split("keyrange_success ");
                 if (keyRangeData[1] != null) {
                     ringList.parseAndUpdateMetaData(keyRangeData[1]);
+                    metadataEpoch = serverEpoch;
                 } else {
                     log.warning("There was an error while parsing the received keyranges.");
                 }
                 System.out.print(PROMPT + receivedString);
                 this.retryCount = 0;
+                this.redirectCount = 0;
             } else {
                 System.out.print(PROMPT + receivedString);
                 this.retryCount = 0;
+                this.redirectCount = 0;
+                if (serverEpoch > metadataEpoch) {
+                    // the ring changed since the metadata was fetched, refresh it before the next request is misrouted
+                    refreshMetaData();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a put, get or delete again after the client was redirected to another server.
+     *
+     * @param tokens Tokens of the executed command.
+     */
+    private void resend(String[] tokens) {
+        switch (tokens[0]) {
+            case "put" -> put(tokens[1], tokens[2]);
+            case "get" -> get(tokens[1]);
+            case "delete" -> delete(tokens[1]);
+        }
+    }
+
+    /**
+     * Fetches the key ranges and the hash function of the cluster. The hash function only changes together
+     * with the ring, when the cluster switches to another hash function.
+     */
+    private void refreshMetaData() {
+        requestKeyRange();
+        handleKeyRangeResponse();
+        sendString("hash_function");
+        byte[] received = receive();
+        if (received != null) {
+            String[] reply = stripEpoch(new String(received)).trim().split(" ");
+            HashFunction hashFunction = reply.length == 2 && reply[0].equals("hash_function") ? HashFunction.forName(reply[1]) : null;
+            if (hashFunction != null) {
+                ConsistentHashing.setHashFunction(hashFunction);
             }
         }
     }
 
+    /**
+     * Handles the reply to track_epoch, which every new connection sends once to make the server append its metadata
+     * epoch to every response. Servers that don't know the command answer with an error and the client keeps working without epochs.
+     *
+     * @param received The reply of the server, or null if nothing was received.
+     */
+    private void handleTrackEpochReply(byte[] received) {
+        String[] reply = received == null ? new String[0] : new String(received).trim().split(" ");
+        epochTracked = reply.length == 2 && reply[0].equals("track_epoch_enabled");
+        if (epochTracked) {
+            serverEpoch = Long.parseLong(reply[1]);
+        }
+    }
+
+    /**
+     * Removes the epoch a server appended to a response and remembers it.
+     *
+     * @param response The response including the line break.
+     * @return The response without the epoch.
+     */
+    private String stripEpoch(String response) {
+        if (!epochTracked) {
+            return response;
+        }
+        String trimmed = response.stripTrailing();
+        int index = trimmed.lastIndexOf(" @");
+        if (index < 0) {
+            return response;
+        }
+        try {
+            serverEpoch = Math.max(serverEpoch, Long.parseLong(trimmed.substring(index + 2)));
+        } catch (NumberFormatException e) {
+            return response;
+        }
+        return trimmed.substring(0, index) + "\r\n";
+    }
+
     /**
      * Computes the exponential backoff time with jitter to handle retries.
      *
@@ -407,11 +799,12 @@ public class Client implements SignalHandler {
     private void handleKeyRangeResponse() {
         byte[] received = receive();
         if (received != null) {
-            String receivedString = new String(received);
+            String receivedString = stripEpoch(new String(received));
             System.out.print(PROMPT + receivedString);
             String[] keyRangeData = receivedString.split("keyrange_success ");
             if (keyRangeData[1] != null) {
                 ringList.parseAndUpdateMetaData(keyRangeData[1]);
+                metadataEpoch = serverEpoch;
             } else {
                 log.warning("There was an error while parsing the received keyranges.");
             }
@@ -427,6 +820,16 @@ public class Client implements SignalHandler {
         if (!isConnected) {
             return null;
         }
+        return receive(in);
+    }
+
+    /**
+     * Retrieves data sent by a server over the given stream.
+     *
+     * @param in The input stream of the connection to the server.
+     * @return A byte array containing the received data, or null if there's a connection issue.
+     */
+    private byte[] receive(InputStream in) {
         try {
             byte prev = (byte) in.read();
             int i = 1;
@@ -445,7 +848,10 @@ public class Client implements SignalHandler {
             log.info("Received from server: " + new String(returnArray));
             return returnArray;
         } catch (IOException e) {
-            print("An error occurred while receiving data from the server.");
+            // connections closed after losing a hedged read fail silently
+            if (in == this.in) {
+                print("An error occurred while receiving data from the server.");
+            }
         }
         return null;
     }
@@ -562,6 +968,18 @@ public class Client implements SignalHandler {
                 "logLevel INFO",
                 "level - Loglevel (ALL/CONFIG/FINE/FINEST/INFO/OFF/SEVERE/WARNING)"
         );
+        printHelpCommand(
+                "hedge", "Sends a duplicate get to a replica if the server is slower than usual and uses the first answer",
+                "hedge <on|off>",
+                "hedge on",
+                "on|off - Enables or disables hedged reads"
+        );
+        printHelpCommand(
+                "switch_hash", "Moves the whole cluster to another hash function, the servers redistribute all keys meanwhile",
+                "switch_hash <name>",
+                "switch_hash murmur3",
+                "name - The hash function (md5/murmur3)"
+        );
         printHelpCommand(
                 "help",
                 "Prints help text",
@@ -1,32 +1,40 @@
 package org.praktikum.resources;
 
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
 
+/**
+ * Hashes keys onto the ring with the hash function of the cluster. The hash function is shared by all instances
+ * of the process and is replaced once the servers report that the cluster switched to another hash function.
+ */
 public class ConsistentHashing {
+    private static volatile HashFunction hashFunction = new MD5Hash();
 
-    private MessageDigest digest;
+    public static HashFunction getHashFunction() {
+        return hashFunction;
+    }
+
+    public static void setHashFunction(HashFunction hashFunction) {
+        ConsistentHashing.hashFunction = hashFunction;
+    }
 
     /**
-     * Constructor for the ConsistentHashing class.
-     * Initializes the MessageDigest with the MD5 hashing algorithm.
+     * Computes the hash of the given key.
      *
-     * @throws NoSuchAlgorithmException If the MD5 hashing algorithm is not available in the environment.
+     * @param key The string for which to compute the hash.
+     * @return The hash of the input key as a 32-character hexadecimal string.
      */
-    public ConsistentHashing() throws NoSuchAlgorithmException {
-        this.digest = MessageDigest.getInstance("MD5");
+    public String getMD5Hash(String key) {
+        return getHashKey(key).toHex();
     }
 
     /**
-     * Computes the MD5 hash of the given key.
+     * Computes the hash of the given key as a position on the hash ring.
      *
-     * @param key The string for which to compute the MD5 hash.
-     * @return The MD5 hash of the input key as a 32-character hexadecimal string.
+     * @param key The string for which to compute the hash.
+     * @return The hash of the input key.
      */
-    public String getMD5Hash(String key) {
-        byte[] hash = this.digest.digest(key.getBytes());
-        BigInteger bigInteger = new BigInteger(1, hash);
-        return String.format("%032X", bigInteger);
+    public HashKey getHashKey(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return hashFunction.hash(bytes, 0, bytes.length);
     }
 }
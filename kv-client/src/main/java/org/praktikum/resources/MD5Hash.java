@@ -0,0 +1,38 @@
+package org.praktikum.resources;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The MD5 digest as hash function. A MessageDigest isn't thread-safe, so every thread uses its own digest and buffer.
+ */
+public class MD5Hash implements HashFunction {
+    private static final int DIGEST_LENGTH = 16;
+    private static final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    });
+    private static final ThreadLocal<byte[]> digestBuffer = ThreadLocal.withInitial(() -> new byte[DIGEST_LENGTH]);
+
+    @Override
+    public String getName() {
+        return MD5;
+    }
+
+    @Override
+    public HashKey hash(byte[] bytes, int offset, int length) {
+        MessageDigest md5 = digest.get();
+        byte[] output = digestBuffer.get();
+        md5.update(bytes, offset, length);
+        try {
+            md5.digest(output, 0, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);
+        }
+        return HashKey.fromDigest(output);
+    }
+}
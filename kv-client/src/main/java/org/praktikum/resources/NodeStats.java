@@ -0,0 +1,79 @@
+package org.praktikum.resources;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Latency and load statistics the client observed for a single server.
+ * The latency is an exponentially weighted moving average, so recent requests weigh more than old ones.
+ * Additionally, the most recent latencies are kept as a sample of the server's latency distribution.
+ */
+public class NodeStats {
+    private static final double ALPHA = 0.3;
+    private static final int SAMPLE_SIZE = 128;
+
+    private final AtomicInteger outstandingRequests = new AtomicInteger();
+    private final long[] latencySamples = new long[SAMPLE_SIZE];
+    private int sampleCount = 0;
+    private double averageLatency = 0;
+    private boolean hasSamples = false;
+
+    /**
+     * Marks the start of a request to the server.
+     */
+    public void requestStarted() {
+        outstandingRequests.incrementAndGet();
+    }
+
+    /**
+     * Marks the end of a request to the server and adds its latency to the moving average.
+     *
+     * @param latencyNanos The latency of the request in nanoseconds.
+     */
+    public synchronized void requestFinished(long latencyNanos) {
+        outstandingRequests.decrementAndGet();
+        latencySamples[sampleCount++ % SAMPLE_SIZE] = latencyNanos;
+        if (hasSamples) {
+            averageLatency = ALPHA * latencyNanos + (1 - ALPHA) * averageLatency;
+        } else {
+            averageLatency = latencyNanos;
+            hasSamples = true;
+        }
+    }
+
+    /**
+     * Computes the expected cost of sending one more request to the server.
+     * Servers without samples cost nothing, so every server gets probed at least once.
+     *
+     * @return The average latency weighted by the number of outstanding requests.
+     */
+    public synchronized double getCost() {
+        return averageLatency * (outstandingRequests.get() + 1);
+    }
+
+    /**
+     * Computes a percentile of the most recent latencies of the server.
+     *
+     * @param percentile   The percentile between 0 and 1, e.g. 0.95.
+     * @param minSamples   The number of samples required for a meaningful result.
+     * @return The latency in nanoseconds at the percentile, or -1 if there are fewer samples than required.
+     */
+    public synchronized long getLatencyPercentile(double percentile, int minSamples) {
+        int count = Math.min(sampleCount, SAMPLE_SIZE);
+        if (count < minSamples || count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(latencySamples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+
+    public synchronized double getAverageLatency() {
+        return averageLatency;
+    }
+
+    public int getOutstandingRequests() {
+        return outstandingRequests.get();
+    }
+}
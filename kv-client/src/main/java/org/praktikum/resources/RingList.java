@@ -1,25 +1,15 @@
 package org.praktikum.resources;
 
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class RingList {
     Node head;
     int size = 0;
 
-    private final MessageDigest digest;
-
-    /**
-     * Default constructor that initializes the MessageDigest with the MD5 hashing algorithm.
-     *
-     * @throws NoSuchAlgorithmException if the MD5 hashing algorithm is not available.
-     */
-    public RingList() throws NoSuchAlgorithmException {
-        this.digest = MessageDigest.getInstance("MD5");
-    }
-
+    private final ConsistentHashing hashing = new ConsistentHashing();
 
     public int getSize() {
         return size;
@@ -27,7 +17,7 @@ public class RingList {
 
     /**
      * Adds a new node to the ringlist based on the provided IP, port, and hash string.
-     * If the hash string is not provided (i.e., null), the method will compute an MD5 hash
+     * If the hash string is not provided (i.e., null), the method will compute a hash
      * from the given IP and port. If a node with the given hash string already exists,
      * the new node will be positioned next to the existing node.
      *
@@ -42,7 +32,7 @@ public class RingList {
             hashString = getMD5Hash(IP, port);
         }
 
-        Node previousNode = findByHashKey(hashString);
+        Node previousNode = findByHashKey(HashKey.fromHex(hashString));
 
         Node newNode;
         if (previousNode == null) {
@@ -81,7 +71,7 @@ public class RingList {
             return node;
         }
 
-        Node toBeRemovedNode = findByHashKey(hashString);
+        Node toBeRemovedNode = findByHashKey(HashKey.fromHex(hashString));
 
         if (size == 2) {
             Node prev = toBeRemovedNode.getPrev();
@@ -105,16 +95,14 @@ public class RingList {
     }
 
     /**
-     * Generates an MD5 hash for a server's IP and port.
+     * Generates the hash of a server's IP and port.
      *
      * @param IP   The IP address of the server.
      * @param port The port number of the server.
-     * @return A 32-character hexadecimal string representing the MD5 hash of the server's IP and port.
+     * @return A 32-character hexadecimal string representing the hash of the server's IP and port.
      */
     public String getMD5Hash(String IP, String port) {
-        byte[] hash = this.digest.digest((IP + ":" + port).getBytes());
-        BigInteger bigInteger = new BigInteger(1, hash);
-        return String.format("%032X", bigInteger);
+        return hashing.getMD5Hash(IP + ":" + port);
     }
 
     /**
@@ -165,7 +153,7 @@ public class RingList {
      * @param key The hash key to search for.
      * @return The node that matches the key or null if no such node exists.
      */
-    public Node findByHashKey(String key) {
+    public Node findByHashKey(HashKey key) {
         if (size == 0) {
             return null;
         }
@@ -176,14 +164,8 @@ public class RingList {
 
         Node node = head;
         do {
-            if (node.getStartRange().compareTo(key) < 0 && node.getEndRange().compareTo(key) >= 0) {
+            if (node.isResponsibleFor(key)) {
                 return node;
-            } else if (node.getStartRange().compareTo(node.getEndRange()) >= 0) {
-                if (node.getStartRange().compareTo(key) < 0 && node.getEndRange().compareTo(key) <= 0) {
-                    return node;
-                } else if (node.getStartRange().compareTo(key) > 0 && node.getEndRange().compareTo(key) >= 0) {
-                    return node;
-                }
             }
             node = node.getNext();
         } while (node != head);
@@ -212,44 +194,71 @@ public class RingList {
     }
 
     /**
-     * Determines if the node with the specified address and port is one of the potential nodes
-     * that can be used to read the value associated with the given key.
+     * Collects all nodes that can answer a read of the given key, i.e. the responsible node and,
+     * if data is replicated, nodes of the two servers holding the first replicas of the responsible server.
+     * Without virtual nodes these are its two successors.
      *
-     * @param address IP address of the node.
-     * @param port    Port number of the node.
-     * @param key     The hash key to be looked up.
-     * @return true if the node with the given address and port is one of the replicas
-     * that might have the value for the given key.
+     * @param key The hash key to be looked up.
+     * @return The responsible node followed by its replicas, or an empty list if no node is responsible.
      */
-    public boolean getFromReplica(String address, String port, String key) {
-        Node should_node = findByHashKey(key);
-        Node currentNode = findByIPandPort(address, port);
-        Node replica1 = currentNode.next;
-        Node replica2 = replica1.next;
-        return should_node == currentNode || should_node == replica1 || should_node == replica2;
+    public List<Node> getReadNodes(HashKey key) {
+        List<Node> nodes = new ArrayList<>();
+        Node node = findByHashKey(key);
+        if (node == null) {
+            return nodes;
+        }
+        nodes.add(node);
+        if (getServerCount() > 2) {
+            nodes.addAll(findReplicas(node));
+        }
+        return nodes;
     }
 
+    /**
+     * Counts the physical servers of the ring. With virtual nodes a server owns several nodes.
+     *
+     * @return The number of distinct servers.
+     */
+    public int getServerCount() {
+        Set<String> servers = new HashSet<>();
+        if (size > 0) {
+            Node node = head;
+            do {
+                servers.add(node.getIP() + ":" + node.getPort());
+                node = node.next;
+            } while (node != head);
+        }
+        return servers.size();
+    }
 
     /**
-     * Retrieves a random replica node from the ring list for a given key.
-     * If the size of the ring list is greater than 2, it randomly selects among
-     * the primary node and its two replicas; otherwise, it simply returns the primary node.
+     * Finds the first two replicas of a server, i.e. the first two distinct servers following its first node on the ring,
+     * the same way the servers determine them.
      *
-     * @param key The hash key based on which a node is to be selected.
-     * @return The node corresponding to the given hash key or one of its replicas.
+     * @param node A node of the server.
+     * @return A node of each of the two replicas.
      */
-    public Node getRandomNodeFromKey(String key) {
-        if (this.size > 2) {
-            Random random = new Random();
-            int i = random.nextInt(3);
-            if (i == 0) {
-                return findByHashKey(key);
+    private List<Node> findReplicas(Node node) {
+        Node first = node;
+        Node current = head;
+        do {
+            if (current.getIP().equals(node.getIP()) && current.getPort().equals(node.getPort()) && current.getEndKey().compareTo(first.getEndKey()) < 0) {
+                first = current;
             }
-            if (i == 1) {
-                return findByHashKey(key).next;
+            current = current.next;
+        } while (current != head);
+
+        List<Node> replicas = new ArrayList<>();
+        Set<String> found = new HashSet<>();
+        found.add(node.getIP() + ":" + node.getPort());
+        current = first.next;
+        while (replicas.size() < 2 && current != first) {
+            if (found.add(current.getIP() + ":" + current.getPort())) {
+                replicas.add(current);
             }
-            return findByHashKey(key).next.next;
-        } else return findByHashKey(key);
+            current = current.next;
+        }
+        return replicas;
     }
 
     /**
@@ -317,8 +326,8 @@ public class RingList {
         private Node next;
         private String IP;
         private String port;
-        private String startRange;
-        private String endRange;
+        private HashKey startRange;
+        private HashKey endRange;
 
         /**
          * Constructs a standalone node with the given IP, port, and hash range.
@@ -333,8 +342,8 @@ public class RingList {
             this.next = this;
             this.IP = IP;
             this.port = port;
-            this.startRange = endRange;
-            this.endRange = endRange;
+            this.startRange = HashKey.fromHex(endRange);
+            this.endRange = this.startRange;
         }
 
         /**
@@ -355,9 +364,9 @@ public class RingList {
             prev.setPrev(this);
 
 
-            this.startRange = prev.getStartRange();
-            this.endRange = endRange;
-            this.getNext().setStartRange(endRange);
+            this.startRange = prev.getStartKey();
+            this.endRange = HashKey.fromHex(endRange);
+            this.getNext().startRange = this.endRange;
         }
 
         public Node getPrev() {
@@ -393,19 +402,37 @@ public class RingList {
         }
 
         public String getStartRange() {
-            return startRange;
+            return startRange.toHex();
         }
 
         public void setStartRange(String startRange) {
-            this.startRange = startRange;
+            this.startRange = HashKey.fromHex(startRange);
         }
 
         public String getEndRange() {
-            return endRange;
+            return endRange.toHex();
         }
 
         public void setEndRange(String endRange) {
-            this.endRange = endRange;
+            this.endRange = HashKey.fromHex(endRange);
+        }
+
+        public HashKey getStartKey() {
+            return startRange;
+        }
+
+        public HashKey getEndKey() {
+            return endRange;
+        }
+
+        /**
+         * Checks whether the node is responsible for a hash, i.e. whether the hash lies in (startRange, endRange].
+         *
+         * @param hash The hash of a key.
+         * @return true if the node is responsible for the hash, false otherwise.
+         */
+        public boolean isResponsibleFor(HashKey hash) {
+            return hash.isInRange(startRange, endRange);
         }
 
         @Override
@@ -1,7 +1,13 @@
 package org.praktikum;
 
+import org.praktikum.balancing.LoadSummary;
 import org.praktikum.communication.MessageHandler;
+import org.praktikum.replication.ReplicationMode;
+import org.praktikum.replication.WriteAck;
 import org.praktikum.resources.ConsistentHashing;
+import org.praktikum.resources.HashFunction;
+import org.praktikum.resources.HashKey;
+import org.praktikum.resources.KVPair;
 import org.praktikum.resources.PutResult;
 import org.praktikum.resources.RingList;
 import org.praktikum.resources.UsageMetrics;
@@ -10,9 +16,7 @@ import org.praktikum.storage.KVStore;
 import java.io.IOException;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.Date;
-import java.util.Map;
+import java.util.*;
 
 
 public class ClientConnection implements Runnable {
@@ -22,7 +26,11 @@ public class ClientConnection implements Runnable {
     private final ConsistentHashing hashing;
     private final KVServer kvServer;
     private final Socket clientSocket;
-    private final static int OPERATION_COUNT_OFFLOAD_THRESHOLD = 4;
+    private WriteAck writeAck;
+    // if set, every response carries the metadata epoch of this server, so the client notices a stale ring
+    private volatile boolean trackEpoch;
+    // the requests whose latency is reported to the neighbours
+    private static final Set<String> CLIENT_OPERATIONS = Set.of("put", "get", "delete", "mput", "mget", "mdelete");
 
     /**
      * Constructs a new `ClientConnection` instance to handle client interactions.
@@ -38,6 +46,7 @@ public class ClientConnection implements Runnable {
         this.hashing = hashing;
         this.kvServer = kvServer;
         this.clientSocket = clientSocket;
+        this.writeAck = kvServer.getWriteAck();
     }
 
     /**
@@ -46,7 +55,7 @@ public class ClientConnection implements Runnable {
      */
     @Override
     public void run() {
-        messageHandler.send("Connected successfully!");
+        send("Connected successfully!");
         while (isOpen) {
             byte[] input = messageHandler.receive();
             if (input != null) {
@@ -70,6 +79,7 @@ public class ClientConnection implements Runnable {
         if (tokens.length == 0) {
             return;
         }
+        long start = System.nanoTime();
         switch (tokens[0]) {
             case "put" -> {
                 if (tokens.length < 2) {
@@ -85,13 +95,6 @@ public class ClientConnection implements Runnable {
                     }
                 }
                 put(tokens[1], builder.toString());
-                try {
-                    if (kvServer.getUsageMetrics().getOperationsLast30s() >= OPERATION_COUNT_OFFLOAD_THRESHOLD) {
-                        offloadKeys();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
             }
             case "get" -> {
                 if (tokens.length < 2) {
@@ -99,13 +102,6 @@ public class ClientConnection implements Runnable {
                     break;
                 }
                 get(tokens[1]);
-                try {
-                    if (kvServer.getUsageMetrics().getOperationsLast30s() >= OPERATION_COUNT_OFFLOAD_THRESHOLD) {
-                        offloadKeys();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
             }
             case "delete" -> {
                 if (tokens.length < 2 || tokens.length > 3) {
@@ -113,31 +109,55 @@ public class ClientConnection implements Runnable {
                     break;
                 }
                 delete(tokens[1]);
-                try {
-                    if (kvServer.getUsageMetrics().getOperationsLast30s() >= OPERATION_COUNT_OFFLOAD_THRESHOLD) {
-                        offloadKeys();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
+            }
+            case "mput" -> {
+                if (tokens.length < 2) {
+                    error();
+                    break;
                 }
+                String[] dataToSave = Arrays.copyOfRange(tokens, 1, tokens.length);
+                mput(String.join(" ", dataToSave));
+            }
+            case "mget" -> {
+                if (tokens.length < 2) {
+                    error();
+                    break;
+                }
+                mget(Arrays.copyOfRange(tokens, 1, tokens.length));
+            }
+            case "mdelete" -> {
+                if (tokens.length < 2) {
+                    error();
+                    break;
+                }
+                mdelete(Arrays.copyOfRange(tokens, 1, tokens.length));
             }
             case "save_data" -> {
                 String[] dataToSend = Arrays.copyOfRange(tokens, 1, tokens.length);
                 String data = String.join(" ", dataToSend);
                 //System.out.println("Received: save_data " + data);
-                storageUnit.saveData(data, true);
+                synchronized (kvServer.getReplicationManager().getWriteOrderLock()) {
+                    storageUnit.saveData(data, true);
+                    kvServer.getReplicationManager().replicateData(data);
+                }
+                // every chunk of a transfer uses its own connection, the sender only removes its keys after this
+                send("save_data_success");
                 close();
             }
             case "save_data_buckets" -> {
                 String[] dataToSend = Arrays.copyOfRange(tokens, 1, tokens.length);
                 String data = String.join(" ", dataToSend);
                 System.out.println("Received: save_data_buckets " + data);
-                storageUnit.saveData(data, true);
-                kvServer.getFrequencyTable().addDummyBucket(data);
+                synchronized (kvServer.getReplicationManager().getWriteOrderLock()) {
+                    storageUnit.saveData(data, true);
+                    kvServer.getReplicationManager().replicateData(data);
+                }
+                // the keys are counted once the new key range arrives, since the buckets are then rebuilt from the storage
+                send("save_data_buckets_success");
             }
             case "ECS" -> {
                 if (tokens[1].equals("ping_request"))
-                    messageHandler.send("server_is_running");
+                    send("server_is_running");
             }
             case "keyrange" -> sendKeyRange();
             case "server_put" -> {
@@ -151,48 +171,90 @@ public class ClientConnection implements Runnable {
                 }
                 //System.out.println("Received: server_put " + tokens[1] + " " + tokens[2] + " " + tokens[3] + " " + builder);
                 serverPut(tokens[1], tokens[2], tokens[3], builder.toString());
-                close();
             }
             case "server_delete" -> {
                 //System.out.println("server_delete " + tokens[1] + " " + tokens[2] + " " + tokens[3]);
                 serverDelete(tokens[1], tokens[2], tokens[3]);
-                close();
+            }
+            case "server_replicate" -> {
+                if (tokens.length < 7) {
+                    error();
+                    break;
+                }
+                String[] ops = Arrays.copyOfRange(tokens, 6, tokens.length);
+                long incarnation = Long.parseLong(tokens[3]);
+                long firstSequence = Long.parseLong(tokens[4]);
+                int count = Integer.parseInt(tokens[5]);
+                long applied = kvServer.getReplicationManager().applyFrame(tokens[1], tokens[2], incarnation, firstSequence, count, String.join(" ", ops));
+                if (applied >= 0) {
+                    applied = kvServer.getReplicationManager().forwardFrame(tokens[1], tokens[2], incarnation, firstSequence, count, String.join(" ", ops), applied);
+                }
+                send("replicate_ack " + applied);
+            }
+            case "merkle_hashes" -> {
+                if (tokens.length < 5) {
+                    error();
+                    break;
+                }
+                send(kvServer.getReplicationManager().getMerkleHashes(tokens[1], tokens[2], Integer.parseInt(tokens[3]), tokens[4]));
+            }
+            case "merkle_repair" -> {
+                if (tokens.length < 4) {
+                    error();
+                    break;
+                }
+                String[] data = Arrays.copyOfRange(tokens, 4, tokens.length);
+                kvServer.getReplicationManager().repairLeaves(tokens[1], tokens[2], tokens[3], String.join(" ", data));
+                send("merkle_repair_done");
+            }
+            case "set_write_ack" -> {
+                WriteAck level = tokens.length == 2 ? WriteAck.parse(tokens[1]) : null;
+                if (level == null) {
+                    error();
+                    break;
+                }
+                writeAck = level;
+                send("write_ack_set " + level);
+            }
+            case "hash_function" -> send("hash_function " + ConsistentHashing.getHashFunction().getName());
+            // CMD: switch_hash name, the ECS moves the whole cluster to the hash function
+            case "switch_hash" -> {
+                if (tokens.length != 2 || HashFunction.forName(tokens[1]) == null) {
+                    error();
+                    break;
+                }
+                kvServer.getEcsConnection().send("switch_hash " + tokens[1].toLowerCase());
+                send("switch_hash_started " + tokens[1].toLowerCase());
+            }
+            case "track_epoch" -> {
+                trackEpoch = true;
+                messageHandler.send("track_epoch_enabled " + kvServer.getRingList().getEpoch());
             }
             case "keyrange_read" -> sendKeyRangeRead();
             case "closing_client" -> close();
-            case "request_replica_data" -> {
-                String allData = storageUnit.getAllData();
-                messageHandler.send(allData);
-                //System.out.println("Sent (replication data): " + allData);
-            }
-            case "replica_data_update" -> {
-                StringBuilder builder = new StringBuilder();
-                int tokenLength = tokens.length;
-                for (int i = 3; i < tokenLength; i++) {
-                    builder.append(tokens[i]);
-                    if (i != tokenLength - 1) {
-                        builder.append(" ");
-                    }
+            case "request_replica_sync" -> {
+                if (tokens.length < 3) {
+                    error();
+                    break;
                 }
-                String data = builder.toString();
-
-                //System.out.println(new Date().getTime() + " Received: " + tokens[0] + " " + tokens[1] + " " + tokens[2] + " " + data);
-
-                //find corresponding replica store and save the data with append = false (i.e OVERWRITE the old data)
-                String serverIPAndPort = tokens[1] + ":" + tokens[2];
-                KVStore replicaStore = kvServer.getReplicaStores().get(serverIPAndPort);
-                if (replicaStore != null) {
-                    replicaStore.saveData(data, false);
+                for (String response : kvServer.getReplicationManager().createSyncResponse(Long.parseLong(tokens[1]), Long.parseLong(tokens[2]))) {
+                    send(response);
                 }
             }
             case "get_frequency_table" -> {
-                messageHandler.send("\n" + kvServer.getFrequencyTable().toString());
+                send("\n" + kvServer.getFrequencyTable().toString());
             }
             case "get_usage_metrics_info" -> {
-                messageHandler.send(kvServer.getUsageMetrics().info());
+                send(kvServer.getUsageMetrics().info());
             }
             case "get_usage_metrics" -> {
-                messageHandler.send(kvServer.getUsageMetrics().toString());
+                send(kvServer.getUsageMetrics().toString());
+            }
+            case "load_report" -> {
+                LoadSummary summary = LoadSummary.parse(tokens);
+                if (summary != null) {
+                    kvServer.getLoadBalancer().receiveLoadReport(tokens[1] + ":" + tokens[2], summary);
+                }
             }
             case "set_write_lock" -> kvServer.setWriteLock(true);
             case "remove_write_lock" -> kvServer.setWriteLock(false);
@@ -201,13 +263,16 @@ public class ClientConnection implements Runnable {
                 KVServer.log.info("Received unknown command: " + clientRequest);
             }
         }
+        if (CLIENT_OPERATIONS.contains(tokens[0])) {
+            kvServer.getUsageMetrics().recordLatency(System.nanoTime() - start);
+        }
     }
 
     /**
      * Sends an error message to the client indicating an unknown command.
      */
     public void error() {
-        messageHandler.send("error unknown command!");
+        send("error unknown command!");
     }
 
     /**
@@ -216,6 +281,9 @@ public class ClientConnection implements Runnable {
      * @param data The message to send.
      */
     public void send(String data) {
+        if (trackEpoch) {
+            data = data + " @" + kvServer.getRingList().getEpoch();
+        }
         messageHandler.send(data);
     }
 
@@ -243,9 +311,10 @@ public class ClientConnection implements Runnable {
      * @param value The value to be stored or updated.
      */
     private synchronized void serverPut(String ip, String port, String key, String value) {
-        Map<String, KVStore> map = kvServer.getReplicaStores();
-        KVStore kvStore = map.get(ip + ":" + port);
-        kvStore.put(key, value);
+        KVStore kvStore = getReplicaStore(ip, port);
+        if (kvStore != null) {
+            kvStore.put(key, value);
+        }
     }
 
     /**
@@ -257,9 +326,26 @@ public class ClientConnection implements Runnable {
      * @param key  The key to be deleted.
      */
     private synchronized void serverDelete(String ip, String port, String key) {
-        Map<String, KVStore> map = kvServer.getReplicaStores();
-        KVStore kvStore = map.get(ip + ":" + port);
-        kvStore.delete(key);
+        KVStore kvStore = getReplicaStore(ip, port);
+        if (kvStore != null) {
+            kvStore.delete(key);
+        }
+    }
+
+    /**
+     * Looks up the replica store of the given primary server. Since replication connections are kept open,
+     * a write can arrive before this server has processed the metadata that creates the store.
+     *
+     * @param ip   The IP address of the primary server.
+     * @param port The port number of the primary server.
+     * @return The replica store, or null if this server doesn't hold a replica of the primary (yet).
+     */
+    private KVStore getReplicaStore(String ip, String port) {
+        KVStore kvStore = kvServer.getReplicaStores().get(ip + ":" + port);
+        if (kvStore == null) {
+            KVServer.log.warning("Received replication data for " + ip + ":" + port + ", but no replica store exists");
+        }
+        return kvStore;
     }
 
 
@@ -273,130 +359,70 @@ public class ClientConnection implements Runnable {
     private synchronized void put(String key, String value) {
         if (kvServer.isWriteLock()) {
             KVServer.log.info("Server is write-locked");
-            messageHandler.send("server_write_lock");
+            send("server_write_lock");
             return;
         }
         if (kvServer.isStopped()) {
             KVServer.log.info("Server is write-locked");
-            messageHandler.send("server_stopped");
+            send("server_stopped");
             return;
         }
 
-        String hash = hashing.getMD5Hash(key);
+        HashKey hash = hashing.getHashKey(key);
         boolean isRightServer = checkIfRightServer(hash);
         if (!isRightServer) {
-            messageHandler.send("server_not_responsible");
+            sendNotResponsible(hash);
+            return;
+        }
+        if (kvServer.isWriteLocked(hash)) {
+            KVServer.log.info("Partition of " + key + " is write-locked");
+            send("server_write_lock");
             return;
         }
+        kvServer.getFrequencyTable().recordAccess(hash);
 
 
-        PutResult status = storageUnit.put(key, value);
+        PutResult status;
+        long sequenceNumber = 0;
+        synchronized (kvServer.getReplicationManager().getWriteOrderLock()) {
+            status = storageUnit.put(key, value);
+            if (status != PutResult.ERROR) {
+                sequenceNumber = kvServer.getReplicationManager().replicatePut(key, value);
+            }
+        }
         if (status == PutResult.SUCCESS) {
             KVServer.log.info("Successful PUT: " + key + ":" + value);
-            messageHandler.send("put_success " + key);
-
-            kvServer.getUsageMetrics().addOperation();
-            kvServer.getFrequencyTable().addToTable(key, hashing.getMD5Hash(key));
+            kvServer.getUsageMetrics().addWrite();
+            kvServer.getFrequencyTable().addToTable(key, hash);
+            sendWriteResult("put_success " + key, sequenceNumber);
 
         } else if (status == PutResult.UPDATE) {
             KVServer.log.info("Successful UPDATE: " + key + ":" + value);
-            messageHandler.send("put_update " + key);
-
-            kvServer.getUsageMetrics().addOperation();
-            //kvServer.getFrequencyTable().addToTable(key, hashing.getMD5Hash(key));
+            kvServer.getUsageMetrics().addWrite();
+            sendWriteResult("put_update " + key, sequenceNumber);
 
         } else {
             KVServer.log.info("Error during PUT: " + key + ":" + value);
-            messageHandler.send("put_error");
-        }
-
-        try {
-            if (kvServer.getRingList().getSize() > 2) {
-                RingList.Node node = kvServer.getRingList().findByIPandPort(kvServer.getAddress(), Integer.toString(kvServer.getPort()));
-                RingList.Node nodeNext = node.getNext();
-                RingList.Node nodeNextNext = node.getNext().getNext();
-                Socket socketNext = new Socket(nodeNext.getIP(), Integer.parseInt(nodeNext.getPort()));
-                Socket socketNextNext = new Socket(nodeNextNext.getIP(), Integer.parseInt(nodeNextNext.getPort()));
-                MessageHandler messageHandlerNext = new MessageHandler(socketNext);
-                MessageHandler messageHandlerNextNext = new MessageHandler(socketNextNext);
-
-                //System.out.println("Sent (to " + nodeNext.getIP() + ":" + nodeNext.getPort() + "): server_put " + key + " " + value);
-                messageHandlerNext.send("server_put " + kvServer.getAddress() + " " + kvServer.getPort() + " " + key + " " + value);
-
-                //System.out.println("Sent (to " + nodeNextNext.getIP() + ":" + nodeNextNext.getPort() + "): server_put " + key + " " + value);
-                messageHandlerNextNext.send("server_put " + kvServer.getAddress() + " " + kvServer.getPort() + " " + key + " " + value);
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            send("put_error");
         }
-
     }
 
     /**
-     * Offloads the most frequently used keys to reduce load on the server.
+     * Sends the result of a write to the client once the write was acknowledged by as many replicas
+     * as the write acknowledgement level of this connection requires.
+     * If the replicas don't acknowledge in time, the result is prefixed with replication_timeout,
+     * since the write was applied locally but its replication is uncertain.
      *
-     * @throws IOException If there's an error during offloading.
+     * @param result         The result of the write.
+     * @param sequenceNumber The replication sequence number of the write.
      */
-    private synchronized void offloadKeys() throws IOException {
-        RingList.Node node = kvServer.getRingList().findByIPandPort(kvServer.getAddress(), Integer.toString(kvServer.getPort()));
-        RingList.Node nodeNext = node.getNext();
-        RingList.Node nodePrev = node.getPrev();
-        Socket socketNext = new Socket(nodeNext.getIP(), Integer.parseInt(nodeNext.getPort()));
-        Socket socketPrev = new Socket(nodePrev.getIP(), Integer.parseInt(nodePrev.getPort()));
-        MessageHandler messageHandlerNext = new MessageHandler(socketNext);
-        MessageHandler messageHandlerPrev = new MessageHandler(socketPrev);
-
-        messageHandlerNext.send("get_usage_metrics_info");
-        //skips over the welcome message
-        messageHandlerNext.receive();
-        int nextLoad = Integer.parseInt(new String(messageHandlerNext.receive(), StandardCharsets.UTF_8).replace("\r\n", ""));
-        messageHandlerPrev.send("get_usage_metrics_info");
-        messageHandlerPrev.receive();
-        int prevLoad = Integer.parseInt(new String(messageHandlerPrev.receive(), StandardCharsets.UTF_8).replace("\r\n", ""));
-        System.out.println("Determined load of next server to be: " + nextLoad);
-        System.out.println("Determined load of previous server to be: " + prevLoad);
-        System.out.println("Current server load: " + kvServer.getUsageMetrics().toString());
-
-
-        //if the load of the current Server is smaller than the load of the other 2 servers you do nothing
-        if (kvServer.getUsageMetrics().getOperationsLast30s() < nextLoad && kvServer.getUsageMetrics().getOperationsLast30s() < prevLoad) {
-            return;
-        }
-        //if the load of the next server is smaller than the load of prev you offload your keys to the next server
-        if (nextLoad < prevLoad) {
-            String[] keyRange = kvServer.getFrequencyTable().calculateOffloadKeyRange(false);
-            String data = kvServer.getStore().getDataBetweenKeyRanges(keyRange[0], keyRange[1]);
-            messageHandlerNext.send("set_write_lock");
-            kvServer.setWriteLock(true);
-            messageHandlerNext.send("save_data_buckets " + data);
-            messageHandlerNext.send("remove_write_lock");
-            kvServer.setWriteLock(false);
-            changeKeyRangeRequest(kvServer.getStartRange(), keyRange[0]);
+    private void sendWriteResult(String result, long sequenceNumber) {
+        if (kvServer.getReplicationManager().awaitAcknowledgements(sequenceNumber, writeAck)) {
+            send(result);
         } else {
-            String[] keyRange = kvServer.getFrequencyTable().calculateOffloadKeyRange(true);
-            String data = kvServer.getStore().getDataBetweenKeyRanges(keyRange[0], keyRange[1]);
-            messageHandlerPrev.send("set_write_lock");
-            kvServer.setWriteLock(true);
-            messageHandlerPrev.send("save_data_buckets " + data);
-            messageHandlerPrev.send("remove_write_lock");
-            kvServer.setWriteLock(false);
-            changeKeyRangeRequest(keyRange[1], kvServer.getEndRange());
-        }
-        messageHandlerNext.close();
-        messageHandlerPrev.close();
-        socketNext.close();
-        socketPrev.close();
-        kvServer.getUsageMetrics().resetCount();
-    }
-
-    /**
-     * Requests a change in the key range of the server.
-     *
-     * @param startRange The new start range.
-     * @param endRange   The new end range.
-     */
-    private synchronized void changeKeyRangeRequest(String startRange, String endRange) {
-        kvServer.getEcsConnection().send("update_keyrange " + startRange + " " + endRange);
+            KVServer.log.warning("Replication timed out for: " + result);
+            send("replication_timeout " + result);
+        }
     }
 
     /**
@@ -407,16 +433,22 @@ public class ClientConnection implements Runnable {
     private synchronized void get(String key) {
         if (kvServer.isStopped()) {
             KVServer.log.info("Server is write-locked");
-            messageHandler.send("server_stopped");
+            send("server_stopped");
             return;
         }
-        String hash = hashing.getMD5Hash(key);
+        HashKey hash = hashing.getHashKey(key);
         String bucketIPAndPort = checkIfRightServerGet(hash);
         //System.out.println("Determined " + key + " to be from server: " + bucketIPAndPort);
         if (bucketIPAndPort == null) {
-            messageHandler.send("server_not_responsible");
+            sendNotResponsible(hash);
             return;
         }
+        String tail = findOtherChainTail(bucketIPAndPort);
+        if (tail != null) {
+            send("server_not_responsible " + tail);
+            return;
+        }
+        kvServer.getFrequencyTable().recordAccess(hash);
         String value;
         if (bucketIPAndPort.equals(kvServer.getAddress() + ":" + kvServer.getPort())) {
             value = storageUnit.get(key);
@@ -426,12 +458,11 @@ public class ClientConnection implements Runnable {
 
         if (value == null) {
             KVServer.log.info("Error during GET: " + key);
-            messageHandler.send("get_error " + key);
+            send("get_error " + key);
         } else {
-            kvServer.getUsageMetrics().addOperation();
-            //kvServer.getFrequencyTable().addToTable(key, hashing.getMD5Hash(key));
+            kvServer.getUsageMetrics().addRead();
             KVServer.log.info("Successful GET: " + key + ":" + value);
-            messageHandler.send("get_success " + key + " " + value);
+            send("get_success " + key + " " + value);
         }
 
     }
@@ -444,62 +475,297 @@ public class ClientConnection implements Runnable {
     private synchronized void delete(String key) {
         if (kvServer.isWriteLock()) {
             KVServer.log.info("Server is write-locked");
-            messageHandler.send("server_write_lock");
+            send("server_write_lock");
             return;
         }
         if (kvServer.isStopped()) {
             KVServer.log.info("Server is write-locked");
-            messageHandler.send("server_stopped");
+            send("server_stopped");
             return;
         }
-        String hash = hashing.getMD5Hash(key);
+        HashKey hash = hashing.getHashKey(key);
         boolean isRightServer = checkIfRightServer(hash);
         if (!isRightServer) {
-            messageHandler.send("server_not_responsible");
+            sendNotResponsible(hash);
+            return;
+        }
+        if (kvServer.isWriteLocked(hash)) {
+            KVServer.log.info("Partition of " + key + " is write-locked");
+            send("server_write_lock");
             return;
         }
-        String value = storageUnit.delete(key);
+        kvServer.getFrequencyTable().recordAccess(hash);
+        String value;
+        long sequenceNumber = 0;
+        synchronized (kvServer.getReplicationManager().getWriteOrderLock()) {
+            value = storageUnit.delete(key);
+            if (value != null) {
+                sequenceNumber = kvServer.getReplicationManager().replicateDelete(key);
+            }
+        }
         if (value != null) {
             KVServer.log.info("Successful DELETE: " + key + ":" + value);
-            messageHandler.send("delete_success " + key + " " + value);
-            kvServer.getUsageMetrics().addOperation();
-            kvServer.getFrequencyTable().deleteFromTable(key, hashing.getMD5Hash(key));
+            kvServer.getUsageMetrics().addWrite();
+            kvServer.getFrequencyTable().deleteFromTable(key, hash);
+            sendWriteResult("delete_success " + key + " " + value, sequenceNumber);
         } else {
             KVServer.log.info("Error during DELETE: " + key);
-            messageHandler.send("delete_error " + key);
+            send("delete_error " + key);
         }
+    }
 
-        try {
-            if (kvServer.getRingList().getSize() > 2) {
-                RingList.Node node = kvServer.getRingList().findByIPandPort(kvServer.getAddress(), Integer.toString(kvServer.getPort()));
-                Socket socketNext = new Socket(node.getNext().getIP(), Integer.parseInt(node.getNext().getPort()));
-                Socket socketNextNext = new Socket(node.getNext().getNext().getIP(), Integer.parseInt(node.getNext().getNext().getPort()));
-                MessageHandler messageHandlerNext = new MessageHandler(socketNext);
-                MessageHandler messageHandlerNextNext = new MessageHandler(socketNextNext);
+    /**
+     * Stores or updates several key-value pairs in the server's storage unit with a single storage write.
+     * Keys this server isn't responsible for are skipped and reported back individually,
+     * so the client only has to resend those to the right server.
+     *
+     * @param data The key-value pairs in the format key,value;key,value;
+     */
+    private synchronized void mput(String data) {
+        if (kvServer.isWriteLock()) {
+            KVServer.log.info("Server is write-locked");
+            send("server_write_lock");
+            return;
+        }
+        if (kvServer.isStopped()) {
+            KVServer.log.info("Server is write-locked");
+            send("server_stopped");
+            return;
+        }
 
-                //System.out.println("Sent: server_delete " + key);
-                messageHandlerNext.send("server_delete " + kvServer.getAddress() + " " + kvServer.getPort() + " " + key);
-                //System.out.println("Sent: server_delete " + key);
-                messageHandlerNextNext.send("server_delete " + kvServer.getAddress() + " " + kvServer.getPort() + " " + key);
+        List<KVPair<String, String>> pairs = new ArrayList<>();
+        List<String> misroutedKeys = new ArrayList<>();
+        for (String entry : data.split(";")) {
+            String[] keyValue = entry.trim().split(",", 2);
+            if (keyValue.length < 2 || keyValue[0].isEmpty()) {
+                continue;
+            }
+            HashKey hash = hashing.getHashKey(keyValue[0]);
+            if (checkIfRightServer(hash)) {
+                // the batch is written at once, so a single key of a partition that is handed over blocks it
+                if (kvServer.isWriteLocked(hash)) {
+                    KVServer.log.info("Partition of " + keyValue[0] + " is write-locked");
+                    send("server_write_lock");
+                    return;
+                }
+                kvServer.getFrequencyTable().recordAccess(hash);
+                pairs.add(new KVPair<>(keyValue[0], keyValue[1]));
+            } else {
+                misroutedKeys.add(keyValue[0]);
+            }
+        }
 
+        StringBuilder builder = new StringBuilder("mput_result");
+        List<KVPair<String, String>> written = new ArrayList<>();
+        Map<String, PutResult> results;
+        long sequenceNumber = 0;
+        synchronized (kvServer.getReplicationManager().getWriteOrderLock()) {
+            results = pairs.isEmpty() ? Map.of() : storageUnit.putBatch(pairs);
+            for (KVPair<String, String> pair : pairs) {
+                if (results.get(pair.getKey()) != PutResult.ERROR) {
+                    written.add(pair);
+                }
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            if (!written.isEmpty()) {
+                sequenceNumber = kvServer.getReplicationManager().replicatePutBatch(written);
+            }
+        }
+        for (Map.Entry<String, PutResult> result : results.entrySet()) {
+            String key = result.getKey();
+            if (result.getValue() == PutResult.SUCCESS) {
+                builder.append(" put_success ").append(key).append(";");
+                kvServer.getUsageMetrics().addWrite();
+                kvServer.getFrequencyTable().addToTable(key, hashing.getHashKey(key));
+            } else if (result.getValue() == PutResult.UPDATE) {
+                builder.append(" put_update ").append(key).append(";");
+                kvServer.getUsageMetrics().addWrite();
+            } else {
+                builder.append(" put_error ").append(key).append(";");
+            }
+        }
+        appendMisroutedKeys(builder, misroutedKeys);
+        KVServer.log.info("Batch PUT of " + pairs.size() + " keys, " + misroutedKeys.size() + " not responsible");
+        if (written.isEmpty()) {
+            send(builder.toString());
+        } else {
+            sendWriteResult(builder.toString(), sequenceNumber);
         }
     }
 
+    /**
+     * Retrieves the values of several keys from the server's storage unit and its replicas with
+     * one pass over each storage unit, and sends the per-key results to the client.
+     *
+     * @param keys The keys to retrieve.
+     */
+    private synchronized void mget(String[] keys) {
+        if (kvServer.isStopped()) {
+            KVServer.log.info("Server is write-locked");
+            send("server_stopped");
+            return;
+        }
+
+        String ownIPAndPort = kvServer.getAddress() + ":" + kvServer.getPort();
+        // groups the keys by the storage unit (own or replica) that holds them
+        Map<String, List<String>> keysByStore = new HashMap<>();
+        // a set, since every key of the result is looked up in it
+        Set<String> misroutedKeys = new LinkedHashSet<>();
+        for (String key : keys) {
+            HashKey hash = hashing.getHashKey(key);
+            String bucketIPAndPort = checkIfRightServerGet(hash);
+            if (bucketIPAndPort == null || findOtherChainTail(bucketIPAndPort) != null) {
+                misroutedKeys.add(key);
+            } else {
+                kvServer.getFrequencyTable().recordAccess(hash);
+                keysByStore.computeIfAbsent(bucketIPAndPort, k -> new ArrayList<>()).add(key);
+            }
+        }
+
+        Map<String, String> values = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : keysByStore.entrySet()) {
+            KVStore store = entry.getKey().equals(ownIPAndPort) ? storageUnit : kvServer.getReplicaStores().get(entry.getKey());
+            values.putAll(store.getBatch(entry.getValue()));
+        }
+
+        StringBuilder builder = new StringBuilder("mget_result");
+        for (String key : keys) {
+            if (misroutedKeys.contains(key)) {
+                continue;
+            }
+            String value = values.get(key);
+            if (value == null) {
+                builder.append(" get_error ").append(key).append(";");
+            } else {
+                builder.append(" get_success ").append(key).append(" ").append(value).append(";");
+                kvServer.getUsageMetrics().addRead();
+            }
+        }
+        appendMisroutedKeys(builder, misroutedKeys);
+        KVServer.log.info("Batch GET of " + keys.length + " keys, " + misroutedKeys.size() + " not responsible");
+        send(builder.toString());
+    }
+
+    /**
+     * Deletes several keys from the server's storage unit with a single storage write
+     * and sends the per-key results to the client.
+     *
+     * @param keys The keys to delete.
+     */
+    private synchronized void mdelete(String[] keys) {
+        if (kvServer.isWriteLock()) {
+            KVServer.log.info("Server is write-locked");
+            send("server_write_lock");
+            return;
+        }
+        if (kvServer.isStopped()) {
+            KVServer.log.info("Server is write-locked");
+            send("server_stopped");
+            return;
+        }
+
+        List<String> ownKeys = new ArrayList<>();
+        List<String> misroutedKeys = new ArrayList<>();
+        for (String key : keys) {
+            HashKey hash = hashing.getHashKey(key);
+            if (checkIfRightServer(hash)) {
+                if (kvServer.isWriteLocked(hash)) {
+                    KVServer.log.info("Partition of " + key + " is write-locked");
+                    send("server_write_lock");
+                    return;
+                }
+                kvServer.getFrequencyTable().recordAccess(hash);
+                ownKeys.add(key);
+            } else {
+                misroutedKeys.add(key);
+            }
+        }
+
+        Map<String, String> deleted;
+        long sequenceNumber = 0;
+        synchronized (kvServer.getReplicationManager().getWriteOrderLock()) {
+            deleted = ownKeys.isEmpty() ? Map.of() : storageUnit.deleteBatch(ownKeys);
+            if (!deleted.isEmpty()) {
+                sequenceNumber = kvServer.getReplicationManager().replicateDeleteBatch(deleted.keySet());
+            }
+        }
+        StringBuilder builder = new StringBuilder("mdelete_result");
+        for (String key : ownKeys) {
+            String value = deleted.get(key);
+            if (value == null) {
+                builder.append(" delete_error ").append(key).append(";");
+            } else {
+                builder.append(" delete_success ").append(key).append(" ").append(value).append(";");
+                kvServer.getUsageMetrics().addWrite();
+                kvServer.getFrequencyTable().deleteFromTable(key, hashing.getHashKey(key));
+            }
+        }
+        appendMisroutedKeys(builder, misroutedKeys);
+        KVServer.log.info("Batch DELETE of " + ownKeys.size() + " keys, " + misroutedKeys.size() + " not responsible");
+        if (deleted.isEmpty()) {
+            send(builder.toString());
+        } else {
+            sendWriteResult(builder.toString(), sequenceNumber);
+        }
+    }
+
+    /**
+     * Appends the partial not-responsible result of a batch command, listing every key
+     * that has to be sent to a different server.
+     *
+     * @param builder       The batch result that is being built.
+     * @param misroutedKeys The keys this server isn't responsible for.
+     */
+    private void appendMisroutedKeys(StringBuilder builder, Collection<String> misroutedKeys) {
+        if (!misroutedKeys.isEmpty()) {
+            builder.append(" server_not_responsible ").append(String.join(" ", misroutedKeys)).append(";");
+        }
+    }
+
+    /**
+     * Tells the client that this server isn't responsible for a key, together with the server that is responsible
+     * according to the local ring and the epoch of that ring. The client can then resend the request to that server
+     * directly instead of fetching and parsing the whole ring first.
+     *
+     * @param hash The hash of the key.
+     */
+    private void sendNotResponsible(HashKey hash) {
+        send(createNotResponsibleResponse(kvServer.getRingList(), kvServer.getAddress(), kvServer.getPort(), hash));
+    }
+
+    /**
+     * Creates the server_not_responsible response of a server for a key.
+     *
+     * @param ringList The ring of the server.
+     * @param address  The IP address of the server.
+     * @param port     The port of the server.
+     * @param hash     The hash of the key.
+     * @return The response, which only names the owner of the key if it is another server.
+     */
+    static String createNotResponsibleResponse(RingList ringList, String address, int port, HashKey hash) {
+        long epoch = ringList.getEpoch();
+        RingList.Node owner = ringList.findByHashKey(hash);
+        if (owner == null || (owner.getIP().equals(address) && owner.getPort().equals(Integer.toString(port)))) {
+            // the ring doesn't know better yet, e.g. while this server hands over a key range
+            return "server_not_responsible";
+        }
+        return "server_not_responsible " + owner.getAddress() + " " + epoch;
+    }
+
     /**
      * Sends the server's key range to the client.
      */
     private synchronized void sendKeyRange() {
-        messageHandler.send("keyrange_success " + kvServer.getRingList());
+        // the epoch is read first, a ring that changes in between is newer and only causes another refresh
+        long epoch = kvServer.getRingList().getEpoch();
+        String response = "keyrange_success " + kvServer.getRingList();
+        messageHandler.send(trackEpoch ? response + " @" + epoch : response);
     }
 
     /**
      * Sends the read key range to the client.
      */
     private synchronized void sendKeyRangeRead() {
-        messageHandler.send("keyrange_read_success " + kvServer.getRingList().getKeyRangeRead());
+        send("keyrange_read_success " + kvServer.getRingList().getKeyRangeRead());
     }
 
     /**
@@ -508,50 +774,49 @@ public class ClientConnection implements Runnable {
      * @param hash The hash of a key.
      * @return true if the server is responsible, false otherwise.
      */
-    private boolean checkIfRightServer(String hash) {
-        if (kvServer.getStartRange().compareTo(hash) < 0 && kvServer.getEndRange().compareTo(hash) >= 0) {
-            return true;
-        } else if (kvServer.getStartRange().compareTo(kvServer.getEndRange()) >= 0) {
-            if (kvServer.getStartRange().compareTo(hash) < 0 && kvServer.getEndRange().compareTo(hash) <= 0) {
-                return true;
-            } else return kvServer.getStartRange().compareTo(hash) > 0 && kvServer.getEndRange().compareTo(hash) >= 0;
-        }
-        return false;
+    private boolean checkIfRightServer(HashKey hash) {
+        return kvServer.isResponsibleFor(hash);
+    }
+
+    /**
+     * In chain mode only the tail of a chain may answer reads, since the other servers of the chain
+     * may already hold writes the tail hasn't acknowledged yet.
+     *
+     * @param storeIPAndPort The "ip:port" address of the primary whose data would answer the read.
+     * @return The "ip:port" address of the chain's tail if it isn't this server, null if this server may answer the read.
+     */
+    private String findOtherChainTail(String storeIPAndPort) {
+        if (kvServer.getReplicationMode() != ReplicationMode.CHAIN || kvServer.getRingList().getServerCount() <= 2) {
+            return null;
+        }
+        String[] split = storeIPAndPort.split(":");
+        List<String> replicas = kvServer.getRingList().getReplicaAddresses(split[0], split[1]);
+        if (replicas.size() < 2) {
+            return null;
+        }
+        String tail = replicas.get(1);
+        if (tail.equals(kvServer.getAddress() + ":" + kvServer.getPort())) {
+            return null;
+        }
+        return tail;
     }
 
     /**
-     * Determines the correct server responsible for the provided hash key during replication.
+     * Determines the storage unit that can answer a read of the provided hash key, which is either the primary store
+     * or the replica store of the responsible server.
      *
      * @param hash The hash key to check.
-     * @return The IP and port of the correct server.
+     * @return The IP and port of the server whose data answers the read, or null if this server doesn't hold it.
      */
-    private String checkIfRightServerGet(String hash) {
-        String serverIPAndPort = kvServer.getAddress() + ":" + kvServer.getPort();
-        if (kvServer.getStartRange().compareTo(hash) < 0 && kvServer.getEndRange().compareTo(hash) >= 0) {
-            return serverIPAndPort;
-        } else if (kvServer.getStartRange().compareTo(kvServer.getEndRange()) >= 0) {
-            if (kvServer.getStartRange().compareTo(hash) < 0 && kvServer.getEndRange().compareTo(hash) <= 0) {
-                return serverIPAndPort;
-            } else if (kvServer.getStartRange().compareTo(hash) > 0 && kvServer.getEndRange().compareTo(hash) >= 0) {
-                return serverIPAndPort;
-            }
-        }
-
-        if (kvServer.getRingList().getSize() > 2) {
-            for (String key : kvServer.getReplicaStores().keySet()) {
-                String[] split = key.split(":");
-                RingList.Node node = kvServer.getRingList().findByIPandPort(split[0], split[1]);
-                String replicaIPAndPort = node.getIP() + ":" + node.getPort();
-                if (node.getStartRange().compareTo(hash) < 0 && node.getEndRange().compareTo(hash) >= 0) {
-                    return replicaIPAndPort;
-                } else if (node.getStartRange().compareTo(node.getEndRange()) >= 0) {
-                    if (node.getStartRange().compareTo(hash) < 0 && node.getEndRange().compareTo(hash) <= 0) {
-                        return replicaIPAndPort;
-                    } else if (node.getStartRange().compareTo(hash) > 0 && node.getEndRange().compareTo(hash) >= 0) {
-                        return replicaIPAndPort;
-                    }
-                }
+    private String checkIfRightServerGet(HashKey hash) {
+        if (checkIfRightServer(hash)) {
+            return kvServer.getAddress() + ":" + kvServer.getPort();
+        }
 
+        if (kvServer.getRingList().getServerCount() > 2) {
+            RingList.Node node = kvServer.getRingList().findByHashKey(hash);
+            if (node != null && kvServer.getReplicaStores().containsKey(node.getAddress())) {
+                return node.getAddress();
             }
         }
         return null;
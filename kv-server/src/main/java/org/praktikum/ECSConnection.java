@@ -2,6 +2,7 @@ package org.praktikum;
 
 import org.praktikum.communication.MessageHandler;
 import org.praktikum.resources.ConsistentHashing;
+import org.praktikum.resources.HashFunction;
 import org.praktikum.storage.KVStore;
 import sun.misc.Signal;
 import sun.misc.SignalHandler;
@@ -91,23 +92,61 @@ public class ECSConnection implements Runnable, SignalHandler {
         }
         if ("ECS".equals(tokens[0])) {
             switch (tokens[1]) {
-                case "set_write_lock" -> kvServer.setWriteLock(true);
+                case "set_write_lock" -> {
+                    // a range only locks the partition that is handed over
+                    if (tokens.length >= 4) {
+                        kvServer.setWriteLockedRange(tokens[2], tokens[3]);
+                    } else {
+                        kvServer.setWriteLock(true);
+                    }
+                }
                 case "remove_write_lock" -> kvServer.setWriteLock(false);
                 case "metadata" -> {
-                    kvServer.passNewMetaData(tokens[2]);
+                    kvServer.passNewMetaData(tokens[2], tokens.length > 3 ? Long.parseLong(tokens[3]) : kvServer.getRingList().getEpoch());
                     kvServer.fetchKeyRangesFromMetaData();
                 }
+                case "metadata_delta" -> {
+                    if (kvServer.passMetaDataDelta(Long.parseLong(tokens[2]), Long.parseLong(tokens[3]), tokens[4])) {
+                        kvServer.fetchKeyRangesFromMetaData();
+                    } else {
+                        KVServer.log.info("Missed a metadata update, requesting the complete metadata");
+                        messageHandler.send("metadata_request");
+                    }
+                }
                 case "connection_ecs_established" -> kvServer.setStopped(false);
+                // the ECS tells every joining server which hash function the cluster uses
+                case "hash_function" -> {
+                    HashFunction hashFunction = HashFunction.forName(tokens[2]);
+                    if (hashFunction != null) {
+                        ConsistentHashing.setHashFunction(hashFunction);
+                    }
+                }
+                // CMD: ECS switch_hash name metadata epoch
+                case "switch_hash" -> {
+                    HashFunction hashFunction = HashFunction.forName(tokens[2]);
+                    if (hashFunction == null) {
+                        KVServer.log.warning("Unknown hash function " + tokens[2]);
+                        break;
+                    }
+                    kvServer.switchHashFunction(hashFunction, tokens[3], Long.parseLong(tokens[4]));
+                    messageHandler.send("hash_switched");
+                }
+                case "hash_switch_done" -> kvServer.finishHashFunctionSwitch();
                 case "save_data" -> {
                     String[] dataToSend = Arrays.copyOfRange(tokens, 2, tokens.length);
                     String data = String.join(" ", dataToSend);
-                    storageUnit.saveData(data, true);
+                    synchronized (kvServer.getReplicationManager().getWriteOrderLock()) {
+                        storageUnit.saveData(data, true);
+                        kvServer.getReplicationManager().replicateData(data);
+                    }
                 }
                 case "request_data_key_range" -> {
                     String nextIP = tokens[2];
                     int nextPort = Integer.parseInt(tokens[3]);
                     System.out.println(tokens[4]);
-                    String data = getDataBetweenKeyRanges(tokens[4]);
+                    // the start of the range is only sent for virtual nodes, otherwise it is the start of our own range
+                    String startRange = tokens.length > 5 ? tokens[5] : kvServer.getStartRange();
+                    String data = getDataBetweenKeyRanges(startRange, tokens[4]);
                     try {
                         Socket socket = new Socket(nextIP, nextPort);
                         MessageHandler serverCommunication = new MessageHandler(socket);
@@ -116,9 +155,10 @@ public class ECSConnection implements Runnable, SignalHandler {
                     } catch (IOException e) {
                         throw new RuntimeException(e);
                     }
-                    messageHandler.send("data_from_key_range");
+                    messageHandler.send("data_from_key_range " + nextIP + " " + nextPort);
                 }
                 case "data_received" -> messageHandler.send("data_key_range_sent");
+                case "promote_replica" -> kvServer.promoteReplica(tokens[2], tokens[3], tokens.length > 4 ? tokens[4] : null);
             }
         } else {
             error();
@@ -174,13 +214,19 @@ public class ECSConnection implements Runnable, SignalHandler {
     }
 
     /**
-     * Retrieves data that falls within a specific key range.
+     * Retrieves data that falls within a specific key range and removes it from the storage unit.
+     * The removal is replicated, so the replicas drop the transferred range as well.
      *
+     * @param startRange        The hash value specifying the exclusive start of the range.
      * @param keyRangeToSplitAt The hash value specifying the end range.
      * @return Data within the specified key range.
      */
-    private synchronized String getDataBetweenKeyRanges(String keyRangeToSplitAt) {
-        return storageUnit.getDataBetweenKeyRanges(kvServer.getStartRange(), keyRangeToSplitAt);
+    private synchronized String getDataBetweenKeyRanges(String startRange, String keyRangeToSplitAt) {
+        synchronized (kvServer.getReplicationManager().getWriteOrderLock()) {
+            String data = storageUnit.getDataBetweenKeyRanges(startRange, keyRangeToSplitAt);
+            kvServer.getReplicationManager().replicateRangeRemoval(startRange, keyRangeToSplitAt);
+            return data;
+        }
     }
 
     /**
@@ -1,5 +1,8 @@
 package org.praktikum;
 
+import org.praktikum.replication.ReplicationMode;
+import org.praktikum.replication.WriteAck;
+
 import java.util.Arrays;
 import java.util.Locale;
 import java.util.logging.Level;
@@ -26,6 +29,8 @@ public class EntryPoint {
             case "-bc" -> flags[8] = value;
             case "-t" -> flags[9] = value;
             case "-e" -> flags[10] = value;
+            case "-wa" -> flags[11] = value;
+            case "-rm" -> flags[12] = value;
             case "-h" -> printHelpText();
             default -> printInvalidInput(flags);
         }
@@ -105,6 +110,20 @@ public class EntryPoint {
                 "-e <endRange>",
                 "-e 60000000000000000000000000000000"
         );
+        printArgumentHelp(
+                "-wa",
+                "Sets how many replicas have to acknowledge a write before it succeeds. Options are: 0 / 1 / all. Clients can change it per connection with set_write_ack <level>.",
+                "-wa <level>",
+                "-wa all",
+                "0"
+        );
+        printArgumentHelp(
+                "-rm",
+                "Sets the replication topology. Options are: fanout (the primary sends to both replicas) / chain (the primary sends to next, next forwards to next.next and reads are served by the tail, writes wait for the chain at any -wa level). All servers of a ring have to use the same mode.",
+                "-rm <mode>",
+                "-rm chain",
+                "fanout"
+        );
     }
 
     /**
@@ -140,7 +159,7 @@ public class EntryPoint {
 
     public static void main(String[] args) {
         System.out.println("provided args: " + Arrays.toString(args));
-        String[] flags = new String[11];
+        String[] flags = new String[13];
         //Set default value for address
         flags[1] = "127.0.0.1";
         flags[4] = "logs/server.log";
@@ -149,6 +168,8 @@ public class EntryPoint {
         flags[9] = "25";
         //Default for -e flag: empty string.
         flags[10] = "";
+        flags[11] = "0";
+        flags[12] = "fanout";
 
         //Parse CLI parameters
         for (int i = 0; i < args.length; i++) {
@@ -175,7 +196,13 @@ public class EntryPoint {
             Level logLevel = Level.parse(flags[5]);
             int numberOfBuckets = Integer.parseInt(flags[8]);
             int offloadThreshold = Integer.parseInt(flags[9]);
-            KVServer KVServer = new KVServer(port, flags[1], flags[2], flags[3], flags[4], logLevel, cacheSize, flags[7], numberOfBuckets, offloadThreshold, flags[10]);
+            WriteAck writeAck = WriteAck.parse(flags[11]);
+            ReplicationMode replicationMode = ReplicationMode.parse(flags[12]);
+            if (writeAck == null || replicationMode == null) {
+                printInvalidInput(flags);
+                return;
+            }
+            KVServer KVServer = new KVServer(port, flags[1], flags[2], flags[3], flags[4], logLevel, cacheSize, flags[7], numberOfBuckets, offloadThreshold, flags[10], writeAck, replicationMode);
             KVServer.runServer();
         } catch (Exception e) {
             System.out.println("An error occurred while starting up the server");
@@ -1,10 +1,20 @@
 package org.praktikum;
 
+import org.praktikum.balancing.LoadBalancer;
 import org.praktikum.communication.MessageHandler;
+import org.praktikum.communication.PeerConnectionPool;
 import org.praktikum.resources.ConsistentHashing;
 import org.praktikum.resources.FrequencyTable;
+import org.praktikum.resources.HashFunction;
+import org.praktikum.resources.HashKey;
+import org.praktikum.resources.PartitionedHash;
 import org.praktikum.resources.RingList;
 import org.praktikum.resources.UsageMetrics;
+import org.praktikum.replication.AntiEntropyTask;
+import org.praktikum.replication.HintStore;
+import org.praktikum.replication.ReplicationManager;
+import org.praktikum.replication.ReplicationMode;
+import org.praktikum.replication.WriteAck;
 import org.praktikum.storage.*;
 import sun.misc.Signal;
 import sun.misc.SignalHandler;
@@ -12,8 +22,8 @@ import sun.misc.SignalHandler;
 import java.io.IOException;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -26,13 +36,32 @@ public class KVServer {
     private final int port;
     private boolean isRunning;
     private final KVStore store;
-    private final Map<String, KVStore> replicaStores = new HashMap<>();
+    private final Map<String, KVStore> replicaStores = new ConcurrentHashMap<>();
+    private final PeerConnectionPool peerConnections = new PeerConnectionPool();
+    // chain mode forwards frames over separate connections, so a forward never waits behind our own replication frames.
+    // A forward runs while the primary waits for our acknowledgement, so it gives up before the primary does.
+    private final PeerConnectionPool chainConnections = new PeerConnectionPool(PeerConnectionPool.DEFAULT_READ_TIMEOUT / 2);
+    private final ReplicationManager replicationManager = new ReplicationManager(this);
     public static final Logger log = Logger.getLogger("KVServer");
+    // bounds the hints kept for a single unavailable replica
+    private static final long MAX_HINT_BYTES = 64L * 1024 * 1024;
+    private static final int HAND_OVER_ATTEMPTS = 5;
+    private static final long HAND_OVER_RETRY_INTERVAL = 1000;
+    // every chunk of a data transfer stays well below the 128000 bytes a single message may have
+    public static final int MAX_TRANSFER_LENGTH = 100000;
+    private static final int TRANSFER_CONNECT_TIMEOUT = 2000;
+    private static final int TRANSFER_READ_TIMEOUT = 10000;
     private ECSConnection ecsConnection;
     private String startRange;
     private String endRange;
+    private HashKey startKey;
+    private HashKey endKey;
+    // false if the server owns several virtual nodes, which makes its own range meaningless for routing
+    private volatile boolean singleRange = true;
     private final RingList ringList;
     boolean writeLock = false;
+    // the {start, end} range of a single partition that is write-locked while it's handed over, or null
+    private volatile HashKey[] writeLockedRange;
     boolean isStopped = true;
     private final ConsistentHashing hashing;
     private final ArrayList<ClientConnection> clientConnections = new ArrayList<>();
@@ -40,6 +69,10 @@ public class KVServer {
     private String customEndRangeHash;
     private final FrequencyTable frequencyTable;
     private final UsageMetrics usageMetrics;
+    private final LoadBalancer loadBalancer = new LoadBalancer(this);
+    private final WriteAck writeAck;
+    private final ReplicationMode replicationMode;
+    private final HintStore hintStore;
 
     /**
      * Constructs a KVServer instance with the given configurations.
@@ -55,8 +88,10 @@ public class KVServer {
      * @param numberOfBuckets      The number of buckets for key range partitioning.
      * @param offloadThreshold     The offload threshold for key range transfer.
      * @param customEndRangeHash   Custom hash for end range.
+     * @param writeAck             The default number of replicas that have to acknowledge a write.
+     * @param replicationMode      The topology in which writes are replicated.
      */
-    public KVServer(int port, String address, String bootstrapAddress, String storageLocation, String logFilePath, Level logLevel, int cacheSize, String displacementStrategy, int numberOfBuckets, int offloadThreshold, String customEndRangeHash) {
+    public KVServer(int port, String address, String bootstrapAddress, String storageLocation, String logFilePath, Level logLevel, int cacheSize, String displacementStrategy, int numberOfBuckets, int offloadThreshold, String customEndRangeHash, WriteAck writeAck, ReplicationMode replicationMode) {
         this.port = port;
         this.isRunning = false;
         this.address = address;
@@ -65,6 +100,7 @@ public class KVServer {
             this.hashing = new ConsistentHashing();
             String filename = hashing.getMD5Hash(address, Integer.toString(port));
             this.store = new KVStore(cacheSize, displacementStrategy, storageLocation, filename);
+            this.hintStore = new HintStore("/" + storageLocation, filename, MAX_HINT_BYTES);
 
             log.setUseParentHandlers(false);
             FileHandler fileHandler = new FileHandler(logFilePath, true);
@@ -78,8 +114,10 @@ public class KVServer {
             this.frequencyTable = new FrequencyTable(numberOfBuckets, offloadThreshold);
             this.customEndRangeHash = customEndRangeHash;
             this.usageMetrics = new UsageMetrics();
+            this.writeAck = writeAck;
+            this.replicationMode = replicationMode;
 
-        } catch (NoSuchAlgorithmException | IOException e) {
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
@@ -100,6 +138,22 @@ public class KVServer {
         return replicaStores;
     }
 
+    public PeerConnectionPool getPeerConnections() {
+        return peerConnections;
+    }
+
+    public PeerConnectionPool getChainConnections() {
+        return chainConnections;
+    }
+
+    public HintStore getHintStore() {
+        return hintStore;
+    }
+
+    public ReplicationManager getReplicationManager() {
+        return replicationManager;
+    }
+
     public String getStartRange() {
         return startRange;
     }
@@ -108,16 +162,75 @@ public class KVServer {
         return endRange;
     }
 
+    public HashKey getStartKey() {
+        return startKey;
+    }
+
+    public HashKey getEndKey() {
+        return endKey;
+    }
+
     public RingList getRingList() {
         return ringList;
     }
 
+    /**
+     * Checks whether the server owns a single contiguous key range, i.e. it has a single node on the ring.
+     * Moving range boundaries to balance load is only possible in this case, and never if keys are mapped to partitions.
+     *
+     * @return true if the server owns a single range, false if it owns several virtual nodes or partitions.
+     */
+    public boolean ownsSingleRange() {
+        return singleRange;
+    }
+
+    /**
+     * Checks whether this server is responsible for a hash. With a single range this is a comparison with the range,
+     * with virtual nodes the node responsible for the hash is looked up on the ring.
+     *
+     * @param hash The hash of a key.
+     * @return true if the server is responsible, false otherwise.
+     */
+    public boolean isResponsibleFor(HashKey hash) {
+        if (singleRange) {
+            return hash.isInRange(startKey, endKey);
+        }
+        RingList.Node node = ringList.findByHashKey(hash);
+        return node != null && node.getIP().equals(address) && node.getPort().equals(Integer.toString(port));
+    }
+
     public boolean isWriteLock() {
         return writeLock;
     }
 
     public void setWriteLock(boolean writeLock) {
         this.writeLock = writeLock;
+        if (!writeLock) {
+            writeLockedRange = null;
+        }
+    }
+
+    /**
+     * Write-locks only the keys of a single partition, e.g. while it's handed over to another server.
+     * The lock is released together with the server-wide lock.
+     *
+     * @param startRange The start of the locked range.
+     * @param endRange   The end of the locked range.
+     */
+    public void setWriteLockedRange(String startRange, String endRange) {
+        writeLockedRange = new HashKey[]{HashKey.fromHex(startRange), HashKey.fromHex(endRange)};
+    }
+
+    /**
+     * Checks if writes to a key are currently blocked, either because the whole server or the partition of the key
+     * is write-locked.
+     *
+     * @param hash The hash of the key.
+     * @return true if the key must not be written.
+     */
+    public boolean isWriteLocked(HashKey hash) {
+        HashKey[] range = writeLockedRange;
+        return writeLock || range != null && hash.isInRange(range[0], range[1]);
     }
 
     public boolean isStopped() {
@@ -133,64 +246,49 @@ public class KVServer {
      */
     public void fetchKeyRangesFromMetaData() {
         if (!ringList.isEmpty()) {
-            RingList.Node server = ringList.findByIPandPort(address, Integer.toString(port));
-            // boolean to check if we have a new predecessor -> this is important for the data transfer in the following code!
-            boolean hasStartRangeChanged = false;
+            String ownPort = Integer.toString(port);
+            List<RingList.Node> ownNodes = ringList.findAllByIPandPort(address, ownPort);
+            RingList.Node server = ownNodes.isEmpty() ? null : ownNodes.get(0);
             if (server != null) {
-                if (this.startRange != null) {
-                    hasStartRangeChanged = !this.startRange.equals(server.getStartRange());
-                }
                 this.startRange = server.getStartRange();
                 this.endRange = server.getEndRange();
-                this.frequencyTable.updateBuckets(startRange, endRange);
+                this.startKey = server.getStartKey();
+                this.endKey = server.getEndKey();
+                // the boundaries of partitions are fixed, so a single partition is looked up like several ones
+                this.singleRange = ownNodes.size() == 1 && !(ConsistentHashing.getHashFunction() instanceof PartitionedHash);
+                this.frequencyTable.updateBuckets(startRange, endRange, this::getStoredKeys);
+            } else {
+                // a server without partitions doesn't own a range until the ECS moved the first partition to it
+                this.singleRange = false;
             }
-            boolean isReplicated = ringList.getSize() > 2;
+            boolean isReplicated = ringList.getServerCount() > 2;
+            // only the connections to our own replicas are kept open, every other peer connection is stale now
+            List<String> replicaAddresses = new LinkedList<>();
+            List<String> primaryAddresses = new LinkedList<>();
             if (isReplicated && server != null) {
-                if (hasStartRangeChanged) {
-                    // add logic here to send a copy of the complete dataset in store to its own replicas (i.e an update)
-                    RingList.Node serverWithReplicaOfSelf1 = server.getNext();
-                    RingList.Node serverWithReplicaOfSelf2 = server.getNext().getNext();
-
-                    try {
-                        Socket socket1 = new Socket(serverWithReplicaOfSelf1.getIP(), Integer.parseInt(serverWithReplicaOfSelf1.getPort()));
-                        MessageHandler socketMessageHandler1 = new MessageHandler(socket1);
-                        Socket socket2 = new Socket(serverWithReplicaOfSelf2.getIP(), Integer.parseInt(serverWithReplicaOfSelf2.getPort()));
-                        MessageHandler socketMessageHandler2 = new MessageHandler(socket2);
-
-                        String allDataFromStore = store.getAllData();
-
-                        socketMessageHandler1.send("replica_data_update " + getAddress() + " " + getPort() + " " + allDataFromStore);
-                        System.out.println(new Date().getTime() + " Sent: " + "replica_data_update " + getAddress() + " " + getPort() + " " + allDataFromStore);
-                        socketMessageHandler2.send("replica_data_update " + getAddress() + " " + getPort() + " " + allDataFromStore);
-                        System.out.println(new Date().getTime() + " Sent: " + "replica_data_update " + getAddress() + " " + getPort() + " " + allDataFromStore);
-
-                        socket1.close();
-                        socket2.close();
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
-
-                RingList.Node replica1 = server.getPrev();
-                String replica1IPPortString = replica1.getIP() + ":" + replica1.getPort();
-                boolean replica1AlreadyStored = replicaStores.containsKey(replica1IPPortString);
-
-                RingList.Node replica2 = server.getPrev().getPrev();
-                String replica2IPPortString = replica2.getIP() + ":" + replica2.getPort();
-                boolean replica2AlreadyStored = replicaStores.containsKey(replica2IPPortString);
-
+                replicaAddresses.addAll(ringList.getReplicaAddresses(address, ownPort));
+                primaryAddresses.addAll(ringList.getReplicatedServers(address, ownPort));
+            }
+            peerConnections.retainOnly(replicaAddresses);
+            chainConnections.retainOnly(findChainTails(primaryAddresses));
+            replicationManager.updateReplicas(replicaAddresses);
+            if (isReplicated && server != null) {
+                // data that moved in or out of our key range reaches the replicas through the replication log,
+                // so a changed predecessor doesn't require sending the complete store anymore
                 // check if there's a change in replica servers
-                createReplicaStoreAndRequestData(replica1, replica1IPPortString, replica1AlreadyStored);
-                createReplicaStoreAndRequestData(replica2, replica2IPPortString, replica2AlreadyStored);
+                for (String primaryAddress : primaryAddresses) {
+                    createReplicaStoreAndRequestData(primaryAddress, replicaStores.containsKey(primaryAddress));
+                }
 
                 List<String> toBeRemovedKeys = new LinkedList<>();
 
                 for (String key : replicaStores.keySet()) {
-                    if (!key.equals(replica1IPPortString) && !key.equals(replica2IPPortString)) {
+                    if (!primaryAddresses.contains(key)) {
                         KVStore toBeDeleted = replicaStores.get(key);
                         if (toBeDeleted.deleteAllData()) {
                             System.out.println("Data of replica " + key + " was deleted from this server");
                             toBeRemovedKeys.add(key);
+                            replicationManager.removePrimary(key);
                         } else {
                             System.out.println(new Date().getTime() + " ERROR: Data of replica " + key + " couldn't be deleted from this server");
                         }
@@ -211,6 +309,26 @@ public class KVServer {
         }
     }
 
+    /**
+     * Determines the tails this server forwards chain replication frames to, i.e. the second replica of every
+     * primary this server is the first replica of.
+     *
+     * @param primaryAddresses The "ip:port" addresses of the primaries this server holds replicas of.
+     * @return The "ip:port" addresses of the tails.
+     */
+    private List<String> findChainTails(List<String> primaryAddresses) {
+        List<String> tails = new ArrayList<>();
+        String ownAddress = address + ":" + port;
+        for (String primaryAddress : primaryAddresses) {
+            String[] split = primaryAddress.split(":");
+            List<String> replicas = ringList.getReplicaAddresses(split[0], split[1]);
+            if (replicas.size() >= 2 && replicas.get(0).equals(ownAddress)) {
+                tails.add(replicas.get(1));
+            }
+        }
+        return tails;
+    }
+
     /**
      * Attempts to delete all data from each replica store and returns the keys of the replica stores
      * whose data was deleted successfully.
@@ -224,6 +342,7 @@ public class KVServer {
             if (toBeDeleted.deleteAllData()) {
                 System.out.println("Data of replica " + key + " was deleted from this server");
                 toBeRemovedKeys.add(key);
+                replicationManager.removePrimary(key);
             } else {
                 System.out.println(new Date().getTime() + " ERROR: Data of replica " + key + " couldn't be deleted from this server");
             }
@@ -231,6 +350,66 @@ public class KVServer {
         return toBeRemovedKeys;
     }
 
+    /**
+     * Takes over key ranges of a failed server by promoting its replica store.
+     * The replicated data of the ranges is appended to the primary store on local disk, so no data has to be copied
+     * over the network before the ranges can be served. The promoted pairs are enqueued for the replicas of this server
+     * together with the append, so client writes of the promoted keys are always replicated after them.
+     * This has to happen before the metadata without the failed server is applied, which would delete the replica store.
+     *
+     * @param ip     The IP address of the failed server.
+     * @param port   The port of the failed server.
+     * @param ranges The ranges this server takes over in the format start,end;start,end; or null to take over all data.
+     */
+    public void promoteReplica(String ip, String port, String ranges) {
+        String primaryAddress = ip + ":" + port;
+        KVStore replicaStore = replicaStores.remove(primaryAddress);
+        replicationManager.removePrimary(primaryAddress);
+        if (replicaStore == null) {
+            log.warning("No replica store of the failed server " + primaryAddress + " exists, its data is lost");
+            return;
+        }
+        List<HashKey[]> promotedRanges = new ArrayList<>();
+        if (ranges != null) {
+            for (String range : ranges.split(";")) {
+                String[] startAndEnd = range.split(",");
+                if (startAndEnd.length == 2) {
+                    promotedRanges.add(new HashKey[]{HashKey.fromHex(startAndEnd[0]), HashKey.fromHex(startAndEnd[1])});
+                }
+            }
+        }
+        StringBuilder data = new StringBuilder();
+        int keyCount = 0;
+        for (String entry : replicaStore.getAllData().split(";")) {
+            String[] keyValue = entry.trim().split(",", 2);
+            if (keyValue.length == 2 && !keyValue[0].isEmpty() && isInRanges(hashing.getHashKey(keyValue[0]), promotedRanges, ranges == null)) {
+                keyCount++;
+                data.append(keyValue[0]).append(",").append(keyValue[1]).append(";");
+            }
+        }
+        // the key range of the failed server and our own don't overlap, so the data can simply be appended
+        synchronized (replicationManager.getWriteOrderLock()) {
+            store.saveData(data.toString(), true);
+            replicationManager.replicateData(data.toString());
+        }
+        if (!replicaStore.deleteAllData()) {
+            log.warning("Replica store of " + primaryAddress + " couldn't be deleted after its promotion");
+        }
+        log.info("Promoted replica store of " + primaryAddress + " with " + keyCount + " keys");
+    }
+
+    private static boolean isInRanges(HashKey hash, List<HashKey[]> ranges, boolean all) {
+        if (all) {
+            return true;
+        }
+        for (HashKey[] range : ranges) {
+            if (hash.isInRange(range[0], range[1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public ECSConnection getEcsConnection() {
         return ecsConnection;
     }
@@ -238,42 +417,196 @@ public class KVServer {
     /**
      * Creates a replica store for a given replica node, associates it with that node, and requests data for it.
      * This process is executed only if the replica isn't already stored.
-     * After a new KVStore is created for the replica node, a socket connection is opened to the replica node,
-     * a request is sent to fetch its replica data, and upon receiving the data, it is saved in the newly created KVStore.
+     * After a new KVStore is created for the replica node, it is synchronized with the replica node,
+     * which sends a snapshot of its data together with the replication sequence number of the snapshot.
      *
-     * @param replicaNode          The node for which the replica store is to be created.
-     * @param replicaIPPortString  The IP:Port string representation of the replica node.
+     * @param replicaIPPortString  The IP:Port string representation of the replicated server.
      * @param replicaAlreadyStored A boolean indicating whether this replica is already stored in the current server.
-     * @throws RuntimeException if there's an I/O error when establishing a socket connection or sending/receiving messages.
      */
-    private void createReplicaStoreAndRequestData(RingList.Node replicaNode, String replicaIPPortString, boolean replicaAlreadyStored) {
+    private void createReplicaStoreAndRequestData(String replicaIPPortString, boolean replicaAlreadyStored) {
         if (!replicaAlreadyStored) {
             String filename = hashing.getMD5Hash(replicaIPPortString) + random.nextInt(0, 2147483640);
             KVStore replica2Store = new KVStore(store.getCache().getMaxSize(), store.getDisplacementStrategy(), store.getStorageLocation(), filename);
             replicaStores.put(replicaIPPortString, replica2Store);
             System.out.println("KVStore for the replica of " + replicaIPPortString + " was created and has file name: " + replica2Store.getStorageLocation() + "/" + replica2Store.getFilename());
-            // issue request to get data for this replica from the server via a socket
-            try {
-                Socket socket = new Socket(replicaNode.getIP(), Integer.parseInt(replicaNode.getPort()));
-                MessageHandler socketMessageHandler = new MessageHandler(socket);
-                // this is the Connected successfully! messages
-                socketMessageHandler.receive();
-                socketMessageHandler.send("request_replica_data");
-
-                String response = new String(socketMessageHandler.receive(), StandardCharsets.UTF_8);
-
-                System.out.println("Received (from " + replicaNode.getIP() + ":" + replicaNode.getPort() + "): " + response);
-
-                replica2Store.saveData(response, false);
-                socket.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            String[] split = replicaIPPortString.split(":");
+            replicationManager.synchronizeReplicaStore(split[0], split[1]);
+        }
+    }
+
+    public void passNewMetaData(String data, long epoch) {
+        ringList.parseAndUpdateMetaData(data, epoch);
+    }
+
+    /**
+     * Applies the changes to the metadata since the epoch this server knows.
+     *
+     * @param baseEpoch The epoch the changes are based on.
+     * @param epoch     The epoch after the changes.
+     * @param changes   The added and removed nodes.
+     * @return true if the changes were applied, false if this server needs the complete metadata.
+     */
+    public boolean passMetaDataDelta(long baseEpoch, long epoch, String changes) {
+        return ringList.applyMetaDataDelta(baseEpoch, epoch, changes);
+    }
+
+    /**
+     * Switches this server to another hash function as part of a cluster-wide switch. The ring the ECS computed with
+     * the new hash function is applied, and every key is handed over to the server that owns it under the new hash
+     * function. The server stays stopped until every server moved its keys, since keys are on their way in between.
+     * A key is only removed from the storage once its owner acknowledged it. Keys whose owner can't be reached are sent
+     * again, looking the owner up anew, since the ECS may hand the ranges of a failed owner to another server. After a
+     * few attempts the switch is reported as done and the keys are retried in the background.
+     *
+     * @param hashFunction The new hash function.
+     * @param metadata     The ring with the server positions of the new hash function.
+     * @param epoch        The epoch of the ring.
+     */
+    public void switchHashFunction(HashFunction hashFunction, String metadata, long epoch) {
+        setStopped(true);
+        ConsistentHashing.setHashFunction(hashFunction);
+        ringList.parseAndUpdateMetaData(metadata, epoch);
+        Map<String, String> dataByOwner = store.findDataOfOtherServers(hash -> {
+            RingList.Node owner = ringList.findByHashKey(hash);
+            return owner == null ? null : owner.getAddress();
+        }, address + ":" + port);
+        List<String> undelivered = handOverKeys(new ArrayList<>(dataByOwner.values()), HAND_OVER_ATTEMPTS);
+        if (!undelivered.isEmpty()) {
+            Thread retry = new Thread(() -> handOverKeys(undelivered, Integer.MAX_VALUE));
+            retry.setDaemon(true);
+            retry.start();
+        }
+        log.info("Switched to hash function " + hashFunction.getName() + ", moved keys to " + dataByOwner.size() + " servers");
+    }
+
+    /**
+     * Sends keys to the servers that own them on the current ring and removes the keys that were acknowledged from the
+     * storage. Keys that couldn't be delivered are sent again after a pause, until all keys were delivered or the
+     * attempts are used up.
+     *
+     * @param data     The key-value pairs, each element in the format key,value;key,value;
+     * @param attempts The maximum number of attempts.
+     * @return The key-value pairs that couldn't be delivered.
+     */
+    private List<String> handOverKeys(List<String> data, int attempts) {
+        for (int attempt = 0; attempt < attempts && !data.isEmpty(); attempt++) {
+            if (attempt > 0) {
+                try {
+                    Thread.sleep(HAND_OVER_RETRY_INTERVAL);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            List<String> undelivered = new ArrayList<>();
+            List<String> delivered = new ArrayList<>();
+            for (Map.Entry<String, StringBuilder> entry : groupByOwner(data).entrySet()) {
+                if (entry.getKey() == null) {
+                    undelivered.add(entry.getValue().toString());
+                    continue;
+                }
+                if (entry.getKey().equals(address + ":" + port)) {
+                    // the range of the unreachable owner was handed to this server, which still stores the keys
+                    continue;
+                }
+                String[] owner = entry.getKey().split(":");
+                List<String> chunks = MessageHandler.splitPairs(entry.getValue().toString(), MAX_TRANSFER_LENGTH);
+                for (int i = 0; i < chunks.size(); i++) {
+                    try {
+                        sendDataChunk(owner[0], Integer.parseInt(owner[1]), chunks.get(i));
+                        delivered.add(chunks.get(i));
+                    } catch (IOException e) {
+                        log.warning("Couldn't hand over keys to " + entry.getKey() + " after switching the hash function");
+                        undelivered.addAll(chunks.subList(i, chunks.size()));
+                        break;
+                    }
+                }
             }
+            removeDeliveredKeys(delivered);
+            data = undelivered;
         }
+        return data;
     }
 
-    public void passNewMetaData(String data) {
-        ringList.parseAndUpdateMetaData(data);
+    /**
+     * Removes keys from the storage after their new owner acknowledged them.
+     *
+     * @param delivered The delivered key-value pairs, each element in the format key,value;key,value;
+     */
+    private void removeDeliveredKeys(List<String> delivered) {
+        List<String> keys = new ArrayList<>();
+        for (String pairs : delivered) {
+            for (String pair : pairs.split(";")) {
+                String key = pair.split(",", 2)[0];
+                if (!key.isEmpty()) {
+                    keys.add(key);
+                }
+            }
+        }
+        if (!keys.isEmpty()) {
+            store.deleteBatch(keys);
+        }
+    }
+
+    /**
+     * Groups key-value pairs by the server that owns them on the current ring.
+     *
+     * @param data The key-value pairs, each element in the format key,value;key,value;
+     * @return The pairs by the "ip:port" address of their owner. Pairs without an owner are grouped under null.
+     */
+    private Map<String, StringBuilder> groupByOwner(List<String> data) {
+        Map<String, StringBuilder> dataByOwner = new HashMap<>();
+        for (String pairs : data) {
+            for (String entry : pairs.split(";")) {
+                String[] keyValue = entry.trim().split(",", 2);
+                if (keyValue.length < 2 || keyValue[0].isEmpty()) {
+                    continue;
+                }
+                RingList.Node owner = ringList.findByHashKey(hashing.getHashKey(keyValue[0]));
+                String ownerAddress = owner == null ? null : owner.getAddress();
+                dataByOwner.computeIfAbsent(ownerAddress, k -> new StringBuilder()).append(keyValue[0]).append(",").append(keyValue[1]).append(";");
+            }
+        }
+        return dataByOwner;
+    }
+
+    /**
+     * Finishes a cluster-wide switch of the hash function once every server moved its keys. The replica stores still
+     * hold the keys of the old hash function, so they are dropped and requested again from the primaries.
+     */
+    public void finishHashFunctionSwitch() {
+        for (String key : deleteAllReplicaStores()) {
+            replicaStores.remove(key);
+        }
+        fetchKeyRangesFromMetaData();
+        // the buckets still count the keys of the old hash function
+        rebuildFrequencyTable();
+        setStopped(false);
+    }
+
+    /**
+     * Counts the stored keys of the own key range anew, e.g. after the buckets were changed for a transfer
+     * that didn't happen.
+     */
+    public void rebuildFrequencyTable() {
+        if (startRange != null) {
+            frequencyTable.rebuild(startRange, endRange, getStoredKeys());
+        }
+    }
+
+    /**
+     * Reads the keys of all entries in the storage.
+     *
+     * @return The stored keys.
+     */
+    private List<String> getStoredKeys() {
+        List<String> keys = new ArrayList<>();
+        for (String pair : store.getAllData().split(";")) {
+            String key = pair.split(",")[0];
+            if (!key.isEmpty()) {
+                keys.add(key);
+            }
+        }
+        return keys;
     }
 
     /**
@@ -287,18 +620,20 @@ public class KVServer {
             isRunning = true;
 
             connectECSServer();
+            Thread antiEntropy = new Thread(new AntiEntropyTask(this));
+            antiEntropy.setDaemon(true);
+            antiEntropy.start();
+            Thread balancer = new Thread(loadBalancer);
+            balancer.setDaemon(true);
+            balancer.start();
             Signal.handle(new Signal("INT"), sig -> closingProtocol());
             Signal.handle(new Signal("TERM"), sig -> closingProtocol());
             while (isRunning) {
                 Socket client = serverSocket.accept();
-                try {
-                    ConsistentHashing hashing = new ConsistentHashing();
-                    ClientConnection connection = new ClientConnection(client, hashing, this);
-                    clientConnections.add(connection);
-                    new Thread(connection).start();
-                } catch (NoSuchAlgorithmException e) {
-                    throw new RuntimeException(e);
-                }
+                // the hashing service is thread-safe, so all connections share it
+                ClientConnection connection = new ClientConnection(client, hashing, this);
+                clientConnections.add(connection);
+                new Thread(connection).start();
             }
         } catch (IOException e) {
             log.warning("Error while accepting connection from " + address + ":" + port);
@@ -313,14 +648,11 @@ public class KVServer {
             String ecsAddress = bootstrapAddress.split(":")[0];
             String ecsPort = bootstrapAddress.split(":")[1];
             Socket ecs = new Socket(ecsAddress, Integer.parseInt(ecsPort));
-            ConsistentHashing hashing = new ConsistentHashing();
             ECSConnection connection = new ECSConnection(ecs, store, hashing, this, address, port, customEndRangeHash);
             ecsConnection = connection;
             new Thread(connection).start();
         } catch (IOException e) {
             log.warning("Error while trying to connect to the ECSServer");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
         }
     }
 
@@ -330,32 +662,28 @@ public class KVServer {
      * before the server node is taken down.
      */
     public void closingProtocol() {
-        RingList.Node node = ringList.findByIPandPort(address, String.valueOf(port));
-        String ipPrev = node.getNext().getIP();
-        int portPrev = Integer.parseInt(node.getNext().getPort());
+        List<RingList.Node> nodes = ringList.findAllByIPandPort(address, String.valueOf(port));
 
         ecsConnection.send("close");
-        //makes sure to only send 128000 bytes
-        String outPut = ecsConnection.getAllData();
-        int length = outPut.length();
+        // every range goes to the server that takes it over, which is a different server for every virtual node
+        Map<String, String> dataBySuccessor = new LinkedHashMap<>();
+        if (ringList.getServerCount() > 1) {
+            if (nodes.size() == 1) {
+                dataBySuccessor.put(nodes.get(0).getNext().getAddress(), ecsConnection.getAllData());
+            } else {
+                for (RingList.Node node : nodes) {
+                    RingList.Node successor = ringList.findSuccessorServer(node);
+                    dataBySuccessor.merge(successor.getAddress(), store.getDataBetweenKeyRanges(node.getStartRange(), node.getEndRange()), String::concat);
+                }
+            }
+        }
 
         try {
-            if (ringList.getSize() != 1) {
-                System.out.println("Attempting to connect to " + ipPrev + ":" + portPrev);
-                Socket serverCommunication = new Socket(ipPrev, portPrev);
-                MessageHandler messageHandler = new MessageHandler(serverCommunication);
-
-                if (length >= 128000) {
-                    int substringLength = (int) Math.ceil((double) length / 128000);
-                    for (int i = 0; i < length; i += substringLength) {
-                        int endIndex = Math.min(i + substringLength, length);
-                        String substring = outPut.substring(i, endIndex);
-                        messageHandler.send("save_data " + substring);
-                    }
-                } else {
-                    messageHandler.send("save_data " + outPut);
-                    System.out.println("sending: " + outPut);
-                }
+            for (Map.Entry<String, String> entry : dataBySuccessor.entrySet()) {
+                String[] successor = entry.getKey().split(":");
+                sendAllData(successor[0], Integer.parseInt(successor[1]), entry.getValue());
+            }
+            if (!dataBySuccessor.isEmpty()) {
                 store.deleteAllData();
             }
             deleteAllReplicaStores();
@@ -367,6 +695,45 @@ public class KVServer {
         }
     }
 
+    /**
+     * Sends data to the server that takes it over while this server is closing.
+     *
+     * @param ip     The IP address of the receiving server.
+     * @param port   The port of the receiving server.
+     * @param outPut The data in the format key,value;key,value;
+     * @throws IOException If the receiving server didn't acknowledge all of the data.
+     */
+    private void sendAllData(String ip, int port, String outPut) throws IOException {
+        for (String chunk : MessageHandler.splitPairs(outPut, MAX_TRANSFER_LENGTH)) {
+            sendDataChunk(ip, port, chunk);
+        }
+    }
+
+    /**
+     * Sends a chunk of data that fits into a single message over its own connection and waits until the receiving
+     * server acknowledged that it stored the data.
+     *
+     * @param ip    The IP address of the receiving server.
+     * @param port  The port of the receiving server.
+     * @param chunk The data in the format key,value;key,value;
+     * @throws IOException If the receiving server can't be reached or didn't acknowledge the data.
+     */
+    private void sendDataChunk(String ip, int port, String chunk) throws IOException {
+        try (Socket serverCommunication = new Socket()) {
+            serverCommunication.connect(new InetSocketAddress(ip, port), TRANSFER_CONNECT_TIMEOUT);
+            serverCommunication.setSoTimeout(TRANSFER_READ_TIMEOUT);
+            MessageHandler messageHandler = new MessageHandler(serverCommunication);
+            // this is the Connected successfully! message
+            if (messageHandler.receive() == null || !messageHandler.send("save_data " + chunk)) {
+                throw new IOException("Couldn't send data to " + ip + ":" + port);
+            }
+            byte[] response = messageHandler.receive();
+            if (response == null || !new String(response, StandardCharsets.UTF_8).trim().equals("save_data_success")) {
+                throw new IOException(ip + ":" + port + " didn't acknowledge the data");
+            }
+        }
+    }
+
     /**
      * Stops the KVServer and closes all its connections.
      */
@@ -378,6 +745,9 @@ public class KVServer {
             for (ClientConnection clientConnection : clientConnections) {
                 clientConnection.close();
             }
+            replicationManager.stop();
+            peerConnections.closeAll();
+            chainConnections.closeAll();
             ecsConnection.close();
             serverSocket.close();
         } catch (IOException e) {
@@ -390,6 +760,18 @@ public class KVServer {
         return usageMetrics;
     }
 
+    public LoadBalancer getLoadBalancer() {
+        return loadBalancer;
+    }
+
+    public WriteAck getWriteAck() {
+        return writeAck;
+    }
+
+    public ReplicationMode getReplicationMode() {
+        return replicationMode;
+    }
+
     public FrequencyTable getFrequencyTable() {
         return frequencyTable;
     }
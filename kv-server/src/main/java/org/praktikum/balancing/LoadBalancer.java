@@ -0,0 +1,236 @@
+package org.praktikum.balancing;
+
+import org.praktikum.KVServer;
+import org.praktikum.communication.MessageHandler;
+import org.praktikum.resources.RingList;
+import org.praktikum.resources.UsageMetrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Periodically compares the load of this server with the load of its ring neighbours and offloads
+ * the keys of the busiest buckets to the less loaded neighbour, so client requests never wait for balancing.
+ * <p>
+ * Every round, the server pushes a {@link LoadSummary} of itself to both neighbours and caches the summaries it
+ * receives from them, so a balancing decision only looks at the cache. A neighbour whose last summary is older than
+ * a few rounds is treated as unknown and no keys are offloaded to it.
+ * <p>
+ * The balancer starts offloading only once this server is clearly busier than the lighter neighbour (HIGH_RATIO)
+ * and keeps offloading in later rounds as long as it's still a bit busier (LOW_RATIO), so small fluctuations
+ * don't start or stop a transfer. After every transfer it waits a full usage window, so the next decision is based
+ * on requests that already reflect the new ranges. At most one transfer runs at a time.
+ * <p>
+ * The neighbour acknowledges every part of the moved data. Only then are the replicas told to drop the range and
+ * the ECS asked to change the key ranges. If the neighbour doesn't acknowledge, the data stays on this server.
+ */
+public class LoadBalancer implements Runnable {
+    private static final long INTERVAL = 5000;
+    private static final long COOLDOWN = UsageMetrics.WINDOW_SECONDS * 1000L;
+    // a neighbour that didn't report for this long is treated as unknown
+    private static final long NEIGHBOUR_LOAD_TTL = 3 * INTERVAL;
+    // the minimum number of operations in the usage window before keys are offloaded at all
+    private static final int OPERATION_COUNT_OFFLOAD_THRESHOLD = 4;
+    private static final double HIGH_RATIO = 1.5;
+    private static final double LOW_RATIO = 1.1;
+
+    private final KVServer kvServer;
+    private final Map<String, NeighbourLoad> neighbourLoads = new ConcurrentHashMap<>();
+    private final AtomicBoolean transferring = new AtomicBoolean(false);
+    private volatile boolean offloading;
+    private volatile long lastTransfer;
+
+    private record NeighbourLoad(LoadSummary summary, long timestamp) {
+    }
+
+    public LoadBalancer(KVServer kvServer) {
+        this.kvServer = kvServer;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                // the requests only queue their accesses, so they are counted once per round
+                kvServer.getFrequencyTable().drainAccesses();
+                reportLoad();
+                balance();
+            } catch (RuntimeException e) {
+                KVServer.log.warning("Load balancing failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs a single balancing round and offloads keys to a neighbour if this server is overloaded.
+     */
+    public void balance() {
+        // the ranges of virtual nodes are fixed by the ECS
+        if (!kvServer.ownsSingleRange() || kvServer.isStopped() || kvServer.isWriteLock()) {
+            return;
+        }
+        if (System.currentTimeMillis() - lastTransfer < COOLDOWN) {
+            return;
+        }
+        int ownLoad = kvServer.getUsageMetrics().getOperationsLast30s();
+        if (ownLoad < OPERATION_COUNT_OFFLOAD_THRESHOLD) {
+            offloading = false;
+            return;
+        }
+        RingList.Node node = kvServer.getRingList().findByIPandPort(kvServer.getAddress(), Integer.toString(kvServer.getPort()));
+        if (node == null || node.getNext() == node) {
+            return;
+        }
+        RingList.Node nodeNext = node.getNext();
+        RingList.Node nodePrev = node.getPrev();
+        LoadSummary nextSummary = getNeighbourLoad(nodeNext);
+        LoadSummary prevSummary = getNeighbourLoad(nodePrev);
+        if (nextSummary == null || prevSummary == null) {
+            return;
+        }
+        int nextLoad = nextSummary.operations();
+        int prevLoad = prevSummary.operations();
+        int lighterLoad = Math.min(nextLoad, prevLoad);
+        double ratio = offloading ? LOW_RATIO : HIGH_RATIO;
+        if (ownLoad <= lighterLoad * ratio) {
+            offloading = false;
+            return;
+        }
+        if (!transferring.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            KVServer.log.info("Offloading keys, load " + ownLoad + ", next " + nextLoad + ", previous " + prevLoad);
+            //if the load of the next server is smaller than the load of prev you offload your keys to the next server
+            boolean toNext = nextLoad < prevLoad;
+            String[] keyRange = kvServer.getFrequencyTable().calculateOffloadKeyRange(!toNext);
+            // the frequency table returns an empty range if it can't split off a part of the load
+            if (keyRange[0].equals(keyRange[1])) {
+                return;
+            }
+            if (!transfer(toNext ? nodeNext : nodePrev, keyRange)) {
+                // the frequency table already dropped the range
+                kvServer.rebuildFrequencyTable();
+                return;
+            }
+            if (toNext) {
+                changeKeyRangeRequest(kvServer.getStartRange(), keyRange[0]);
+            } else {
+                changeKeyRangeRequest(keyRange[1], kvServer.getEndRange());
+            }
+            offloading = true;
+            lastTransfer = System.currentTimeMillis();
+            // the summaries of the neighbours don't include the moved keys yet
+            neighbourLoads.clear();
+        } finally {
+            transferring.set(false);
+        }
+    }
+
+    /**
+     * Sends the data of a key range to a neighbour, while this server doesn't accept writes. The write lock is set
+     * before the data is taken from the storage, so no write gets lost in between. The removal of the range is only
+     * replicated once the neighbour acknowledged all of the data, otherwise the data is put back into the storage.
+     *
+     * @param neighbour The neighbour that takes over the range.
+     * @param keyRange  The {start, end} range to send.
+     * @return true if the neighbour acknowledged the data, false otherwise.
+     */
+    private boolean transfer(RingList.Node neighbour, String[] keyRange) {
+        kvServer.getPeerConnections().send(neighbour.getIP(), neighbour.getPort(), "set_write_lock");
+        kvServer.setWriteLock(true);
+        try {
+            String data;
+            synchronized (kvServer.getReplicationManager().getWriteOrderLock()) {
+                data = kvServer.getStore().getDataBetweenKeyRanges(keyRange[0], keyRange[1]);
+            }
+            for (String chunk : MessageHandler.splitPairs(data, KVServer.MAX_TRANSFER_LENGTH)) {
+                String response = kvServer.getPeerConnections().request(neighbour.getIP(), neighbour.getPort(), "save_data_buckets " + chunk);
+                if (response == null || !response.startsWith("save_data_buckets_success")) {
+                    KVServer.log.warning("Neighbour " + neighbour.getAddress() + " didn't acknowledge the offloaded keys, keeping them");
+                    synchronized (kvServer.getReplicationManager().getWriteOrderLock()) {
+                        kvServer.getStore().saveData(data, true);
+                    }
+                    return false;
+                }
+            }
+            synchronized (kvServer.getReplicationManager().getWriteOrderLock()) {
+                kvServer.getReplicationManager().replicateRangeRemoval(keyRange[0], keyRange[1]);
+            }
+            return true;
+        } finally {
+            kvServer.getPeerConnections().send(neighbour.getIP(), neighbour.getPort(), "remove_write_lock");
+            kvServer.setWriteLock(false);
+        }
+    }
+
+    /**
+     * Requests a change in the key range of the server.
+     *
+     * @param startRange The new start range.
+     * @param endRange   The new end range.
+     */
+    private void changeKeyRangeRequest(String startRange, String endRange) {
+        kvServer.getEcsConnection().send("update_keyrange " + startRange + " " + endRange);
+    }
+
+    /**
+     * Summarizes the current load of this server.
+     *
+     * @return The summary.
+     */
+    public LoadSummary summarizeLoad() {
+        UsageMetrics usageMetrics = kvServer.getUsageMetrics();
+        return new LoadSummary(usageMetrics.getOperationsLast30s(), usageMetrics.getRate(5),
+                kvServer.getFrequencyTable().getTotalBucketSize(), kvServer.getStore().getStorageSize(),
+                usageMetrics.getLatencyPercentile(0.99));
+    }
+
+    /**
+     * Pushes the load summary of this server to its neighbours on the ring.
+     */
+    private void reportLoad() {
+        if (!kvServer.ownsSingleRange()) {
+            return;
+        }
+        RingList.Node node = kvServer.getRingList().findByIPandPort(kvServer.getAddress(), Integer.toString(kvServer.getPort()));
+        if (node == null || node.getNext() == node) {
+            return;
+        }
+        String report = summarizeLoad().toMessage(kvServer.getAddress(), kvServer.getPort());
+        kvServer.getPeerConnections().send(node.getNext().getIP(), node.getNext().getPort(), report);
+        if (node.getPrev() != node.getNext()) {
+            kvServer.getPeerConnections().send(node.getPrev().getIP(), node.getPrev().getPort(), report);
+        }
+    }
+
+    /**
+     * Caches the load summary a neighbour pushed to this server.
+     *
+     * @param address The "ip:port" address of the neighbour.
+     * @param summary The load summary of the neighbour.
+     */
+    public void receiveLoadReport(String address, LoadSummary summary) {
+        neighbourLoads.put(address, new NeighbourLoad(summary, System.currentTimeMillis()));
+    }
+
+    /**
+     * Returns the cached load summary of a neighbour.
+     *
+     * @param neighbour The neighbour on the ring.
+     * @return The summary, or null if the neighbour didn't report recently.
+     */
+    public LoadSummary getNeighbourLoad(RingList.Node neighbour) {
+        NeighbourLoad cached = neighbourLoads.get(neighbour.getIP() + ":" + neighbour.getPort());
+        if (cached == null || System.currentTimeMillis() - cached.timestamp() > NEIGHBOUR_LOAD_TTL) {
+            return null;
+        }
+        return cached.summary();
+    }
+}
@@ -0,0 +1,45 @@
+package org.praktikum.balancing;
+
+import java.util.Locale;
+
+/**
+ * A compact summary of the load of a server that is pushed to its ring neighbours as
+ * load_report ip port operations rate keys bytes p99
+ *
+ * @param operations The operations in the usage window.
+ * @param rate       The average operations per second over the last 5 seconds.
+ * @param keys       The number of keys the server stores.
+ * @param bytes      The size of the server's storage in bytes.
+ * @param p99        The 99th percentile of the request latency in microseconds.
+ */
+public record LoadSummary(int operations, double rate, long keys, long bytes, long p99) {
+
+    /**
+     * Creates the load_report message of a server.
+     *
+     * @param ip   The IP address of the reporting server.
+     * @param port The port of the reporting server.
+     * @return The message.
+     */
+    public String toMessage(String ip, int port) {
+        return String.format(Locale.ROOT, "load_report %s %d %d %.2f %d %d %d", ip, port, operations, rate, keys, bytes, p99);
+    }
+
+    /**
+     * Parses the summary of a load_report message.
+     *
+     * @param tokens The tokens of the message.
+     * @return The summary, or null if the message is malformed.
+     */
+    public static LoadSummary parse(String[] tokens) {
+        if (tokens.length < 8) {
+            return null;
+        }
+        try {
+            return new LoadSummary(Integer.parseInt(tokens[3]), Double.parseDouble(tokens[4]),
+                    Long.parseLong(tokens[5]), Long.parseLong(tokens[6]), Long.parseLong(tokens[7]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -5,10 +5,14 @@ import org.praktikum.KVServer;
 import java.io.*;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Logger;
 
 public class MessageHandler {
+    // the number of bytes receive reads at most, longer messages are cut off
+    public static final int MAX_MESSAGE_LENGTH = 128000;
     private InputStream in;
     private OutputStream out;
 
@@ -30,9 +34,9 @@ public class MessageHandler {
         try {
             byte prev = (byte) in.read();
             int i = 1;
-            byte[] bytes = new byte[128000];
+            byte[] bytes = new byte[MAX_MESSAGE_LENGTH];
             bytes[0] = prev;
-            while (i < 128000) {
+            while (i < MAX_MESSAGE_LENGTH) {
                 byte curr = (byte) in.read();
                 bytes[i++] = curr;
                 if (curr == - 1 || curr == - 3) {
@@ -56,8 +60,9 @@ public class MessageHandler {
      * Sends data to the connected client
      *
      * @param data String with the needed data
+     * @return true if the data was written to the socket, false otherwise
      */
-    public void send(String data) {
+    public boolean send(String data) {
         try {
             data = data + "\r\n";
             out.write(data.getBytes(StandardCharsets.UTF_8));
@@ -65,11 +70,43 @@ public class MessageHandler {
             if (! data.startsWith("server_is_running")) {
                 sent(data);
             }
+            return true;
         } catch (IOException e) {
-            //do sth
+            return false;
         }
     }
 
+    /**
+     * Splits key-value pairs into chunks that each fit into a message. Chunks only end after a complete pair,
+     * so a pair is never cut in half. A single pair that is longer than the limit gets a chunk of its own.
+     *
+     * @param data      The key-value pairs in the format key,value;key,value;
+     * @param maxLength The maximum number of UTF-8 bytes of a chunk.
+     * @return The chunks in the same format, or an empty list if there are no pairs.
+     */
+    public static List<String> splitPairs(String data, int maxLength) {
+        List<String> chunks = new ArrayList<>();
+        StringBuilder chunk = new StringBuilder();
+        int chunkLength = 0;
+        for (String pair : data.split(";")) {
+            if (pair.isBlank()) {
+                continue;
+            }
+            int pairLength = pair.getBytes(StandardCharsets.UTF_8).length + 1;
+            if (chunkLength > 0 && chunkLength + pairLength > maxLength) {
+                chunks.add(chunk.toString());
+                chunk.setLength(0);
+                chunkLength = 0;
+            }
+            chunk.append(pair).append(';');
+            chunkLength += pairLength;
+        }
+        if (chunkLength > 0) {
+            chunks.add(chunk.toString());
+        }
+        return chunks;
+    }
+
     /**
      * tries to close in the in and output stream and catches potential exceptions
      */
@@ -0,0 +1,179 @@
+package org.praktikum.communication;
+
+import org.praktikum.KVServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one long-lived connection per peer server, keyed by "ip:port".
+ * Connections are opened lazily on first use and reopened once if a send fails,
+ * so server-to-server messages don't pay for a new socket on every write.
+ * A peer that doesn't accept the connection or doesn't answer in time is treated like a failed attempt and
+ * disconnected, so a hung peer can't block the threads that share its connection.
+ */
+public class PeerConnectionPool {
+    private static final int CONNECT_TIMEOUT = 2000;
+    public static final int DEFAULT_READ_TIMEOUT = 10000;
+    private final Map<String, PeerConnection> connections = new ConcurrentHashMap<>();
+    private final int readTimeout;
+
+    /**
+     * Creates a pool whose connections wait DEFAULT_READ_TIMEOUT milliseconds for a response.
+     */
+    public PeerConnectionPool() {
+        this(DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * Creates a pool with a custom read timeout.
+     *
+     * @param readTimeout How long a connection waits for a response in milliseconds.
+     */
+    public PeerConnectionPool(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Sends a message to a peer without waiting for a response.
+     *
+     * @param ip      The IP address of the peer.
+     * @param port    The port of the peer.
+     * @param message The message to send.
+     * @return true if the message was written to the peer's connection, false otherwise.
+     */
+    public boolean send(String ip, String port, String message) {
+        return getConnection(ip, port).send(message);
+    }
+
+    /**
+     * Sends a message to a peer and waits for its response on the same connection.
+     *
+     * @param ip      The IP address of the peer.
+     * @param port    The port of the peer.
+     * @param message The message to send.
+     * @return The response of the peer, or null if the peer couldn't be reached.
+     */
+    public String request(String ip, String port, String message) {
+        return getConnection(ip, port).request(message);
+    }
+
+    /**
+     * Closes and removes the connections to all peers that are not part of the given addresses.
+     * This is called after every metadata update, since the set of peers changes with the ring.
+     *
+     * @param addresses The "ip:port" addresses of the peers that are still needed.
+     */
+    public void retainOnly(Collection<String> addresses) {
+        for (String address : connections.keySet()) {
+            if (!addresses.contains(address)) {
+                PeerConnection connection = connections.remove(address);
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes all pooled connections.
+     */
+    public void closeAll() {
+        for (PeerConnection connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+    }
+
+    private PeerConnection getConnection(String ip, String port) {
+        return connections.computeIfAbsent(ip + ":" + port, address -> new PeerConnection(ip, Integer.parseInt(port), readTimeout));
+    }
+
+    /**
+     * A single connection to a peer. All access is synchronized, so a request and its
+     * response can't interleave with messages of other threads.
+     */
+    private static class PeerConnection {
+        private final String ip;
+        private final int port;
+        private final int readTimeout;
+        private Socket socket;
+        private MessageHandler messageHandler;
+
+        PeerConnection(String ip, int port, int readTimeout) {
+            this.ip = ip;
+            this.port = port;
+            this.readTimeout = readTimeout;
+        }
+
+        synchronized boolean send(String message) {
+            for (int attempt = 0; attempt < 2; attempt++) {
+                if (connect() && messageHandler.send(message)) {
+                    return true;
+                }
+                disconnect();
+            }
+            KVServer.log.warning("Couldn't send message to peer " + ip + ":" + port);
+            return false;
+        }
+
+        synchronized String request(String message) {
+            for (int attempt = 0; attempt < 2; attempt++) {
+                if (connect() && messageHandler.send(message)) {
+                    byte[] response = messageHandler.receive();
+                    if (response != null) {
+                        return new String(response, StandardCharsets.UTF_8).trim();
+                    }
+                }
+                disconnect();
+            }
+            KVServer.log.warning("Couldn't get a response from peer " + ip + ":" + port);
+            return null;
+        }
+
+        synchronized void close() {
+            disconnect();
+        }
+
+        /**
+         * Opens the socket if it isn't open yet and consumes the greeting of the peer.
+         *
+         * @return true if the connection is usable, false otherwise.
+         */
+        private boolean connect() {
+            if (socket != null && !socket.isClosed()) {
+                return true;
+            }
+            try {
+                socket = new Socket();
+                socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT);
+                // a response that doesn't arrive in time makes receive return null, which disconnects
+                socket.setSoTimeout(readTimeout);
+                messageHandler = new MessageHandler(socket);
+                // this is the Connected successfully! message
+                return messageHandler.receive() != null;
+            } catch (IOException e) {
+                KVServer.log.warning("Couldn't connect to peer " + ip + ":" + port);
+                disconnect();
+                return false;
+            }
+        }
+
+        private void disconnect() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    KVServer.log.warning("Error while closing connection to peer " + ip + ":" + port);
+                }
+            }
+            socket = null;
+            messageHandler = null;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.praktikum.replication;
+
+import org.praktikum.KVServer;
+import org.praktikum.storage.KVStore;
+import org.praktikum.storage.MerkleTree;
+
+import java.util.*;
+
+/**
+ * Periodically compares the Merkle tree of the primary store with the trees of its replica stores
+ * and repairs the leaves that diverged, e.g. because a replication frame was lost.
+ * <p>
+ * The comparison descends the tree level by level with merkle_hashes ip port level index,index,...
+ * and only continues below nodes whose hashes differ. The divergent leaves are then overwritten on
+ * the replica with merkle_repair ip port leaf,leaf,... key,value;key,value;
+ */
+public class AntiEntropyTask implements Runnable {
+    private static final long INTERVAL = 30000;
+    // stays well below the 128000 bytes a single message may have
+    private static final int MAX_REPAIR_LENGTH = 100000;
+
+    private final KVServer kvServer;
+
+    public AntiEntropyTask(KVServer kvServer) {
+        this.kvServer = kvServer;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            ReplicationManager replicationManager = kvServer.getReplicationManager();
+            for (String address : replicationManager.getReplicaAddresses()) {
+                // while operations are in flight the trees differ anyway, so the comparison waits for the next round
+                if (replicationManager.isCaughtUp(address)) {
+                    compareAndRepair(address);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares the primary store with one replica and repairs the divergent leaves.
+     *
+     * @param address The "ip:port" address of the replica.
+     */
+    private void compareAndRepair(String address) {
+        String[] ipAndPort = address.split(":");
+        KVStore store = kvServer.getStore();
+        List<Integer> divergent = List.of(0);
+        for (int level = 0; level <= MerkleTree.DEPTH; level++) {
+            long[] replicaHashes = requestHashes(ipAndPort[0], ipAndPort[1], level, divergent);
+            if (replicaHashes == null) {
+                return;
+            }
+            List<Integer> stillDivergent = new ArrayList<>();
+            for (int i = 0; i < divergent.size(); i++) {
+                if (store.getMerkleHash(level, divergent.get(i)) != replicaHashes[i]) {
+                    stillDivergent.add(divergent.get(i));
+                }
+            }
+            if (stillDivergent.isEmpty()) {
+                return;
+            }
+            if (level == MerkleTree.DEPTH) {
+                divergent = stillDivergent;
+                break;
+            }
+            divergent = new ArrayList<>();
+            for (int index : stillDivergent) {
+                divergent.add(2 * index);
+                divergent.add(2 * index + 1);
+            }
+        }
+        KVServer.log.info("Repairing " + divergent.size() + " divergent leaves of the replica on " + address);
+        repair(ipAndPort[0], ipAndPort[1], divergent);
+    }
+
+    /**
+     * Requests the hashes of the given nodes from the replica store of this server on a replica.
+     *
+     * @return The hashes in the order of the indices, or null if the replica couldn't be asked.
+     */
+    private long[] requestHashes(String ip, String port, int level, List<Integer> indices) {
+        StringJoiner joiner = new StringJoiner(",");
+        for (int index : indices) {
+            joiner.add(Integer.toString(index));
+        }
+        String response = kvServer.getPeerConnections().request(ip, port, "merkle_hashes " + kvServer.getAddress() + " " + kvServer.getPort() + " " + level + " " + joiner);
+        // the replica answers none if it doesn't hold a replica store of this server (yet)
+        if (response == null || !response.startsWith("merkle_hashes_result ") || response.endsWith(" none")) {
+            return null;
+        }
+        String[] hashes = response.substring("merkle_hashes_result ".length()).trim().split(",");
+        if (hashes.length != indices.size()) {
+            return null;
+        }
+        long[] result = new long[hashes.length];
+        for (int i = 0; i < hashes.length; i++) {
+            result[i] = Long.parseUnsignedLong(hashes[i], 16);
+        }
+        return result;
+    }
+
+    /**
+     * Sends the content of the divergent leaves to the replica, split into messages of limited size.
+     */
+    private void repair(String ip, String port, List<Integer> leaves) {
+        StringJoiner leafIndices = new StringJoiner(",");
+        StringBuilder data = new StringBuilder();
+        Map<Integer, Map<String, String>> dataByLeaf = kvServer.getStore().getLeafData(new HashSet<>(leaves));
+        for (int leaf : leaves) {
+            StringBuilder leafData = new StringBuilder();
+            for (Map.Entry<String, String> entry : dataByLeaf.getOrDefault(leaf, Map.of()).entrySet()) {
+                leafData.append(entry.getKey()).append(",").append(entry.getValue()).append(";");
+            }
+            if (leafIndices.length() > 0 && data.length() + leafData.length() > MAX_REPAIR_LENGTH) {
+                sendRepair(ip, port, leafIndices.toString(), data.toString());
+                leafIndices = new StringJoiner(",");
+                data.setLength(0);
+            }
+            leafIndices.add(Integer.toString(leaf));
+            data.append(leafData);
+        }
+        sendRepair(ip, port, leafIndices.toString(), data.toString());
+    }
+
+    private void sendRepair(String ip, String port, String leafIndices, String data) {
+        String response = kvServer.getPeerConnections().request(ip, port, "merkle_repair " + kvServer.getAddress() + " " + kvServer.getPort() + " " + leafIndices + " " + data);
+        if (response == null || !response.startsWith("merkle_repair_done")) {
+            KVServer.log.warning("Repair of leaves " + leafIndices + " on " + ip + ":" + port + " failed");
+        }
+    }
+}
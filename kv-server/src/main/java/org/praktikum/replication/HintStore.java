@@ -0,0 +1,158 @@
+package org.praktikum.replication;
+
+import org.praktikum.KVServer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Stores replication frames that couldn't be delivered to a replica as hints on disk, one file per replica.
+ * Every line of a hint file is one frame in the format firstSeq count P,key,value;D,key;...
+ * <p>
+ * The hints are replayed in order once the replica is reachable again. A hint file is bounded in size.
+ * If a replica is unavailable for longer, further frames are discarded and the replica catches up through
+ * request_replica_sync as soon as it notices the gap.
+ */
+public class HintStore {
+    private final String directory;
+    private final String prefix;
+    private final long maxBytesPerReplica;
+    private final Set<String> overflowed = new HashSet<>();
+    // the number of frames in every hint file, so a replay can tell whether frames were appended meanwhile
+    private final Map<String, Integer> frameCounts = new HashMap<>();
+
+    /**
+     * Creates the hint store and removes hints of an earlier run, since their sequence numbers are meaningless now.
+     *
+     * @param directory          The directory the hint files are stored in.
+     * @param prefix             The prefix of the hint files, usually the filename of the primary store.
+     * @param maxBytesPerReplica The maximum size of the hint file of a single replica.
+     */
+    public HintStore(String directory, String prefix, long maxBytesPerReplica) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.maxBytesPerReplica = maxBytesPerReplica;
+        File[] files = new File(directory).listFiles((dir, name) -> name.startsWith(prefix + "-hints-"));
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    KVServer.log.warning("Couldn't delete old hint file " + file.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether frames for a replica were stored or discarded since it was last reachable.
+     *
+     * @param address The "ip:port" address of the replica.
+     * @return true if the replica has missed frames, false otherwise.
+     */
+    public synchronized boolean hasHints(String address) {
+        return overflowed.contains(address) || getFile(address).exists();
+    }
+
+    /**
+     * Appends a frame to the hint file of a replica. If the file would exceed its maximum size,
+     * it is deleted and the frames are discarded until the hints are cleared.
+     *
+     * @param address       The "ip:port" address of the replica.
+     * @param firstSequence The sequence number of the first operation in the frame.
+     * @param count         The number of operations in the frame.
+     * @param ops           The encoded operations of the frame.
+     */
+    public synchronized void append(String address, long firstSequence, int count, String ops) {
+        if (overflowed.contains(address)) {
+            return;
+        }
+        File file = getFile(address);
+        String line = firstSequence + " " + count + " " + ops + "\n";
+        if (file.length() + line.getBytes(StandardCharsets.UTF_8).length > maxBytesPerReplica) {
+            KVServer.log.warning("Hints for " + address + " exceed " + maxBytesPerReplica + " bytes, the replica will have to resynchronize");
+            discard(address);
+            return;
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            writer.write(line);
+            frameCounts.merge(address, 1, Integer::sum);
+        } catch (IOException e) {
+            KVServer.log.warning("Couldn't store hint for " + address);
+        }
+    }
+
+    /**
+     * Discards the hints of a replica that missed too many frames. Further frames are discarded as well until the
+     * hints are cleared, the replica catches up through request_replica_sync instead.
+     *
+     * @param address The "ip:port" address of the replica.
+     */
+    public synchronized void discard(String address) {
+        overflowed.add(address);
+        frameCounts.remove(address);
+        File file = getFile(address);
+        if (file.exists()) {
+            deleteFile(file);
+        }
+    }
+
+    /**
+     * Loads the stored frames of a replica in the order they were appended.
+     *
+     * @param address The "ip:port" address of the replica.
+     * @return The frames, each in the format firstSeq count ops.
+     */
+    public synchronized List<String> load(String address) {
+        File file = getFile(address);
+        if (!file.exists()) {
+            return new ArrayList<>();
+        }
+        try {
+            return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            KVServer.log.warning("Couldn't read hints for " + address);
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Removes all hints of a replica, either because they were replayed or because the replica left the ring.
+     *
+     * @param address The "ip:port" address of the replica.
+     */
+    public synchronized void clear(String address) {
+        overflowed.remove(address);
+        frameCounts.remove(address);
+        File file = getFile(address);
+        if (file.exists()) {
+            deleteFile(file);
+        }
+    }
+
+    /**
+     * Removes the hints of a replica after they were replayed, unless further frames were appended since they were loaded.
+     * Discarded frames can't be replayed anyway, the replica catches up through request_replica_sync instead.
+     *
+     * @param address  The "ip:port" address of the replica.
+     * @param replayed The number of frames that were replayed.
+     * @return true if the hints were removed, false if there are further frames to replay.
+     */
+    public synchronized boolean clearReplayed(String address, int replayed) {
+        if (!overflowed.contains(address) && frameCounts.getOrDefault(address, 0) != replayed) {
+            return false;
+        }
+        clear(address);
+        return true;
+    }
+
+    private File getFile(String address) {
+        return new File(directory, prefix + "-hints-" + address.replace(':', '-'));
+    }
+
+    private void deleteFile(File file) {
+        if (!file.delete()) {
+            KVServer.log.warning("Couldn't delete hint file " + file.getName());
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.praktikum.replication;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A bounded in-memory log of the most recent replication operations of the primary store.
+ * Replicas that fell behind catch up from this log. Once the log is truncated past the last
+ * operation a replica has applied, the replica has to fall back to a full snapshot.
+ */
+public class OperationLog {
+    private final int maxOperations;
+    private final long maxBytes;
+    private final Deque<ReplicationOp> operations = new ArrayDeque<>();
+    private long bytes = 0;
+    private long lastSequenceNumber = 0;
+
+    /**
+     * Constructs a new operation log.
+     *
+     * @param maxOperations The maximum number of operations that are kept.
+     * @param maxBytes      The maximum encoded size of all kept operations.
+     */
+    public OperationLog(int maxOperations, long maxBytes) {
+        this.maxOperations = maxOperations;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Appends an operation and truncates the oldest operations if the log exceeds its bounds.
+     *
+     * @param op The operation to append, its sequence number has to be higher than the last one.
+     */
+    public synchronized void append(ReplicationOp op) {
+        operations.addLast(op);
+        bytes += op.encode().length();
+        lastSequenceNumber = op.getSequenceNumber();
+        while (operations.size() > maxOperations || bytes > maxBytes) {
+            bytes -= operations.removeFirst().encode().length();
+        }
+    }
+
+    /**
+     * Returns all operations after the given sequence number.
+     *
+     * @param sequenceNumber The last sequence number the caller has applied.
+     * @return The operations in sequence order, or null if the log doesn't reach back far enough.
+     */
+    public synchronized List<ReplicationOp> since(long sequenceNumber) {
+        if (sequenceNumber > lastSequenceNumber) {
+            return null;
+        }
+        if (sequenceNumber < lastSequenceNumber && (operations.isEmpty() || operations.getFirst().getSequenceNumber() > sequenceNumber + 1)) {
+            return null;
+        }
+        List<ReplicationOp> result = new ArrayList<>();
+        for (ReplicationOp op : operations) {
+            if (op.getSequenceNumber() > sequenceNumber) {
+                result.add(op);
+            }
+        }
+        return result;
+    }
+
+    public synchronized long getLastSequenceNumber() {
+        return lastSequenceNumber;
+    }
+}
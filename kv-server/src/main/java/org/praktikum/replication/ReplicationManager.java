@@ -0,0 +1,893 @@
+package org.praktikum.replication;
+
+import org.praktikum.KVServer;
+import org.praktikum.communication.MessageHandler;
+import org.praktikum.resources.KVPair;
+import org.praktikum.storage.KVStore;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replicates the mutations of the primary store to its replicas in the background.
+ * Every mutation gets a sequence number and is put into a bounded queue per replica.
+ * A sender thread per replica drains its queue and ships the operations as multi-op frames
+ * over the pooled peer connection:
+ * <p>
+ * server_replicate ip port incarnation firstSeq count P,key,value;D,key;...
+ * <p>
+ * The incarnation is the start time of the primary. Sequence numbers start again at 1 whenever a server restarts,
+ * so they can only be compared within the same incarnation.
+ * <p>
+ * The replica answers every frame with replicate_ack lastSeq once it has applied the frame, which lets
+ * writers wait for a configurable number of replicas (see {@link WriteAck}).
+ * <p>
+ * The receiving side of the frames is handled here as well. A replica remembers the last sequence
+ * number it applied per primary, so it can detect lost frames. It then catches up with
+ * request_replica_sync incarnation lastSeq, which the primary answers from its {@link OperationLog} if possible
+ * and with a snapshot of its store otherwise, e.g. if the primary restarted. A snapshot is sent in several messages
+ * and only applied once all of them arrived. The catch-up doesn't hold the lock of the replica stores while it waits
+ * for the primary.
+ * <p>
+ * Frames for a replica that can't be reached are kept in the {@link HintStore} and replayed once it is back.
+ * Operations that don't fit into the queue of a replica that fell behind are kept in an in-memory overflow, which
+ * the sender thread writes to the hints, so writers never wait for a slow replica or the disk while holding the lock
+ * that orders the operations.
+ * <p>
+ * A write has to be applied to the primary store and enqueued while holding {@link #getWriteOrderLock()},
+ * otherwise two concurrent writes of the same key could reach the replicas in a different order.
+ * <p>
+ * In {@link ReplicationMode#CHAIN} the primary only sends frames to its first replica, which forwards every frame
+ * unchanged to the tail (the second replica) and acknowledges it once the tail did. An acknowledgement of
+ * the head's queue therefore covers both replicas. With virtual nodes, further replicas are fed by the primary directly.
+ */
+public class ReplicationManager {
+    private static final int QUEUE_CAPACITY = 10000;
+    private static final int MAX_OPS_PER_FRAME = 500;
+    // stays well below the 128000 bytes a single message may have
+    private static final int MAX_FRAME_LENGTH = 100000;
+    private static final long ACK_TIMEOUT = 3000;
+    private static final int SYNC_CONNECT_TIMEOUT = 2000;
+    private static final int SYNC_READ_TIMEOUT = 10000;
+    private static final int LOG_MAX_OPERATIONS = 100000;
+    private static final long LOG_MAX_BYTES = 16 * 1024 * 1024;
+    private static final long HINT_RETRY_INTERVAL = 1000;
+    // how often a sender moves the overflow to the hints while its replica is behind
+    private static final long OVERFLOW_SPILL_INTERVAL = 100;
+    // operations beyond this many in the overflow are discarded and the replica has to resynchronize
+    private static final int MAX_OVERFLOW_OPERATIONS = 10 * QUEUE_CAPACITY;
+    // returned by applyFrame if the replica store has to catch up with its primary first
+    private static final long SYNC_REQUIRED = -2;
+
+    private final KVServer kvServer;
+    private final Map<String, ReplicaQueue> replicaQueues = new ConcurrentHashMap<>();
+    private final Map<String, AppliedSequence> appliedSequences = new ConcurrentHashMap<>();
+    private List<String> replicaAddresses = new ArrayList<>();
+    private final Object ackLock = new Object();
+    private final OperationLog operationLog = new OperationLog(LOG_MAX_OPERATIONS, LOG_MAX_BYTES);
+    private final long incarnation = System.currentTimeMillis();
+    private long nextSequenceNumber = 1;
+
+    /**
+     * The last operation of a primary that was applied to its replica store.
+     *
+     * @param incarnation    The incarnation of the primary the sequence number belongs to.
+     * @param sequenceNumber The sequence number of the operation.
+     */
+    private record AppliedSequence(long incarnation, long sequenceNumber) {
+    }
+
+    public ReplicationManager(KVServer kvServer) {
+        this.kvServer = kvServer;
+    }
+
+    /**
+     * Enqueues a put operation for all replicas.
+     *
+     * @param key   The key that was stored.
+     * @param value The value that was stored.
+     * @return The sequence number of the last enqueued operation.
+     */
+    public long replicatePut(String key, String value) {
+        return enqueue(List.of(new KVPair<>(key, value)), ReplicationOp.PUT);
+    }
+
+    /**
+     * Enqueues a delete operation for all replicas.
+     *
+     * @param key The key that was deleted.
+     * @return The sequence number of the last enqueued operation.
+     */
+    public long replicateDelete(String key) {
+        return enqueue(List.of(new KVPair<>(key, null)), ReplicationOp.DELETE);
+    }
+
+    /**
+     * Enqueues several put operations for all replicas.
+     *
+     * @param pairs The key-value pairs that were stored.
+     * @return The sequence number of the last enqueued operation.
+     */
+    public long replicatePutBatch(List<KVPair<String, String>> pairs) {
+        return enqueue(pairs, ReplicationOp.PUT);
+    }
+
+    /**
+     * Enqueues several delete operations for all replicas.
+     *
+     * @param keys The keys that were deleted.
+     * @return The sequence number of the last enqueued operation.
+     */
+    public long replicateDeleteBatch(Collection<String> keys) {
+        List<KVPair<String, String>> pairs = new ArrayList<>();
+        for (String key : keys) {
+            pairs.add(new KVPair<>(key, null));
+        }
+        return enqueue(pairs, ReplicationOp.DELETE);
+    }
+
+    /**
+     * Enqueues the key-value pairs of a bulk transfer into the primary store, e.g. save_data, for all replicas.
+     *
+     * @param data The key-value pairs in the format key,value;key,value;
+     * @return The sequence number of the last enqueued operation.
+     */
+    public long replicateData(String data) {
+        List<KVPair<String, String>> pairs = new ArrayList<>();
+        for (String entry : data.split(";")) {
+            String[] keyValue = entry.trim().split(",", 2);
+            if (keyValue.length == 2 && !keyValue[0].isEmpty()) {
+                pairs.add(new KVPair<>(keyValue[0], keyValue[1]));
+            }
+        }
+        return enqueue(pairs, ReplicationOp.PUT);
+    }
+
+    /**
+     * Enqueues the removal of a hash range from the primary store for all replicas.
+     * This is used when a key range was transferred to another server.
+     *
+     * @param startRange The start of the removed range, as passed to KVStore.getDataBetweenKeyRanges.
+     * @param endRange   The end of the removed range, as passed to KVStore.getDataBetweenKeyRanges.
+     * @return The sequence number of the enqueued operation.
+     */
+    public long replicateRangeRemoval(String startRange, String endRange) {
+        return enqueue(List.of(new KVPair<>(startRange, endRange)), ReplicationOp.RANGE_REMOVAL);
+    }
+
+    /**
+     * Returns the lock that orders the writes of the primary store. Applying a write locally and enqueueing it
+     * for the replicas in one critical section assigns the sequence numbers in the order the primary applied the writes.
+     *
+     * @return The lock.
+     */
+    public Object getWriteOrderLock() {
+        return this;
+    }
+
+    /**
+     * Assigns sequence numbers to the operations, appends them to the operation log and puts them into the queue of every replica.
+     * If the queue of a replica is full, the operation is put into its overflow instead of waiting for free space.
+     *
+     * @param pairs The affected key-value pairs.
+     * @param type  The type of the operations.
+     * @return The sequence number of the last enqueued operation.
+     */
+    private synchronized long enqueue(List<KVPair<String, String>> pairs, char type) {
+        for (KVPair<String, String> pair : pairs) {
+            ReplicationOp op = new ReplicationOp(nextSequenceNumber++, type, pair.getKey(), pair.getValue());
+            operationLog.append(op);
+            for (ReplicaQueue replicaQueue : replicaQueues.values()) {
+                replicaQueue.offer(op);
+            }
+        }
+        return nextSequenceNumber - 1;
+    }
+
+    /**
+     * Waits until enough replicas have acknowledged all operations up to the given sequence number.
+     * In chain mode the tail answers reads, so a write always waits at least for the acknowledgement of the head,
+     * which covers the tail as well. Otherwise a client could read from the tail before its own write arrived there.
+     *
+     * @param sequenceNumber The sequence number returned when the write was enqueued.
+     * @param writeAck       The number of replicas that have to acknowledge the write.
+     * @return true if the write was acknowledged in time, false if the wait timed out.
+     */
+    public boolean awaitAcknowledgements(long sequenceNumber, WriteAck writeAck) {
+        String chainHead = kvServer.getReplicationMode() == ReplicationMode.CHAIN ? getChainHead() : null;
+        if (writeAck == WriteAck.NONE && chainHead == null) {
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + ACK_TIMEOUT;
+        synchronized (ackLock) {
+            while (true) {
+                int replicas = 0;
+                int acknowledged = 0;
+                for (ReplicaQueue replicaQueue : replicaQueues.values()) {
+                    replicas++;
+                    if (replicaQueue.acknowledgedSequenceNumber >= sequenceNumber) {
+                        acknowledged++;
+                    }
+                }
+                int required = writeAck == WriteAck.ALL ? replicas : Math.min(1, replicas);
+                ReplicaQueue head = chainHead == null ? null : replicaQueues.get(chainHead);
+                boolean headAcknowledged = head == null || head.acknowledgedSequenceNumber >= sequenceNumber;
+                if (acknowledged >= required && headAcknowledged) {
+                    return true;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    ackLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the set of replicas after a metadata update. Senders of servers that no longer hold
+     * a replica of this server are stopped, and senders for new replicas are started.
+     * In chain mode the tail doesn't get a sender, since the head forwards the frames to it.
+     *
+     * @param replicaAddresses The "ip:port" addresses of the current replicas, starting with the next server.
+     */
+    public synchronized void updateReplicas(List<String> replicaAddresses) {
+        this.replicaAddresses = new ArrayList<>(replicaAddresses);
+        List<String> targets = new ArrayList<>(replicaAddresses);
+        if (kvServer.getReplicationMode() == ReplicationMode.CHAIN && targets.size() >= 2) {
+            targets.remove(1);
+        }
+        for (String address : replicaQueues.keySet()) {
+            if (!targets.contains(address)) {
+                replicaQueues.remove(address).stop();
+                // the server that takes over the replica synchronizes its replica store from scratch
+                kvServer.getHintStore().clear(address);
+            }
+        }
+        for (String address : targets) {
+            if (replicaQueues.containsKey(address)) {
+                // the metadata still lists the replica, so its hints are retried right away
+                replicaQueues.get(address).nextDeliveryAttempt = 0;
+            } else {
+                // a new replica only receives the operations enqueued from now on, earlier ones count as acknowledged
+                ReplicaQueue replicaQueue = new ReplicaQueue(address, nextSequenceNumber - 1, kvServer.getHintStore().hasHints(address));
+                replicaQueues.put(address, replicaQueue);
+                replicaQueue.start();
+            }
+        }
+    }
+
+    /**
+     * Stops all sender threads.
+     */
+    public synchronized void stop() {
+        for (ReplicaQueue replicaQueue : replicaQueues.values()) {
+            replicaQueue.stop();
+        }
+        replicaQueues.clear();
+    }
+
+    /**
+     * Creates the response to a request_replica_sync of a replica. The response contains the operations
+     * the replica is missing if the operation log still has all of them, and a snapshot of the store otherwise.
+     * The snapshot is split into messages below the maximum message size, all but the last one are marked with more:
+     * <p>
+     * replica_ops incarnation firstSeq count P,key,value;D,key;...
+     * replica_snapshot incarnation seq more|last key,value;key,value;...
+     *
+     * @param appliedIncarnation    The incarnation of this server the replica has applied operations of, or -1 if it has none.
+     * @param appliedSequenceNumber The last sequence number the replica has applied, or -1 if it has none.
+     * @return The messages of the response for the replica.
+     */
+    public List<String> createSyncResponse(long appliedIncarnation, long appliedSequenceNumber) {
+        // the sequence numbers of an earlier incarnation don't match the operation log anymore
+        if (appliedIncarnation == incarnation && appliedSequenceNumber >= 0) {
+            List<ReplicationOp> ops = operationLog.since(appliedSequenceNumber);
+            if (ops != null) {
+                StringBuilder encoded = new StringBuilder();
+                for (ReplicationOp op : ops) {
+                    encoded.append(op.encode());
+                }
+                if (encoded.length() <= MAX_FRAME_LENGTH) {
+                    return List.of("replica_ops " + incarnation + " " + (appliedSequenceNumber + 1) + " " + ops.size() + " " + encoded);
+                }
+            }
+        }
+        // every operation up to this sequence number is already applied to the store, so the snapshot contains it
+        long sequenceNumber = operationLog.getLastSequenceNumber();
+        List<String> chunks = MessageHandler.splitPairs(kvServer.getStore().getAllData(), MAX_FRAME_LENGTH);
+        if (chunks.isEmpty()) {
+            chunks = List.of("");
+        }
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            String flag = i < chunks.size() - 1 ? "more" : "last";
+            messages.add("replica_snapshot " + incarnation + " " + sequenceNumber + " " + flag + " " + chunks.get(i));
+        }
+        return messages;
+    }
+
+    /**
+     * Brings the replica store of a primary up-to-date by requesting the operations it is missing from the primary.
+     *
+     * @param ip   The IP address of the primary.
+     * @param port The port of the primary.
+     */
+    public void synchronizeReplicaStore(String ip, String port) {
+        if (kvServer.getReplicaStores().containsKey(ip + ":" + port)) {
+            synchronizeReplicaStore(ip + ":" + port);
+        }
+    }
+
+    /**
+     * Returns the head of this server's chain, i.e. the replica that forwards the frames to the tail.
+     *
+     * @return The "ip:port" address of the head, or null if this server has no replicas.
+     */
+    private synchronized String getChainHead() {
+        return replicaAddresses.isEmpty() ? null : replicaAddresses.get(0);
+    }
+
+    /**
+     * Returns the addresses of the servers that currently hold a replica of this server.
+     *
+     * @return The "ip:port" addresses of the replicas.
+     */
+    public synchronized List<String> getReplicaAddresses() {
+        return new ArrayList<>(replicaAddresses);
+    }
+
+    /**
+     * Checks whether a replica has acknowledged every operation enqueued so far.
+     *
+     * @param address The "ip:port" address of the replica.
+     * @return true if nothing is in flight to the replica, false otherwise.
+     */
+    public synchronized boolean isCaughtUp(String address) {
+        if (kvServer.getReplicationMode() == ReplicationMode.CHAIN && replicaAddresses.size() >= 2 && replicaAddresses.get(1).equals(address)) {
+            // the head only acknowledges what the tail has applied as well
+            address = replicaAddresses.get(0);
+        }
+        ReplicaQueue replicaQueue = replicaQueues.get(address);
+        return replicaQueue != null && replicaQueue.acknowledgedSequenceNumber >= nextSequenceNumber - 1;
+    }
+
+    /**
+     * Computes the Merkle tree hashes of the replica store of a primary for the anti-entropy comparison.
+     *
+     * @param ip      The IP address of the primary.
+     * @param port    The port of the primary.
+     * @param level   The level of the requested nodes.
+     * @param indices The indices of the requested nodes, separated by ','.
+     * @return The response merkle_hashes_result hash,hash,... or merkle_hashes_result none if there is no replica store.
+     */
+    public String getMerkleHashes(String ip, String port, int level, String indices) {
+        KVStore replicaStore = kvServer.getReplicaStores().get(ip + ":" + port);
+        if (replicaStore == null) {
+            return "merkle_hashes_result none";
+        }
+        StringJoiner hashes = new StringJoiner(",");
+        for (String index : indices.split(",")) {
+            hashes.add(Long.toHexString(replicaStore.getMerkleHash(level, Integer.parseInt(index))));
+        }
+        return "merkle_hashes_result " + hashes;
+    }
+
+    /**
+     * Overwrites the divergent leaves of the replica store of a primary with the data the primary sent.
+     *
+     * @param ip          The IP address of the primary.
+     * @param port        The port of the primary.
+     * @param leafIndices The indices of the divergent leaves, separated by ','.
+     * @param data        The key-value pairs of those leaves in the format key,value;key,value;
+     */
+    public void repairLeaves(String ip, String port, String leafIndices, String data) {
+        Set<Integer> leaves = new HashSet<>();
+        for (String index : leafIndices.split(",")) {
+            leaves.add(Integer.parseInt(index));
+        }
+        Map<String, String> leafData = new LinkedHashMap<>();
+        for (String entry : data.split(";")) {
+            String[] keyValue = entry.trim().split(",", 2);
+            if (keyValue.length == 2 && !keyValue[0].isEmpty()) {
+                leafData.put(keyValue[0], keyValue[1]);
+            }
+        }
+        // repairs and replication frames must not interleave on the same replica store
+        synchronized (appliedSequences) {
+            KVStore replicaStore = kvServer.getReplicaStores().get(ip + ":" + port);
+            if (replicaStore != null) {
+                replicaStore.replaceLeaves(leaves, leafData);
+            }
+        }
+    }
+
+    /**
+     * Drops the replication state of a primary whose replica store was removed from this server.
+     *
+     * @param primaryAddress The "ip:port" address of the primary.
+     */
+    public void removePrimary(String primaryAddress) {
+        appliedSequences.remove(primaryAddress);
+    }
+
+    /**
+     * Applies a replication frame of a primary to its replica store.
+     * Operations that were already applied are skipped. If operations are missing in between,
+     * or this replica store has never been synchronized, the replica store catches up with the primary first.
+     *
+     * @param ip            The IP address of the primary.
+     * @param port          The port of the primary.
+     * @param incarnation   The incarnation of the primary.
+     * @param firstSequence The sequence number of the first operation in the frame.
+     * @param count         The number of operations in the frame.
+     * @param ops           The encoded operations of the frame.
+     * @return The sequence number up to which the replica store is up-to-date, or -1 if there is no replica store
+     * or it couldn't catch up.
+     */
+    public long applyFrame(String ip, String port, long incarnation, long firstSequence, int count, String ops) {
+        String primaryAddress = ip + ":" + port;
+        // the receiving side has its own lock, so synchronizing a replica store doesn't block local writes
+        synchronized (appliedSequences) {
+            long applied = applyFrame(primaryAddress, incarnation, firstSequence, count, ops);
+            if (applied != SYNC_REQUIRED) {
+                return applied;
+            }
+        }
+        if (!synchronizeReplicaStore(primaryAddress)) {
+            return -1;
+        }
+        synchronized (appliedSequences) {
+            long applied = applyFrame(primaryAddress, incarnation, firstSequence, count, ops);
+            return applied == SYNC_REQUIRED ? -1 : applied;
+        }
+    }
+
+    /**
+     * Forwards a replication frame down the chain if this server is the middle of the primary's chain,
+     * i.e. the first replica of the primary. The tail and servers in fanout mode don't forward anything.
+     *
+     * @param ip            The IP address of the primary.
+     * @param port          The port of the primary.
+     * @param incarnation   The incarnation of the primary.
+     * @param firstSequence The sequence number of the first operation in the frame.
+     * @param count         The number of operations in the frame.
+     * @param ops           The encoded operations of the frame.
+     * @param applied       The sequence number up to which the replica store of this server is up-to-date.
+     * @return The sequence number that can be acknowledged to the primary, or -1 if the tail didn't acknowledge.
+     */
+    public long forwardFrame(String ip, String port, long incarnation, long firstSequence, int count, String ops, long applied) {
+        if (kvServer.getReplicationMode() != ReplicationMode.CHAIN || kvServer.getRingList().getServerCount() <= 2) {
+            return applied;
+        }
+        List<String> replicas = kvServer.getRingList().getReplicaAddresses(ip, port);
+        if (replicas.size() < 2 || !replicas.get(0).equals(kvServer.getAddress() + ":" + kvServer.getPort())) {
+            return applied;
+        }
+        String[] tail = replicas.get(1).split(":");
+        String message = "server_replicate " + ip + " " + port + " " + incarnation + " " + firstSequence + " " + count + " " + ops;
+        String response = kvServer.getChainConnections().request(tail[0], tail[1], message);
+        if (response == null || !response.startsWith("replicate_ack ")) {
+            KVServer.log.warning("Tail " + replicas.get(1) + " didn't acknowledge frame " + firstSequence + " of " + ip + ":" + port);
+            return -1;
+        }
+        return Math.min(applied, Long.parseLong(response.substring("replicate_ack ".length()).trim()));
+    }
+
+    /**
+     * Applies a frame while holding the lock of the replica stores.
+     *
+     * @return The sequence number up to which the replica store is up-to-date, -1 if there is no replica store,
+     * or SYNC_REQUIRED if the replica store has to catch up first.
+     */
+    private long applyFrame(String primaryAddress, long incarnation, long firstSequence, int count, String ops) {
+        KVStore replicaStore = kvServer.getReplicaStores().get(primaryAddress);
+        if (replicaStore == null) {
+            KVServer.log.warning("Received replication frame for " + primaryAddress + ", but no replica store exists");
+            return -1;
+        }
+        AppliedSequence applied = appliedSequences.get(primaryAddress);
+        if (applied == null || applied.incarnation() != incarnation || firstSequence > applied.sequenceNumber() + 1) {
+            KVServer.log.warning("Replication gap for " + primaryAddress + ": expected " + (applied == null || applied.incarnation() != incarnation ? "sync" : applied.sequenceNumber() + 1) + ", received " + firstSequence);
+            return SYNC_REQUIRED;
+        }
+        long lastSequence = firstSequence + count - 1;
+        if (lastSequence <= applied.sequenceNumber()) {
+            return applied.sequenceNumber();
+        }
+        apply(replicaStore, decode(firstSequence, count, ops, applied.sequenceNumber()));
+        appliedSequences.put(primaryAddress, new AppliedSequence(incarnation, lastSequence));
+        return lastSequence;
+    }
+
+    /**
+     * Requests the missing operations of a replica store from its primary and applies them.
+     * Only applying the response holds the lock of the replica stores, the request itself doesn't.
+     *
+     * @param primaryAddress The "ip:port" address of the primary.
+     * @return true if the replica store caught up, false if the primary couldn't be reached or the response is outdated.
+     */
+    private boolean synchronizeReplicaStore(String primaryAddress) {
+        AppliedSequence applied = appliedSequences.get(primaryAddress);
+        String request = "request_replica_sync " + (applied == null ? "-1 -1" : applied.incarnation() + " " + applied.sequenceNumber());
+        String[] ipAndPort = primaryAddress.split(":");
+        String[] response;
+        StringBuilder snapshot = new StringBuilder();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(ipAndPort[0], Integer.parseInt(ipAndPort[1])), SYNC_CONNECT_TIMEOUT);
+            socket.setSoTimeout(SYNC_READ_TIMEOUT);
+            MessageHandler messageHandler = new MessageHandler(socket);
+            // this is the Connected successfully! message
+            messageHandler.receive();
+            messageHandler.send(request);
+            response = receiveSyncMessage(messageHandler);
+            // a snapshot is only applied once every part of it arrived, a partial one would lose data
+            while (response != null && response[0].equals("replica_snapshot")) {
+                snapshot.append(response.length > 4 ? response[4] : "");
+                if (!response[3].equals("more")) {
+                    break;
+                }
+                response = receiveSyncMessage(messageHandler);
+            }
+            if (response == null) {
+                KVServer.log.warning("Incomplete catch-up response of " + primaryAddress);
+                return false;
+            }
+        } catch (IOException e) {
+            KVServer.log.warning("Couldn't synchronize replica store of " + primaryAddress);
+            return false;
+        }
+        synchronized (appliedSequences) {
+            KVStore replicaStore = kvServer.getReplicaStores().get(primaryAddress);
+            if (replicaStore == null) {
+                return false;
+            }
+            // frames or another catch-up may have been applied while the primary was answering
+            applied = appliedSequences.get(primaryAddress);
+            long incarnation = Long.parseLong(response[1]);
+            if (response[0].equals("replica_ops")) {
+                long firstSequence = Long.parseLong(response[2]);
+                int count = Integer.parseInt(response[3]);
+                if (applied == null || applied.incarnation() != incarnation || firstSequence > applied.sequenceNumber() + 1) {
+                    return false;
+                }
+                long lastSequence = Math.max(applied.sequenceNumber(), firstSequence + count - 1);
+                if (count > 0) {
+                    apply(replicaStore, decode(firstSequence, count, response[4], applied.sequenceNumber()));
+                }
+                appliedSequences.put(primaryAddress, new AppliedSequence(incarnation, lastSequence));
+                KVServer.log.info("Caught up with " + count + " operations of " + primaryAddress);
+            } else {
+                long sequenceNumber = Long.parseLong(response[2]);
+                if (applied != null && applied.incarnation() == incarnation && applied.sequenceNumber() >= sequenceNumber) {
+                    // the replica store is already newer than the snapshot
+                    return true;
+                }
+                replicaStore.saveData(snapshot.toString(), false);
+                appliedSequences.put(primaryAddress, new AppliedSequence(incarnation, sequenceNumber));
+                KVServer.log.info("Replaced replica store of " + primaryAddress + " with a snapshot at " + sequenceNumber + " of incarnation " + incarnation);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Receives a single message of a catch-up response.
+     *
+     * @return The type, incarnation and sequence number followed by the remaining fields, or null if the message
+     * is missing or malformed.
+     */
+    private String[] receiveSyncMessage(MessageHandler messageHandler) {
+        byte[] received = messageHandler.receive();
+        if (received == null) {
+            return null;
+        }
+        String[] response = new String(received, StandardCharsets.UTF_8).trim().split(" ", 5);
+        boolean snapshot = response[0].equals("replica_snapshot");
+        if ((!snapshot && !response[0].equals("replica_ops")) || response.length < 4) {
+            return null;
+        }
+        return response;
+    }
+
+    /**
+     * Decodes the operations of a frame, skipping those up to the given sequence number.
+     *
+     * @param firstSequence   The sequence number of the first operation.
+     * @param count           The number of operations.
+     * @param ops             The encoded operations.
+     * @param appliedSequence The last sequence number that was already applied.
+     * @return The operations that still have to be applied, in sequence order.
+     */
+    private List<ReplicationOp> decode(long firstSequence, int count, String ops, long appliedSequence) {
+        String[] encodedOps = ops.split(";");
+        List<ReplicationOp> result = new ArrayList<>();
+        for (int i = 0; i < encodedOps.length && i < count; i++) {
+            long sequence = firstSequence + i;
+            if (sequence <= appliedSequence) {
+                continue;
+            }
+            ReplicationOp op = ReplicationOp.decode(sequence, encodedOps[i]);
+            if (op != null) {
+                result.add(op);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Applies operations to a store, grouping consecutive puts or deletes into one batch write each.
+     *
+     * @param store The store to apply the operations to.
+     * @param ops   The operations in sequence order.
+     */
+    private void apply(KVStore store, List<ReplicationOp> ops) {
+        int i = 0;
+        while (i < ops.size()) {
+            char type = ops.get(i).getType();
+            if (type == ReplicationOp.RANGE_REMOVAL) {
+                ReplicationOp op = ops.get(i++);
+                store.getDataBetweenKeyRanges(op.getKey(), op.getValue());
+                continue;
+            }
+            List<KVPair<String, String>> puts = new ArrayList<>();
+            List<String> deletes = new ArrayList<>();
+            while (i < ops.size() && ops.get(i).getType() == type) {
+                ReplicationOp op = ops.get(i++);
+                if (type == ReplicationOp.PUT) {
+                    puts.add(new KVPair<>(op.getKey(), op.getValue()));
+                } else {
+                    deletes.add(op.getKey());
+                }
+            }
+            if (!puts.isEmpty()) {
+                store.putBatch(puts);
+            }
+            if (!deletes.isEmpty()) {
+                store.deleteBatch(deletes);
+            }
+        }
+    }
+
+    /**
+     * Receives the frames of the sender thread of a replica.
+     */
+    private interface FrameConsumer {
+        void accept(long firstSequence, int count, String ops);
+    }
+
+    /**
+     * The bounded queue and the sender thread of a single replica.
+     * <p>
+     * While the replica is behind, i.e. it has hints or its queue ran full, operations bypass the queue and go to the
+     * overflow, so the replica still receives them in order. Only the sender thread writes hints: once the queue is
+     * empty, it moves the overflow to the hints and replays them. The replica returns to the queue once everything
+     * was replayed.
+     */
+    private class ReplicaQueue implements Runnable {
+        private final String address;
+        private final BlockingQueue<ReplicationOp> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        // guards diverted and dropped as well
+        private final Deque<ReplicationOp> overflow = new ArrayDeque<>();
+        private volatile boolean diverted;
+        private boolean dropped;
+        private volatile boolean running = true;
+        private volatile long acknowledgedSequenceNumber;
+        private volatile long nextDeliveryAttempt = 0;
+        private Thread thread;
+
+        ReplicaQueue(String address, long acknowledgedSequenceNumber, boolean hasHints) {
+            this.address = address;
+            this.acknowledgedSequenceNumber = acknowledgedSequenceNumber;
+            this.diverted = hasHints;
+        }
+
+        void start() {
+            thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() {
+            running = false;
+            thread.interrupt();
+        }
+
+        /**
+         * Puts an operation into the queue, or into the overflow if the replica is behind, without waiting for
+         * free space or touching the disk. If the overflow is full as well, it's discarded.
+         */
+        void offer(ReplicationOp op) {
+            synchronized (overflow) {
+                if (!diverted && queue.offer(op)) {
+                    return;
+                }
+                diverted = true;
+                if (dropped || overflow.size() >= MAX_OVERFLOW_OPERATIONS) {
+                    // the replica misses operations anyway, so it catches up through request_replica_sync
+                    overflow.clear();
+                    dropped = true;
+                    return;
+                }
+                overflow.add(op);
+            }
+        }
+
+        @Override
+        public void run() {
+            String[] ipAndPort = address.split(":");
+            List<ReplicationOp> ops = new ArrayList<>();
+            while (running) {
+                try {
+                    ReplicationOp op = queue.poll(diverted ? OVERFLOW_SPILL_INTERVAL : HINT_RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+                    if (op == null) {
+                        // the queue is empty, so the operations of the overflow and the hints are next in order
+                        if (diverted) {
+                            catchUp(ipAndPort[0], ipAndPort[1]);
+                        }
+                        continue;
+                    }
+                    ops.add(op);
+                    queue.drainTo(ops, MAX_OPS_PER_FRAME - 1);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                splitFrames(ops, (firstSequence, count, encoded) -> sendFrame(ipAndPort[0], ipAndPort[1], firstSequence, count, encoded));
+                ops.clear();
+            }
+        }
+
+        /**
+         * Moves the overflow to the hints and replays them. Once everything was replayed and no operation arrived
+         * in the overflow meanwhile, operations go through the queue again.
+         */
+        private void catchUp(String ip, String port) {
+            spillOverflow();
+            if (!replayHints(ip, port)) {
+                return;
+            }
+            synchronized (overflow) {
+                if (overflow.isEmpty() && !dropped) {
+                    diverted = false;
+                }
+            }
+        }
+
+        /**
+         * Writes the operations of the overflow to the hints, outside the lock that orders the writes.
+         */
+        private void spillOverflow() {
+            List<ReplicationOp> spilled;
+            boolean lost;
+            synchronized (overflow) {
+                spilled = new ArrayList<>(overflow);
+                overflow.clear();
+                lost = dropped;
+                dropped = false;
+            }
+            HintStore hintStore = kvServer.getHintStore();
+            if (!running) {
+                return;
+            }
+            if (lost) {
+                KVServer.log.warning("Overflow for " + address + " exceeded " + MAX_OVERFLOW_OPERATIONS + " operations, the replica will have to resynchronize");
+                hintStore.discard(address);
+                return;
+            }
+            if (!spilled.isEmpty()) {
+                splitFrames(spilled, (firstSequence, count, encoded) -> hintStore.append(address, firstSequence, count, encoded));
+            }
+        }
+
+        /**
+         * Splits operations into frames that each stay below the maximum message size.
+         */
+        private void splitFrames(List<ReplicationOp> ops, FrameConsumer consumer) {
+            StringBuilder frame = new StringBuilder();
+            long firstSequence = ops.get(0).getSequenceNumber();
+            int count = 0;
+            for (ReplicationOp op : ops) {
+                String encoded = op.encode();
+                if (count > 0 && (frame.length() + encoded.length() > MAX_FRAME_LENGTH || count >= MAX_OPS_PER_FRAME)) {
+                    consumer.accept(firstSequence, count, frame.toString());
+                    frame.setLength(0);
+                    firstSequence = op.getSequenceNumber();
+                    count = 0;
+                }
+                frame.append(encoded);
+                count++;
+            }
+            consumer.accept(firstSequence, count, frame.toString());
+        }
+
+        /**
+         * Sends a frame to the replica and waits for its acknowledgement. While the replica is behind, the frame is
+         * stored as a hint instead, since earlier operations have to be replayed first. A frame that can't be
+         * delivered is hinted and the following operations go to the overflow.
+         */
+        private void sendFrame(String ip, String port, long firstSequence, int count, String ops) {
+            HintStore hintStore = kvServer.getHintStore();
+            if (diverted) {
+                hintStore.append(address, firstSequence, count, ops);
+                return;
+            }
+            if (!deliver(ip, port, firstSequence, count, ops)) {
+                KVServer.log.warning("Replica " + address + " is unavailable, storing frame " + firstSequence + " as hint");
+                hintStore.append(address, firstSequence, count, ops);
+                nextDeliveryAttempt = System.currentTimeMillis() + HINT_RETRY_INTERVAL;
+                synchronized (overflow) {
+                    diverted = true;
+                }
+            }
+        }
+
+        /**
+         * Replays the hints of the replica in order, at most once per retry interval.
+         *
+         * @return true if all hints were delivered, false if the replica is still unavailable.
+         */
+        private boolean replayHints(String ip, String port) {
+            if (System.currentTimeMillis() < nextDeliveryAttempt) {
+                return false;
+            }
+            HintStore hintStore = kvServer.getHintStore();
+            List<String> hints;
+            do {
+                hints = hintStore.load(address);
+                for (String hint : hints) {
+                    String[] frame = hint.split(" ", 3);
+                    // frames that arrive twice are skipped by the replica, so a partially replayed file can be replayed again
+                    if (!deliver(ip, port, Long.parseLong(frame[0]), Integer.parseInt(frame[1]), frame.length > 2 ? frame[2] : "")) {
+                        nextDeliveryAttempt = System.currentTimeMillis() + HINT_RETRY_INTERVAL;
+                        return false;
+                    }
+                }
+            } while (!hintStore.clearReplayed(address, hints.size()));
+            KVServer.log.info("Replayed " + hints.size() + " hinted frames to " + address);
+            return true;
+        }
+
+        /**
+         * Sends a frame and records the acknowledgement of the replica. A replica that answers without applying the
+         * frame, e.g. because it has no replica store yet or its chain tail didn't acknowledge, is treated like an
+         * unavailable one, so the frame is hinted and retried instead of leaving a gap nobody repairs.
+         *
+         * @return false if the replica couldn't be reached or didn't apply the frame, true otherwise.
+         */
+        private boolean deliver(String ip, String port, long firstSequence, int count, String ops) {
+            String message = "server_replicate " + kvServer.getAddress() + " " + kvServer.getPort() + " " + incarnation + " " + firstSequence + " " + count + " " + ops;
+            String response = kvServer.getPeerConnections().request(ip, port, message);
+            if (response == null) {
+                return false;
+            }
+            if (!response.startsWith("replicate_ack ")) {
+                KVServer.log.warning("Replica " + address + " rejected replication frame " + firstSequence + ": " + response);
+                return false;
+            }
+            long acknowledged = Long.parseLong(response.substring("replicate_ack ".length()).trim());
+            if (acknowledged < 0) {
+                KVServer.log.warning("Replica " + address + " didn't apply replication frame " + firstSequence);
+                return false;
+            }
+            synchronized (ackLock) {
+                if (acknowledged > acknowledgedSequenceNumber) {
+                    acknowledgedSequenceNumber = acknowledged;
+                }
+                ackLock.notifyAll();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.praktikum.replication;
+
+/**
+ * The topology in which the writes of a primary reach its two replicas.
+ */
+public enum ReplicationMode {
+    // the primary sends every write to both replicas itself
+    FANOUT("fanout"),
+    // the primary sends to next, next forwards to next.next, and the tail's acknowledgement travels back;
+    // reads are then only answered by the tail. Writes always wait for the chain's acknowledgement, even with -wa 0,
+    // so the tail has every write a client was told about
+    CHAIN("chain");
+
+    private final String mode;
+
+    ReplicationMode(String mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Parses a replication mode as it is given on the command line.
+     *
+     * @param mode The mode, i.e. fanout or chain.
+     * @return The replication mode, or null if the mode is unknown.
+     */
+    public static ReplicationMode parse(String mode) {
+        for (ReplicationMode replicationMode : values()) {
+            if (replicationMode.mode.equalsIgnoreCase(mode)) {
+                return replicationMode;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return mode;
+    }
+}
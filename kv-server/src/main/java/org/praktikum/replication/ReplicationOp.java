@@ -0,0 +1,71 @@
+package org.praktikum.replication;
+
+/**
+ * A single mutation of the primary store that has to be applied to its replicas.
+ * Every operation carries the sequence number the primary assigned to it.
+ */
+public class ReplicationOp {
+    public static final char PUT = 'P';
+    public static final char DELETE = 'D';
+    // removes all keys between the hash ranges stored in key and value, see KVStore.getDataBetweenKeyRanges
+    public static final char RANGE_REMOVAL = 'R';
+
+    private final long sequenceNumber;
+    private final char type;
+    private final String key;
+    private final String value;
+
+    public ReplicationOp(long sequenceNumber, char type, String key, String value) {
+        this.sequenceNumber = sequenceNumber;
+        this.type = type;
+        this.key = key;
+        this.value = value;
+    }
+
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public char getType() {
+        return type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Encodes the operation in the frame format P,key,value; or D,key; or R,start,end;
+     *
+     * @return The encoded operation.
+     */
+    public String encode() {
+        if (value != null) {
+            return type + "," + key + "," + value + ";";
+        }
+        return type + "," + key + ";";
+    }
+
+    /**
+     * Decodes a single operation without its trailing ';'.
+     *
+     * @param sequenceNumber The sequence number of the operation within its frame.
+     * @param encoded        The encoded operation, e.g. P,key,value
+     * @return The decoded operation, or null if the operation is malformed.
+     */
+    public static ReplicationOp decode(long sequenceNumber, String encoded) {
+        String[] parts = encoded.trim().split(",", 3);
+        if (parts.length < 2 || parts[0].length() != 1) {
+            return null;
+        }
+        char type = parts[0].charAt(0);
+        if (parts.length == 3) {
+            return new ReplicationOp(sequenceNumber, type, parts[1], parts[2]);
+        }
+        return new ReplicationOp(sequenceNumber, type, parts[1], null);
+    }
+}
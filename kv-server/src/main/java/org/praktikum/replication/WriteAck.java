@@ -0,0 +1,39 @@
+package org.praktikum.replication;
+
+/**
+ * The number of replicas that have to acknowledge a write before it is reported as successful to the client.
+ */
+public enum WriteAck {
+    // the write is replicated asynchronously and the client gets its response right away
+    NONE("0"),
+    // at least one replica has applied the write
+    ONE("1"),
+    // every replica has applied the write
+    ALL("all");
+
+    private final String level;
+
+    WriteAck(String level) {
+        this.level = level;
+    }
+
+    /**
+     * Parses an acknowledgement level as it is given on the command line or by the set_write_ack command.
+     *
+     * @param level The level, i.e. 0, 1 or all.
+     * @return The acknowledgement level, or null if the level is unknown.
+     */
+    public static WriteAck parse(String level) {
+        for (WriteAck writeAck : values()) {
+            if (writeAck.level.equalsIgnoreCase(level)) {
+                return writeAck;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return level;
+    }
+}
@@ -1,55 +1,71 @@
 package org.praktikum.resources;
 
-import java.util.ArrayList;
-
+/**
+ * A key range of the frequency table. The bucket only counts the keys and the recent accesses in its range,
+ * the keys themselves are kept by the storage.
+ */
 public class Bucket {
     String startRange;
     String endRange;
-    String size;
-
-    public ArrayList<String> getBucketList() {
-        return bucketList;
-    }
-
-    private ArrayList<String> bucketList = new ArrayList<>();
+    private final HashKey startKey;
+    private final HashKey endKey;
+    private int keyCount;
+    // the recent accesses to the keys of this bucket, halved regularly by the frequency table
+    private long accesses;
 
     public Bucket(String startRange, String endRange) {
         this.startRange = startRange;
         this.endRange = endRange;
+        this.startKey = HashKey.fromHex(startRange);
+        this.endKey = HashKey.fromHex(endRange);
     }
 
     /**
-     * Inserts a key into the bucket if it belongs to the right bucket based on its hash.
-     *
-     * @param key  The key to be inserted.
-     * @param hash The hash value of the key.
-     * @return true if the key is inserted successfully, false otherwise.
+     * Counts a key that was added to the range of this bucket.
      */
-    public boolean insert(String key, String hash) {
-        if (isRightBucket(hash)) {
-            // Case Update: don't store keys twice, when value is updated.
-            bucketList.remove(key);
-            return bucketList.add(key);
+    public void increment() {
+        keyCount++;
+    }
+
+    /**
+     * Counts a key that was removed from the range of this bucket.
+     */
+    public void decrement() {
+        if (keyCount > 0) {
+            keyCount--;
         }
-        return false;
+    }
+
+    public void addKeys(int count) {
+        keyCount += count;
     }
 
     /**
-     * Deletes a key from the bucket if it belongs to the right bucket based on its hash.
+     * Counts an access to a key of this bucket.
+     */
+    public void recordAccess() {
+        accesses++;
+    }
+
+    public long getAccesses() {
+        return accesses;
+    }
+
+    public void addAccesses(long accesses) {
+        this.accesses += accesses;
+    }
+
+    /**
+     * Halves the recent accesses the given number of times.
      *
-     * @param key  The key to be deleted.
-     * @param hash The hash value of the key.
-     * @return true if the key is deleted successfully, false otherwise.
+     * @param halvings How often the accesses are halved.
      */
-    public boolean delete(String key, String hash) {
-        if (isRightBucket(hash)) {
-            return bucketList.remove(key);
-        }
-        return false;
+    public void decayAccesses(int halvings) {
+        accesses >>= Math.min(halvings, 63);
     }
 
     public int size() {
-        return bucketList.size();
+        return keyCount;
     }
 
     public String getStartRange() {
@@ -60,22 +76,21 @@ public class Bucket {
         return endRange;
     }
 
+    public HashKey getStartKey() {
+        return startKey;
+    }
+
+    public HashKey getEndKey() {
+        return endKey;
+    }
+
     /**
      * Checks if a given hash belongs to this bucket based on the start and end ranges.
      *
      * @param hash The hash value to be checked.
      * @return true if the hash belongs to this bucket, false otherwise.
      */
-    private boolean isRightBucket(String hash) {
-        if (getStartRange().compareTo(hash) < 0 && getEndRange().compareTo(hash) >= 0) {
-            return true;
-        } else if (getStartRange().compareTo(getEndRange()) >= 0) {
-            if (getStartRange().compareTo(hash) < 0 && getEndRange().compareTo(hash) <= 0) {
-                return true;
-            } else if (getStartRange().compareTo(hash) > 0 && getEndRange().compareTo(hash) >= 0) {
-                return true;
-            }
-        }
-        return false;
+    public boolean contains(HashKey hash) {
+        return hash.isInRange(startKey, endKey);
     }
 }
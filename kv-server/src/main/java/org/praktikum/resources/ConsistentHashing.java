@@ -1,39 +1,102 @@
 package org.praktikum.resources;
 
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
+/**
+ * Hashes keys and server addresses onto the ring with the hash function of the cluster. The hash function is
+ * shared by all instances of the process, since a server or client belongs to exactly one cluster, and is only
+ * changed when the cluster switches to another hash function. All hash functions are thread-safe, so a single
+ * instance is safe to share between all connections.
+ */
 public class ConsistentHashing {
+    private static volatile HashFunction hashFunction = new MD5Hash();
+    // reused for the key bytes, so hashing an ASCII key doesn't allocate anything but the HashKey
+    private static final ThreadLocal<byte[]> keyBuffer = ThreadLocal.withInitial(() -> new byte[256]);
 
-    private final MessageDigest digest;
+    public static HashFunction getHashFunction() {
+        return hashFunction;
+    }
 
-    public ConsistentHashing() throws NoSuchAlgorithmException {
-        this.digest = MessageDigest.getInstance("MD5");
+    /**
+     * Replaces the hash function of this process. Keys that were stored before have to be redistributed afterward.
+     *
+     * @param hashFunction The new hash function.
+     */
+    public static void setHashFunction(HashFunction hashFunction) {
+        ConsistentHashing.hashFunction = hashFunction;
     }
 
     /**
-     * Computes the MD5 hash of the given key.
+     * Computes the hash of the given key. The name stems from MD5 being the only hash function of the ring.
      *
-     * @param key The string for which to compute the MD5 hash.
-     * @return The MD5 hash of the input key as a 32-character hexadecimal string.
+     * @param key The string for which to compute the hash.
+     * @return The hash of the input key as a 32-character hexadecimal string.
      */
     public String getMD5Hash(String key) {
-        byte[] hash = this.digest.digest(key.getBytes());
-        BigInteger bigInteger = new BigInteger(1, hash);
-        return String.format("%032X", bigInteger);
+        return getHashKey(key).toHex();
     }
 
     /**
-     * Computes the MD5 hash of the IP and port combination.
+     * Computes the hash of the IP and port combination.
      *
      * @param IP   The IP address as a string.
      * @param port The port as a string.
-     * @return The MD5 hash of the IP and port combination as a 32-character hexadecimal string.
+     * @return The hash of the IP and port combination as a 32-character hexadecimal string.
      */
     public String getMD5Hash(String IP, String port) {
-        byte[] hash = this.digest.digest((IP + ":" + port).getBytes());
-        BigInteger bigInteger = new BigInteger(1, hash);
-        return String.format("%032X", bigInteger);
+        return getHashKey(IP + ":" + port).toHex();
+    }
+
+    /**
+     * Computes the hash of the given key as a position on the hash ring.
+     * ASCII keys are copied into a reused buffer instead of being encoded with String.getBytes.
+     *
+     * @param key The string for which to compute the hash.
+     * @return The hash of the input key.
+     */
+    public HashKey getHashKey(String key) {
+        int length = key.length();
+        byte[] buffer = keyBuffer.get();
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+            keyBuffer.set(buffer);
+        }
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if (c >= 0x80) {
+                byte[] encoded = key.getBytes(StandardCharsets.UTF_8);
+                return getHashKey(encoded, 0, encoded.length);
+            }
+            buffer[i] = (byte) c;
+        }
+        return getHashKey(buffer, 0, length);
+    }
+
+    /**
+     * Computes the hash of a part of a byte buffer, e.g. a key within a received request.
+     *
+     * @param bytes  The buffer.
+     * @param offset The offset of the first byte to hash.
+     * @param length The number of bytes to hash.
+     * @return The hash of the bytes.
+     */
+    public HashKey getHashKey(byte[] bytes, int offset, int length) {
+        return hashFunction.hash(bytes, offset, length);
+    }
+
+    /**
+     * Computes the hashes of many keys at once, e.g. for a key range transfer.
+     *
+     * @param keys The keys to hash.
+     * @return The hashes in the order of the keys.
+     */
+    public HashKey[] getHashKeys(List<String> keys) {
+        HashKey[] hashes = new HashKey[keys.size()];
+        int i = 0;
+        for (String key : keys) {
+            hashes[i++] = getHashKey(key);
+        }
+        return hashes;
     }
 }
@@ -0,0 +1,84 @@
+package org.praktikum.resources;
+
+/**
+ * Estimates how often single keys were accessed in constant memory. Every key increments one counter in each row,
+ * the estimate of a key is the smallest of its counters, so it can only be too high by the accesses of other keys
+ * that collide with it in every row.
+ * <p>
+ * The positions of a key are derived from the two halves of its hash, which are already uniformly distributed.
+ * The counters can be halved to let old accesses fade out.
+ */
+public class CountMinSketch {
+    private final int depth;
+    private final int width;
+    private final long[][] counters;
+    private long total;
+
+    /**
+     * Creates an empty sketch.
+     *
+     * @param depth The number of rows, i.e. independent estimates per key.
+     * @param width The number of counters per row.
+     */
+    public CountMinSketch(int depth, int width) {
+        this.depth = depth;
+        this.width = width;
+        this.counters = new long[depth][width];
+    }
+
+    /**
+     * Counts an access to a key.
+     *
+     * @param hash The hash of the key.
+     */
+    public void add(HashKey hash) {
+        total++;
+        for (int row = 0; row < depth; row++) {
+            counters[row][index(hash, row)]++;
+        }
+    }
+
+    /**
+     * Estimates the accesses to a key.
+     *
+     * @param hash The hash of the key.
+     * @return The estimated accesses, which are never lower than the actual accesses.
+     */
+    public long estimate(HashKey hash) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters[row][index(hash, row)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Returns how many accesses of other keys a single counter holds on average. An estimate that isn't clearly above
+     * it might be made up of collisions only.
+     *
+     * @return The average accesses per counter.
+     */
+    public long getNoiseFloor() {
+        return total / width;
+    }
+
+    /**
+     * Halves all counters the given number of times.
+     *
+     * @param halvings How often the counters are halved.
+     */
+    public void decay(int halvings) {
+        int shift = Math.min(halvings, 63);
+        total >>= shift;
+        for (long[] row : counters) {
+            for (int i = 0; i < width; i++) {
+                row[i] >>= shift;
+            }
+        }
+    }
+
+    private int index(HashKey hash, int row) {
+        long combined = hash.getHigh() + row * hash.getLow();
+        return (int) Long.remainderUnsigned(combined, width);
+    }
+}
@@ -1,10 +1,10 @@
 package org.praktikum.resources;
 
-import java.lang.reflect.Array;
 import java.math.BigInteger;
-import java.nio.file.Path;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public class FrequencyTable {
     private int numberOfBuckets;
@@ -15,13 +15,39 @@ public class FrequencyTable {
     }
 
     private int totalBucketSize = 0;
+
+    public int getTotalBucketSize() {
+        return totalBucketSize;
+    }
     private static final BigInteger MAX_VALUE = new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF", 16);
     private static final BigInteger ZERO = new BigInteger("0", 16);
     private static final int NUMBER_OF_KEYRANGE_CHARS_TO_INCLUDE_IN_PRINT = 3;
-    private final ConsistentHashing hashing;
+    private final ConsistentHashing hashing = new ConsistentHashing();
+    // the recent accesses are halved every usage window, so the load reflects the current requests
+    private static final long DECAY_INTERVAL = UsageMetrics.WINDOW_SECONDS * 1000L;
+    private final CountMinSketch accessSketch = new CountMinSketch(4, 2048);
+    // a key whose estimate isn't this many times above the collisions of the sketch isn't known to be busy
+    private static final int NOISE_FLOOR_FACTOR = 2;
+    // request threads only queue their accesses, which are counted once the table is used under its monitor
+    private static final int MAX_PENDING_ACCESSES = 1 << 17;
+    private final Queue<HashKey> pendingAccesses = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingAccessCount = new AtomicInteger();
+    private long totalAccesses = 0;
+    private long lastDecay = System.currentTimeMillis();
+    // where in the range the keys and the accesses are, to split the range at the offload threshold of the load
+    private static final int SUMMARY_CENTROIDS = 256;
+    private final QuantileSummary keySummary = new QuantileSummary(SUMMARY_CENTROIDS);
+    private final QuantileSummary accessSummary = new QuantileSummary(SUMMARY_CENTROIDS);
 
-    //each array list represents the bucket for the keyRange saved in the String
+    //each bucket counts the keys and accesses for the keyRange saved in the String
+    //the load balancer splits the table on its own thread, so all access to the buckets is synchronized
     private ArrayList<Bucket> buckets;
+    // the buckets sorted by their distance to the start of the table, to find the bucket of a key by binary search
+    private Bucket[] indexedBuckets = new Bucket[0];
+    private HashKey[] bucketEnds = new HashKey[0];
+    private HashKey tableStart;
+    private HashKey tableEnd;
+    private boolean wholeRing;
 
     /**
      * Constructs a FrequencyTable with the given parameters.
@@ -35,11 +61,6 @@ public class FrequencyTable {
         if (offloadThreshold > 50 || offloadThreshold < 0) {
             throw new NumberFormatException();
         }
-        try {
-            hashing = new ConsistentHashing();
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
     }
 
     public ArrayList<Bucket> getBuckets() {
@@ -51,25 +72,54 @@ public class FrequencyTable {
     }
 
     /**
-     * Updates the buckets based on the new key range.
+     * Updates the buckets based on the new key range. The buckets only count keys, so if the range changed,
+     * the keys are read from the storage to count them anew. The storage is read before the table is locked,
+     * so requests that count their accesses don't wait for it.
      *
      * @param startKeyRange Start range of the keys.
      * @param endKeyRange   End range of the keys.
+     * @param storedKeys    Supplies the keys of the storage, only called if the buckets have to be rebuilt.
      */
-    public void updateBuckets(String startKeyRange, String endKeyRange) {
+    public void updateBuckets(String startKeyRange, String endKeyRange, Supplier<Collection<String>> storedKeys) {
+        if (needsRebuild(startKeyRange, endKeyRange)) {
+            rebuild(startKeyRange, endKeyRange, storedKeys.get());
+        }
+    }
+
+    private synchronized boolean needsRebuild(String startKeyRange, String endKeyRange) {
         if (buckets == null || buckets.size() == 0) {
+            return true;
+        }
+        return !startKeyRange.equals(buckets.get(0).getStartRange()) || !endKeyRange.equals(buckets.get(buckets.size() - 1).getEndRange()) || buckets.size() < numberOfBuckets;
+    }
+
+    /**
+     * Creates the buckets of a key range and counts the given keys in them. Once the keys are known, the buckets are
+     * rebuilt so that every bucket carries the same share of the load. The keys are hashed before the table is locked.
+     *
+     * @param startKeyRange Start range of the keys.
+     * @param endKeyRange   End range of the keys.
+     * @param keys          The keys stored on the server.
+     */
+    public void rebuild(String startKeyRange, String endKeyRange, Collection<String> keys) {
+        HashKey[] hashes = hashing.getHashKeys(new ArrayList<>(keys));
+        synchronized (this) {
+            drainAccesses();
             createBuckets(startKeyRange, endKeyRange);
-        } else {
-            if (!startKeyRange.equals(buckets.get(0).getStartRange()) || !endKeyRange.equals(buckets.get(buckets.size() - 1).getEndRange()) || buckets.size() < numberOfBuckets) {
-                List<String> allKeys = new LinkedList<>();
-                for (Bucket bucket : buckets) {
-                    allKeys.addAll(bucket.getBucketList());
-                }
-                createBuckets(startKeyRange, endKeyRange);
-                for (String key : allKeys) {
-                    addToTable(key, hashing.getMD5Hash(key));
+            // the sketch still knows how busy the keys were, so the new buckets start with the load of the busy ones.
+            // Most keys only collide with other keys in the sketch, and their overestimates would add up to a load
+            // the range never had, so only keys clearly above the collisions are counted.
+            long noiseFloor = accessSketch.getNoiseFloor();
+            for (HashKey hash : hashes) {
+                addToTable(hash);
+                long estimate = accessSketch.estimate(hash);
+                if (estimate > NOISE_FLOOR_FACTOR * noiseFloor) {
+                    addAccesses(hash, estimate - noiseFloor);
                 }
             }
+            if (tableStart != null) {
+                rebuildBuckets(tableStart, tableEnd);
+            }
         }
     }
 
@@ -79,7 +129,7 @@ public class FrequencyTable {
      * @param startKeyRange Start range of the keys.
      * @param endKeyRange   End range of the keys.
      */
-    public void createBuckets(String startKeyRange, String endKeyRange) {
+    public synchronized void createBuckets(String startKeyRange, String endKeyRange) {
         BigInteger startRange = new BigInteger(startKeyRange, 16);
         BigInteger endRange = new BigInteger(endKeyRange, 16);
 
@@ -105,6 +155,9 @@ public class FrequencyTable {
 
         buckets = new ArrayList<>(numberOfBuckets);
         totalBucketSize = 0;
+        totalAccesses = 0;
+        keySummary.clear();
+        accessSummary.clear();
 
         for (int i = 0; i < numberOfBuckets; i++) {
             BigInteger bucketEndRange = startRange.add(bucketSize);
@@ -121,23 +174,120 @@ public class FrequencyTable {
                 startRange = startRange.subtract(MAX_VALUE);
             }
         }
+        rebuildIndex();
+    }
+
+    /**
+     * Sorts the bucket ends by their distance to the start of the table. The buckets are contiguous, so the bucket
+     * of a key is the first one that ends at or after the key. Buckets without width don't cover any key.
+     */
+    private void rebuildIndex() {
+        List<Bucket> indexed = new ArrayList<>();
+        if (buckets != null) {
+            for (Bucket bucket : buckets) {
+                if (!bucket.getStartKey().equals(bucket.getEndKey())) {
+                    indexed.add(bucket);
+                }
+            }
+        }
+        indexedBuckets = indexed.toArray(new Bucket[0]);
+        bucketEnds = new HashKey[indexedBuckets.length];
+        wholeRing = false;
+        if (indexedBuckets.length == 0) {
+            tableStart = null;
+            tableEnd = null;
+            return;
+        }
+        tableStart = indexedBuckets[0].getStartKey();
+        tableEnd = indexedBuckets[indexedBuckets.length - 1].getEndKey();
+        for (int i = 0; i < indexedBuckets.length; i++) {
+            bucketEnds[i] = indexedBuckets[i].getEndKey().subtract(tableStart);
+        }
+        // the table ends where it starts, if it covers the whole ring
+        if (bucketEnds[bucketEnds.length - 1].equals(HashKey.MIN)) {
+            bucketEnds[bucketEnds.length - 1] = HashKey.MAX;
+            wholeRing = true;
+        }
+    }
+
+    /**
+     * Finds the bucket a key belongs to with a binary search over the bucket ends.
+     *
+     * @param hash Hash of the key.
+     * @return The bucket, or null if the key is outside the range of the table.
+     */
+    private Bucket findBucket(HashKey hash) {
+        if (tableStart == null) {
+            return null;
+        }
+        HashKey offset = hash.subtract(tableStart);
+        if (offset.equals(HashKey.MIN)) {
+            // the start of the table belongs to the previous server, unless the table covers the whole ring
+            return wholeRing ? indexedBuckets[indexedBuckets.length - 1] : null;
+        }
+        int index = Arrays.binarySearch(bucketEnds, offset);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return index < indexedBuckets.length ? indexedBuckets[index] : null;
     }
 
     /**
-     * Adds a dummy bucket with given data.
+     * Rebuilds the buckets between two positions from the summaries, so that every bucket carries the same share
+     * of the load. The key and access counts of the buckets are taken from the summaries as well.
+     * Without any load, the buckets are created with the same width instead.
      *
-     * @param data Data to be added to the dummy bucket.
+     * @param start The exclusive start of the range.
+     * @param end   The inclusive end of the range.
      */
-    public void addDummyBucket(String data) {
-        String[] split = data.trim().split(";");
+    private void rebuildBuckets(HashKey start, HashKey end) {
+        QuantileSummary load = getLoadSummary();
+        if (load.getTotal() <= 0) {
+            return;
+        }
+        HashKey width = end.subtract(start);
+        boolean coversRing = width.equals(HashKey.MIN);
+        List<HashKey> boundaries = new ArrayList<>();
+        HashKey previous = HashKey.MIN;
+        for (int i = 1; i < numberOfBuckets; i++) {
+            HashKey boundary = load.quantile((double) i / numberOfBuckets);
+            // several quantiles can fall on the same hot key
+            if (boundary != null && boundary.compareTo(previous) > 0 && (coversRing || boundary.compareTo(width) < 0)) {
+                boundaries.add(boundary);
+                previous = boundary;
+            }
+        }
+        boundaries.add(width);
 
-        String dummyStartAndEnd = buckets.get(0).getStartRange();
-        Bucket dummyBucket = new Bucket(dummyStartAndEnd, dummyStartAndEnd);
-        for (String str : split) {
-            String[] key_val_arr = str.split(",");
-            dummyBucket.getBucketList().add(key_val_arr[0]);
+        buckets = new ArrayList<>(boundaries.size());
+        HashKey bucketStart = HashKey.MIN;
+        double keysBefore = 0;
+        double accessesBefore = 0;
+        totalBucketSize = 0;
+        totalAccesses = 0;
+        for (int i = 0; i < boundaries.size(); i++) {
+            HashKey boundary = boundaries.get(i);
+            boolean last = i == boundaries.size() - 1;
+            Bucket bucket = new Bucket(start.add(bucketStart).toHex(), start.add(boundary).toHex());
+            double keysUpTo = last ? keySummary.getTotal() : keySummary.weightUpTo(boundary);
+            double accessesUpTo = last ? accessSummary.getTotal() : accessSummary.weightUpTo(boundary);
+            bucket.addKeys((int) Math.round(keysUpTo - keysBefore));
+            bucket.addAccesses(Math.round(accessesUpTo - accessesBefore));
+            totalBucketSize += bucket.size();
+            totalAccesses += bucket.getAccesses();
+            keysBefore = keysUpTo;
+            accessesBefore = accessesUpTo;
+            buckets.add(bucket);
+            bucketStart = boundary;
         }
-        buckets.add(dummyBucket);
+        rebuildIndex();
+    }
+
+    /**
+     * Returns the summary the load is measured with, the accesses or the keys as long as no accesses were counted.
+     */
+    private QuantileSummary getLoadSummary() {
+        return accessSummary.getTotal() > 0 ? accessSummary : keySummary;
     }
 
     /**
@@ -147,9 +297,30 @@ public class FrequencyTable {
      * @param hash Hash of the key.
      */
     public void addToTable(String key, String hash) {
+        addToTable(HashKey.fromHex(hash));
+    }
+
+    /**
+     * Adds a key to the table.
+     *
+     * @param key  Key to be added.
+     * @param hash Hash of the key.
+     */
+    public void addToTable(String key, HashKey hash) {
+        addToTable(hash);
+    }
+
+    /**
+     * Counts a new key in the bucket of its hash.
+     *
+     * @param hash Hash of the key.
+     */
+    public synchronized void addToTable(HashKey hash) {
         totalBucketSize += 1;
-        for (Bucket bucket : buckets) {
-            bucket.insert(key, hash);
+        Bucket bucket = findBucket(hash);
+        if (bucket != null) {
+            bucket.increment();
+            keySummary.add(hash.subtract(tableStart), 1);
         }
     }
 
@@ -159,31 +330,179 @@ public class FrequencyTable {
      * @param key  Key to be removed.
      * @param hash Hash of the key.
      */
-    public void deleteFromTable(String key, String hash) {
+    public synchronized void deleteFromTable(String key, HashKey hash) {
         totalBucketSize -= 1;
-        for (Bucket bucket : buckets) {
-            bucket.delete(key, hash);
+        Bucket bucket = findBucket(hash);
+        if (bucket != null) {
+            bucket.decrement();
+            keySummary.remove(hash.subtract(tableStart), 1);
+        }
+    }
+
+    /**
+     * Counts an access to a key by a get, put or delete request. The access is only queued without locking the table,
+     * so request threads don't wait for each other. If the balancer didn't drain the queue for a long time, further
+     * accesses are dropped until it does.
+     *
+     * @param hash Hash of the key.
+     */
+    public void recordAccess(HashKey hash) {
+        if (pendingAccessCount.incrementAndGet() > MAX_PENDING_ACCESSES) {
+            pendingAccessCount.decrementAndGet();
+            return;
+        }
+        pendingAccesses.offer(hash);
+    }
+
+    /**
+     * Counts the queued accesses in the sketch, the buckets and the summary.
+     */
+    public synchronized void drainAccesses() {
+        decayIfDue();
+        HashKey hash;
+        while ((hash = pendingAccesses.poll()) != null) {
+            pendingAccessCount.decrementAndGet();
+            accessSketch.add(hash);
+            addAccesses(hash, 1);
+        }
+    }
+
+    private void addAccesses(HashKey hash, long accesses) {
+        Bucket bucket = findBucket(hash);
+        if (bucket != null && accesses > 0) {
+            bucket.addAccesses(accesses);
+            totalAccesses += accesses;
+            accessSummary.add(hash.subtract(tableStart), accesses);
         }
     }
 
     /**
-     * Calculates the range of keys to be offloaded.
+     * Halves the recent accesses once for every DECAY_INTERVAL that passed since they were halved last.
+     */
+    private void decayIfDue() {
+        long now = System.currentTimeMillis();
+        int halvings = (int) Math.min(63, (now - lastDecay) / DECAY_INTERVAL);
+        if (halvings == 0) {
+            return;
+        }
+        lastDecay += halvings * DECAY_INTERVAL;
+        accessSketch.decay(halvings);
+        accessSummary.decay(halvings);
+        totalAccesses = 0;
+        if (buckets != null) {
+            for (Bucket bucket : buckets) {
+                bucket.decayAccesses(halvings);
+                totalAccesses += bucket.getAccesses();
+            }
+        }
+    }
+
+    /**
+     * Estimates how often a single key was accessed recently.
+     *
+     * @param hash Hash of the key.
+     * @return The estimated recent accesses.
+     */
+    public synchronized long estimateAccesses(HashKey hash) {
+        drainAccesses();
+        return accessSketch.estimate(hash);
+    }
+
+    /**
+     * Returns the share of the server's load a bucket carries. The load is measured by the recent accesses,
+     * or by the number of keys as long as no accesses were counted.
+     */
+    private double weight(Bucket bucket) {
+        if (totalAccesses > 0) {
+            return (double) bucket.getAccesses() / totalAccesses;
+        }
+        return totalBucketSize == 0 ? 0 : (double) bucket.size() / totalBucketSize;
+    }
+
+    /**
+     * Splits the range of the table at the offload threshold of the load summary and rebuilds the buckets of the
+     * remaining range.
      *
      * @param lower If true, offload from the lower end, otherwise offload from the higher end.
      * @return An array containing the start and end range of keys to be offloaded.
      */
-    public String[] calculateOffloadKeyRange(boolean lower) {
+    private String[] calculateOffloadKeyRangeFromSummary(boolean lower) {
+        QuantileSummary load = getLoadSummary();
+        HashKey width = tableEnd.subtract(tableStart);
+        HashKey start = tableStart;
+        HashKey end = tableEnd;
+        double share = offloadThreshold / 100.0;
+        HashKey split = load.quantile(lower ? share : 1 - share);
+        // the whole range would be moved, or nothing at all
+        if (split == null || (!width.equals(HashKey.MIN) && split.compareTo(width) >= 0)
+                || (!lower && load.weightUpTo(split) >= load.getTotal())) {
+            return new String[]{start.toHex(), start.toHex()};
+        }
+        HashKey splitKey = start.add(split);
+        if (lower) {
+            keySummary.retainAfter(split);
+            accessSummary.retainAfter(split);
+            rebuildRemainingBuckets(splitKey, end);
+            return new String[]{start.toHex(), splitKey.toHex()};
+        } else {
+            keySummary.retainUpTo(split);
+            accessSummary.retainUpTo(split);
+            rebuildRemainingBuckets(start, splitKey);
+            return new String[]{splitKey.toHex(), end.toHex()};
+        }
+    }
+
+    /**
+     * Rebuilds the buckets for the range that remains after offloading. The table is moved to the new range first,
+     * so that it already covers the right keys before the new key range arrives with the metadata.
+     */
+    private void rebuildRemainingBuckets(HashKey start, HashKey end) {
+        buckets = new ArrayList<>(List.of(new Bucket(start.toHex(), end.toHex())));
+        rebuildIndex();
+        if (getLoadSummary().getTotal() > 0) {
+            rebuildBuckets(start, end);
+        } else {
+            totalBucketSize = 0;
+            totalAccesses = 0;
+        }
+    }
+
+    /**
+     * Removes buckets whose keys were offloaded from the table.
+     */
+    private void removeBuckets(List<Bucket> removed) {
+        for (Bucket bucket : removed) {
+            totalAccesses -= bucket.getAccesses();
+            totalBucketSize -= bucket.size();
+        }
+        removed.clear();
+        rebuildIndex();
+    }
+
+    /**
+     * Calculates the range of keys to be offloaded. The range is split at the key where the offload threshold of the
+     * server's recent accesses is reached, so hot ranges are moved even if they hold few keys, and exactly as much
+     * load is moved as the keys allow. Afterward, the remaining range is divided into new buckets.
+     * As long as the load isn't known per key, the range covers whole buckets.
+     *
+     * @param lower If true, offload from the lower end, otherwise offload from the higher end.
+     * @return An array containing the start and end range of keys to be offloaded.
+     */
+    public synchronized String[] calculateOffloadKeyRange(boolean lower) {
+        drainAccesses();
+        if (tableStart != null && getLoadSummary().getTotal() > 0) {
+            return calculateOffloadKeyRangeFromSummary(lower);
+        }
         String startRange;
         String endRange;
 
         if (lower) {
             int bucketIndex = 0;
             startRange = buckets.get(0).getStartRange();
-            int cumulativeBucketSize = 0;
+            double cumulativeWeight = 0;
             for (Bucket bucket : buckets) {
-                cumulativeBucketSize += bucket.size();
-                double percentage = cumulativeBucketSize == 0 ? 0 : BigInteger.valueOf(cumulativeBucketSize).doubleValue() / BigInteger.valueOf(totalBucketSize).doubleValue() * 100;
-                if (percentage >= offloadThreshold) {
+                cumulativeWeight += weight(bucket);
+                if (cumulativeWeight * 100 >= offloadThreshold) {
                     break;
                 }
                 if (bucketIndex < buckets.size() - 1) {
@@ -195,17 +514,16 @@ public class FrequencyTable {
                 if (buckets.subList(0, bucketIndex + 1).size() == buckets.size()) {
                     return new String[]{startRange, startRange};
                 }
-                buckets.subList(0, bucketIndex + 1).clear();
+                removeBuckets(buckets.subList(0, bucketIndex + 1));
             }
             return new String[]{startRange, endRange};
         } else {
             int bucketIndex = buckets.size() - 1;
             startRange = buckets.get(buckets.size() - 1).getEndRange();
-            int cumulativeBucketSize = 0;
+            double cumulativeWeight = 0;
             for (int j = buckets.size() - 1; j >= 0; j--) {
-                cumulativeBucketSize += buckets.get(j).size();
-                double percentage = cumulativeBucketSize == 0 ? 0 : BigInteger.valueOf(cumulativeBucketSize).doubleValue() / BigInteger.valueOf(totalBucketSize).doubleValue() * 100;
-                if (percentage >= offloadThreshold) {
+                cumulativeWeight += weight(buckets.get(j));
+                if (cumulativeWeight * 100 >= offloadThreshold) {
                     break;
                 }
                 if (bucketIndex > 0) {
@@ -217,7 +535,7 @@ public class FrequencyTable {
                 if (buckets.subList(bucketIndex, buckets.size()).size() == buckets.size()) {
                     return new String[]{endRange, endRange};
                 }
-                buckets.subList(bucketIndex, buckets.size()).clear();
+                removeBuckets(buckets.subList(bucketIndex, buckets.size()));
             }
             return new String[]{endRange, startRange};
         }
@@ -230,20 +548,21 @@ public class FrequencyTable {
      * @param countToRemove Number of buckets to remove.
      * @param lower         If true, remove from the lower end, otherwise remove from the higher end.
      */
-    public void removeBucket(int countToRemove, boolean lower) {
+    public synchronized void removeBucket(int countToRemove, boolean lower) {
         if (lower) {
             if (countToRemove > 0) {
-                buckets.subList(0, countToRemove).clear();
+                removeBuckets(buckets.subList(0, countToRemove));
             }
         } else {
             if (countToRemove > 0) {
-                buckets.subList(0, buckets.size() - countToRemove).clear();
+                removeBuckets(buckets.subList(0, buckets.size() - countToRemove));
             }
         }
     }
 
     @Override
-    public String toString() {
+    public synchronized String toString() {
+        drainAccesses();
         StringBuilder builder = new StringBuilder();
 
         if (buckets.size() == 0) {
@@ -267,6 +586,9 @@ public class FrequencyTable {
             }
             builder.append(String.format("%.2f", percentage));
             builder.append("%");
+            if (totalAccesses > 0) {
+                builder.append(String.format(" (%.2f%% of the accesses)", weight(bucket) * 100));
+            }
             builder.append("\n");
         }
         builder.append("Where each # represents 1% of the keys within the server");
@@ -278,7 +600,7 @@ public class FrequencyTable {
      *
      * @return A string representation of the bucket information.
      */
-    public String getAllInfo() {
+    public synchronized String getAllInfo() {
         StringBuilder builder = new StringBuilder();
 
         for (Bucket bucket : buckets) {
@@ -0,0 +1,52 @@
+package org.praktikum.resources;
+
+/**
+ * Places keys and servers on the 128-bit hash ring. The hash is only used to spread keys evenly,
+ * so it doesn't have to be cryptographic, but every server and client of a cluster has to use the same one.
+ * Implementations have to be thread-safe.
+ */
+public interface HashFunction {
+    String MD5 = "md5";
+    String MURMUR3 = "murmur3";
+
+    /**
+     * Returns the name of the hash function, as it is used in the switch_hash and hash_function messages.
+     *
+     * @return The name of the hash function.
+     */
+    String getName();
+
+    /**
+     * Hashes a part of a byte buffer.
+     *
+     * @param bytes  The buffer.
+     * @param offset The offset of the first byte to hash.
+     * @param length The number of bytes to hash.
+     * @return The position of the bytes on the ring.
+     */
+    HashKey hash(byte[] bytes, int offset, int length);
+
+    /**
+     * Looks up a hash function by its name. A name like murmur3/256 maps keys to 256 partitions with the base hash function.
+     *
+     * @param name The name of the hash function, md5 or murmur3, optionally followed by /partitions.
+     * @return The hash function, or null if there is no hash function with that name.
+     */
+    static HashFunction forName(String name) {
+        int separator = name.indexOf('/');
+        if (separator >= 0) {
+            HashFunction base = forName(name.substring(0, separator));
+            try {
+                int partitions = Integer.parseInt(name.substring(separator + 1));
+                return base == null || !PartitionedHash.isValidCount(partitions) ? null : new PartitionedHash(base, partitions);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return switch (name.toLowerCase()) {
+            case MD5 -> new MD5Hash();
+            case MURMUR3 -> new Murmur3Hash();
+            default -> null;
+        };
+    }
+}
@@ -0,0 +1,142 @@
+package org.praktikum.resources;
+
+/**
+ * A position on the 128-bit hash ring, stored as two longs that are compared unsigned.
+ * Routing compares HashKeys instead of 32 character hex strings. The hex representation is only
+ * used on the wire and in logs.
+ */
+public final class HashKey implements Comparable<HashKey> {
+    public static final HashKey MIN = new HashKey(0, 0);
+    public static final HashKey MAX = new HashKey(-1, -1);
+
+    private final long high;
+    private final long low;
+
+    public HashKey(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Creates a HashKey from the 16 bytes of an MD5 digest.
+     *
+     * @param digest The digest, most significant byte first.
+     * @return The HashKey of the digest.
+     */
+    public static HashKey fromDigest(byte[] digest) {
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (digest[i] & 0xFF);
+            low = (low << 8) | (digest[i + 8] & 0xFF);
+        }
+        return new HashKey(high, low);
+    }
+
+    /**
+     * Parses a hex string of up to 32 characters, as it is used in the metadata and key range messages.
+     *
+     * @param hex The hex string, upper or lower case.
+     * @return The HashKey of the hex string.
+     * @throws NumberFormatException if the string isn't a valid hex number of up to 32 characters.
+     */
+    public static HashKey fromHex(String hex) {
+        int length = hex.length();
+        if (length == 0 || length > 32) {
+            throw new NumberFormatException("Invalid hash: " + hex);
+        }
+        int split = Math.max(0, length - 16);
+        long high = split == 0 ? 0 : Long.parseUnsignedLong(hex.substring(0, split), 16);
+        long low = Long.parseUnsignedLong(hex.substring(split), 16);
+        return new HashKey(high, low);
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    /**
+     * Checks whether this key lies in the range (start, end] on the ring. If start is greater than end,
+     * the range wraps around the end of the ring. If start equals end, the range covers the whole ring.
+     *
+     * @param start The exclusive start of the range.
+     * @param end   The inclusive end of the range.
+     * @return true if the key lies in the range, false otherwise.
+     */
+    public boolean isInRange(HashKey start, HashKey end) {
+        int order = start.compareTo(end);
+        if (order < 0) {
+            return start.compareTo(this) < 0 && end.compareTo(this) >= 0;
+        }
+        if (order == 0) {
+            return true;
+        }
+        return start.compareTo(this) < 0 || end.compareTo(this) >= 0;
+    }
+
+    /**
+     * Moves this key clockwise by a distance on the ring, i.e. this + distance modulo 2^128.
+     *
+     * @param distance The distance to move the key by.
+     * @return The moved key.
+     */
+    public HashKey add(HashKey distance) {
+        long sumLow = low + distance.low;
+        long carry = Long.compareUnsigned(sumLow, low) < 0 ? 1 : 0;
+        return new HashKey(high + distance.high + carry, sumLow);
+    }
+
+    /**
+     * Computes the clockwise distance from another key to this key on the ring, i.e. this - other modulo 2^128.
+     *
+     * @param other The key the distance starts at.
+     * @return The distance as a key.
+     */
+    public HashKey subtract(HashKey other) {
+        long differenceLow = low - other.low;
+        long borrow = Long.compareUnsigned(low, other.low) < 0 ? 1 : 0;
+        return new HashKey(high - other.high - borrow, differenceLow);
+    }
+
+    /**
+     * Formats the key as an upper case hex string of 32 characters.
+     *
+     * @return The hex representation of the key.
+     */
+    public String toHex() {
+        String highHex = Long.toHexString(high);
+        String lowHex = Long.toHexString(low);
+        return ("0".repeat(16 - highHex.length()) + highHex + "0".repeat(16 - lowHex.length()) + lowHex).toUpperCase();
+    }
+
+    @Override
+    public int compareTo(HashKey other) {
+        int order = Long.compareUnsigned(high, other.high);
+        return order != 0 ? order : Long.compareUnsigned(low, other.low);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof HashKey hashKey)) {
+            return false;
+        }
+        return high == hashKey.high && low == hashKey.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(high) * 31 + Long.hashCode(low);
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+}
@@ -0,0 +1,97 @@
+package org.praktikum.resources;
+
+/**
+ * Maps keys to a fixed number of partitions instead of spreading them over the whole ring. A key is hashed with
+ * the base hash function and assigned to a partition with jump consistent hash. Its position on the ring is the end
+ * of its partition, partition p ending at p * 2^128 / partitions. A server then owns whole partitions, every
+ * transfer moves whole partitions, and the owner of a key is found by indexing the partition table of the ring.
+ */
+public class PartitionedHash implements HashFunction {
+    public static final int MIN_PARTITIONS = 2;
+    public static final int MAX_PARTITIONS = 1 << 16;
+
+    private final HashFunction base;
+    private final int partitions;
+    private final int shift;
+
+    /**
+     * @param base       The hash function the partition of a key is derived from.
+     * @param partitions The number of partitions, a power of two between 2 and 65536.
+     */
+    public PartitionedHash(HashFunction base, int partitions) {
+        if (!isValidCount(partitions)) {
+            throw new IllegalArgumentException("Invalid number of partitions: " + partitions);
+        }
+        this.base = base;
+        this.partitions = partitions;
+        this.shift = 64 - Integer.numberOfTrailingZeros(partitions);
+    }
+
+    /**
+     * Checks whether the ring can be split into the given number of partitions, which has to be a power of two
+     * so that the partition boundaries are exact.
+     *
+     * @param partitions The number of partitions.
+     * @return true if the number is valid, false otherwise.
+     */
+    public static boolean isValidCount(int partitions) {
+        return partitions >= MIN_PARTITIONS && partitions <= MAX_PARTITIONS && Integer.bitCount(partitions) == 1;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    @Override
+    public String getName() {
+        return base.getName() + "/" + partitions;
+    }
+
+    @Override
+    public HashKey hash(byte[] bytes, int offset, int length) {
+        HashKey hash = base.hash(bytes, offset, length);
+        return getBoundary(jump(hash.getHigh() ^ hash.getLow(), partitions));
+    }
+
+    /**
+     * Returns the position of a partition on the ring, which is the inclusive end of the partition.
+     *
+     * @param partition The partition.
+     * @return The end of the partition.
+     */
+    public HashKey getBoundary(int partition) {
+        return new HashKey((long) partition << shift, 0);
+    }
+
+    /**
+     * Returns the partition a position on the ring is the boundary of.
+     *
+     * @param hash A position on the ring.
+     * @return The partition, or -1 if the position isn't the boundary of a partition.
+     */
+    public int getPartition(HashKey hash) {
+        if (hash.getLow() != 0 || (hash.getHigh() & ((1L << shift) - 1)) != 0) {
+            return -1;
+        }
+        return (int) (hash.getHigh() >>> shift);
+    }
+
+    /**
+     * Jump consistent hash by Lamping and Veach. It assigns a key to one of the buckets without any table,
+     * and only moves 1/buckets of the keys if a bucket is added.
+     *
+     * @param key     The key.
+     * @param buckets The number of buckets.
+     * @return The bucket of the key between 0 and buckets - 1.
+     */
+    static int jump(long key, int buckets) {
+        long bucket = -1;
+        long next = 0;
+        while (next < buckets) {
+            bucket = next;
+            key = key * 2862933555777941757L + 1;
+            next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) bucket;
+    }
+}
@@ -0,0 +1,202 @@
+package org.praktikum.resources;
+
+import java.util.Arrays;
+
+/**
+ * Summarizes how a weight, e.g. keys or accesses, is distributed over the positions of a key range in bounded memory,
+ * to find the positions that split the weight at a given quantile.
+ * <p>
+ * The summary keeps at most a fixed number of centroids sorted by position. A centroid holds the weight of the
+ * positions after the previous centroid up to and including its own position. Once there are too many centroids,
+ * the two adjacent centroids with the smallest combined weight are merged into the later one, so the centroids
+ * end up holding similar weights and the resolution is highest where most of the weight is. As centroids keep the
+ * position of a real key, a split point always lies exactly on a key.
+ * <p>
+ * Positions are distances from the start of the key range, so the summary doesn't have to care about wrap-arounds.
+ */
+public class QuantileSummary {
+    private final int maxCentroids;
+    private final HashKey[] positions;
+    private final double[] weights;
+    private int size;
+    private double total;
+
+    /**
+     * Creates an empty summary.
+     *
+     * @param maxCentroids The maximum number of centroids.
+     */
+    public QuantileSummary(int maxCentroids) {
+        this.maxCentroids = maxCentroids;
+        this.positions = new HashKey[maxCentroids + 1];
+        this.weights = new double[maxCentroids + 1];
+    }
+
+    /**
+     * Adds weight at a position.
+     *
+     * @param position The distance from the start of the key range.
+     * @param weight   The weight to add.
+     */
+    public void add(HashKey position, double weight) {
+        if (weight <= 0) {
+            return;
+        }
+        total += weight;
+        int index = Arrays.binarySearch(positions, 0, size, position);
+        if (index >= 0) {
+            weights[index] += weight;
+            return;
+        }
+        index = -index - 1;
+        System.arraycopy(positions, index, positions, index + 1, size - index);
+        System.arraycopy(weights, index, weights, index + 1, size - index);
+        positions[index] = position;
+        weights[index] = weight;
+        size++;
+        if (size > maxCentroids) {
+            mergeLightestPair();
+        }
+    }
+
+    /**
+     * Removes weight at a position, e.g. if a key was deleted. The weight is taken from the centroid that covers
+     * the position.
+     *
+     * @param position The distance from the start of the key range.
+     * @param weight   The weight to remove.
+     */
+    public void remove(HashKey position, double weight) {
+        int index = Arrays.binarySearch(positions, 0, size, position);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        if (index >= size) {
+            return;
+        }
+        double removed = Math.min(weight, weights[index]);
+        weights[index] -= removed;
+        total -= removed;
+    }
+
+    private void mergeLightestPair() {
+        int lightest = 0;
+        for (int i = 1; i < size - 1; i++) {
+            if (weights[i] + weights[i + 1] < weights[lightest] + weights[lightest + 1]) {
+                lightest = i;
+            }
+        }
+        weights[lightest + 1] += weights[lightest];
+        System.arraycopy(positions, lightest + 1, positions, lightest, size - lightest - 1);
+        System.arraycopy(weights, lightest + 1, weights, lightest, size - lightest - 1);
+        size--;
+        positions[size] = null;
+    }
+
+    /**
+     * Finds the position that splits the weight at a quantile. Of the two centroids around the quantile, the one
+     * whose cumulative weight is closer to it is chosen.
+     *
+     * @param quantile The share of the weight up to the position, between 0 and 1.
+     * @return The position, or null if the summary is empty.
+     */
+    public HashKey quantile(double quantile) {
+        if (total <= 0) {
+            return null;
+        }
+        double target = quantile * total;
+        double cumulative = 0;
+        for (int i = 0; i < size; i++) {
+            double previous = cumulative;
+            cumulative += weights[i];
+            if (cumulative >= target && weights[i] > 0) {
+                int previousIndex = previousNonEmpty(i);
+                if (previousIndex >= 0 && target - previous < cumulative - target) {
+                    return positions[previousIndex];
+                }
+                return positions[i];
+            }
+        }
+        // the cumulative weight can fall short of the total by rounding errors
+        int last = previousNonEmpty(size);
+        return last < 0 ? null : positions[last];
+    }
+
+    private int previousNonEmpty(int index) {
+        for (int i = index - 1; i >= 0; i--) {
+            if (weights[i] > 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sums the weight up to and including a position.
+     *
+     * @param position The distance from the start of the key range.
+     * @return The weight up to the position.
+     */
+    public double weightUpTo(HashKey position) {
+        double weight = 0;
+        for (int i = 0; i < size && positions[i].compareTo(position) <= 0; i++) {
+            weight += weights[i];
+        }
+        return weight;
+    }
+
+    /**
+     * Drops the weight up to and including a position and makes the position the new start of the key range.
+     *
+     * @param position The new start of the key range as distance from the old start.
+     */
+    public void retainAfter(HashKey position) {
+        int first = 0;
+        while (first < size && positions[first].compareTo(position) <= 0) {
+            total -= weights[first];
+            first++;
+        }
+        for (int i = first; i < size; i++) {
+            positions[i - first] = positions[i].subtract(position);
+            weights[i - first] = weights[i];
+        }
+        Arrays.fill(positions, size - first, size, null);
+        size -= first;
+    }
+
+    /**
+     * Drops the weight after a position.
+     *
+     * @param position The new end of the key range as distance from its start.
+     */
+    public void retainUpTo(HashKey position) {
+        while (size > 0 && positions[size - 1].compareTo(position) > 0) {
+            size--;
+            total -= weights[size];
+            positions[size] = null;
+        }
+    }
+
+    /**
+     * Halves all weights the given number of times.
+     *
+     * @param halvings How often the weights are halved.
+     */
+    public void decay(int halvings) {
+        double factor = Math.pow(0.5, halvings);
+        for (int i = 0; i < size; i++) {
+            weights[i] *= factor;
+        }
+        total *= factor;
+    }
+
+    public void clear() {
+        Arrays.fill(positions, null);
+        size = 0;
+        total = 0;
+    }
+
+    public double getTotal() {
+        return total;
+    }
+}
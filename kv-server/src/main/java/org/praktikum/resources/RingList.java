@@ -1,26 +1,40 @@
 package org.praktikum.resources;
 
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.*;
 
 
+/**
+ * The ring of servers as described by the metadata of the ECS.
+ * <p>
+ * Request threads route on every request, while the metadata is replaced by the ECS connection thread.
+ * Every update therefore builds a new immutable {@link RoutingTable} and publishes it through a volatile reference,
+ * so lookups never lock and always see a complete ring. Lookups by hash use a binary search over the sorted end ranges,
+ * lookups by address use a map.
+ */
 public class RingList {
-    Node head;
-    int size = 0;
-    private final MessageDigest digest;
+    private final ConsistentHashing hashing = new ConsistentHashing();
+    private volatile RoutingTable routingTable = RoutingTable.EMPTY;
+
+    public int getSize() {
+        return routingTable.nodes.length;
+    }
 
     /**
-     * Constructs a new RingList initialized with an MD5 hashing mechanism.
+     * Returns the epoch of the metadata the ring was built from. The ECS increments it on every change of the ring.
      *
-     * @throws NoSuchAlgorithmException if MD5 algorithm is not available.
+     * @return The epoch, 0 if no metadata with an epoch was received yet.
      */
-    public RingList() throws NoSuchAlgorithmException {
-        this.digest = MessageDigest.getInstance("MD5");
+    public long getEpoch() {
+        return routingTable.epoch;
     }
 
-    public int getSize() {
-        return size;
+    /**
+     * Counts the physical servers of the ring. With virtual nodes a server owns several nodes.
+     *
+     * @return The number of distinct servers.
+     */
+    public int getServerCount() {
+        return routingTable.nodesByAddress.size();
     }
 
     /**
@@ -35,23 +49,10 @@ public class RingList {
         if (hashString == null) {
             hashString = getMD5Hash(IP, port);
         }
-
-        Node previousNode = findByHashKey(hashString);
-
-        Node newNode;
-        if (previousNode == null) {
-            newNode = new Node(IP, port, hashString);
-        } else {
-            newNode = new Node(previousNode, IP, port, hashString);
-        }
-        //creates new Node and automatically adjusts the respective pointers.
-        if (head == null) {
-            head = newNode;
-        }
-
-        size++;
-
-        return newNode;
+        List<Entry> entries = routingTable.getEntries();
+        entries.add(new Entry(IP, port, HashKey.fromHex(hashString)));
+        routingTable = RoutingTable.build(entries, routingTable.epoch);
+        return routingTable.findByAddress(IP, port);
     }
 
     /**
@@ -61,36 +62,8 @@ public class RingList {
      * @return The removed node or null if not found.
      */
     public synchronized Node remove(String hashString) {
-        if (size == 0) {
-            return null;
-        } else if (size == 1) {
-            Node node = head;
-            head = null;
-            size--;
-            return node;
-        }
-
-        Node toBeRemovedNode = findByHashKey(hashString);
-
-        if (size == 2) {
-            Node prev = toBeRemovedNode.getPrev();
-            prev.setNext(prev);
-            prev.setPrev(prev);
-            prev.setEndRange(toBeRemovedNode.getEndRange());
-            if (toBeRemovedNode == head) {
-                head = prev;
-            }
-        } else {
-            toBeRemovedNode.getPrev().setNext(toBeRemovedNode.getNext());
-            toBeRemovedNode.getPrev().setEndRange(toBeRemovedNode.getEndRange());
-            toBeRemovedNode.getNext().setPrev(toBeRemovedNode.getPrev());
-
-            if (toBeRemovedNode == head) {
-                head = toBeRemovedNode.getPrev();
-            }
-        }
-        size--;
-        return toBeRemovedNode;
+        Node node = routingTable.findByHashKey(HashKey.fromHex(hashString));
+        return node == null ? null : remove(node);
     }
 
     /**
@@ -102,49 +75,27 @@ public class RingList {
      */
 
     public String getMD5Hash(String IP, String port) {
-        byte[] hash = this.digest.digest((IP + ":" + port).getBytes());
-        BigInteger bigInteger = new BigInteger(1, hash);
-        return String.format("%032X", bigInteger);
+        return hashing.getMD5Hash(IP, port);
     }
 
     /**
      * Removes a node with the specified IP and port from the ring list.
+     * Its successor takes over its key range.
      *
      * @param IP   The IP address of the node.
      * @param port The port number of the node.
      * @return The removed node or null if not found.
      */
     public synchronized Node remove(String IP, String port) {
-        if (size == 0) {
-            return null;
-        } else if (size == 1) {
-            Node node = head;
-            head = null;
-            size--;
-            return node;
-        }
-
-        Node toBeRemovedNode = findByIPandPort(IP, port);
-
-        if (size == 2) {
-            Node prev = toBeRemovedNode.getPrev();
-            prev.setNext(prev);
-            prev.setPrev(prev);
-            prev.setEndRange(toBeRemovedNode.getEndRange());
-            if (toBeRemovedNode == head) {
-                head = prev;
-            }
-        } else {
-            toBeRemovedNode.getPrev().setNext(toBeRemovedNode.getNext());
-            toBeRemovedNode.getPrev().setEndRange(toBeRemovedNode.getEndRange());
-            toBeRemovedNode.getNext().setPrev(toBeRemovedNode.getPrev());
+        Node node = routingTable.findByAddress(IP, port);
+        return node == null ? null : remove(node);
+    }
 
-            if (toBeRemovedNode == head) {
-                head = toBeRemovedNode.getPrev();
-            }
-        }
-        size--;
-        return toBeRemovedNode;
+    private Node remove(Node node) {
+        List<Entry> entries = routingTable.getEntries();
+        entries.removeIf(entry -> entry.endRange.equals(node.getEndKey()));
+        routingTable = RoutingTable.build(entries, routingTable.epoch);
+        return node;
     }
 
     /**
@@ -153,29 +104,8 @@ public class RingList {
      * @param key The hash key to search for.
      * @return The found node or null if non-existent.
      */
-    public Node findByHashKey(String key) {
-        if (size == 0) {
-            return null;
-        }
-        // Special Case when there is only one server, as it covers ALL values. I.e. no handling of inclusive/exclusive bounds.
-        else if (size == 1) {
-            return head;
-        }
-
-        Node node = head;
-        do {
-            if (node.getStartRange().compareTo(key) < 0 && node.getEndRange().compareTo(key) >= 0) {
-                return node;
-            } else if (node.getStartRange().compareTo(node.getEndRange()) >= 0) {
-                if (node.getStartRange().compareTo(key) < 0 && node.getEndRange().compareTo(key) <= 0) {
-                    return node;
-                } else if (node.getStartRange().compareTo(key) > 0 && node.getEndRange().compareTo(key) >= 0) {
-                    return node;
-                }
-            }
-            node = node.getNext();
-        } while (node != head);
-        return null;
+    public Node findByHashKey(HashKey key) {
+        return routingTable.findByHashKey(key);
     }
 
     /**
@@ -186,32 +116,98 @@ public class RingList {
      * @return The found node or null if non-existent.
      */
     public Node findByIPandPort(String address, String port) {
-        if (size == 0) {
-            return null;
+        return routingTable.findByAddress(address, port);
+    }
+
+    /**
+     * Finds all virtual nodes of a server, in the order of the ring.
+     *
+     * @param address The IP address of the server.
+     * @param port    The port number of the server.
+     * @return The nodes of the server, or an empty list if it isn't part of the ring.
+     */
+    public List<Node> findAllByIPandPort(String address, String port) {
+        return Collections.unmodifiableList(routingTable.nodesByAddress.getOrDefault(address + ":" + port, List.of()));
+    }
+
+    /**
+     * Determines the servers holding a replica of a server, which are the first two distinct servers following its
+     * first node. Without virtual nodes these are the next two servers. The replicas hold the whole store of the server,
+     * so with virtual nodes there are still only two of them. Data is only replicated with more than two servers.
+     *
+     * @param address The IP address of the server.
+     * @param port    The port number of the server.
+     * @return The "ip:port" addresses of the two replicas.
+     */
+    public List<String> getReplicaAddresses(String address, String port) {
+        return Collections.unmodifiableList(routingTable.replicasByAddress.getOrDefault(address + ":" + port, List.of()));
+    }
+
+    /**
+     * Determines the servers a server holds replicas of. Without virtual nodes these are its two predecessors.
+     *
+     * @param address The IP address of the server.
+     * @param port    The port number of the server.
+     * @return The "ip:port" addresses of the primaries.
+     */
+    public List<String> getReplicatedServers(String address, String port) {
+        String replicaAddress = address + ":" + port;
+        List<String> primaries = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : routingTable.replicasByAddress.entrySet()) {
+            if (entry.getValue().contains(replicaAddress)) {
+                primaries.add(entry.getKey());
+            }
         }
-        Node node = head;
-        do {
-            if (node.getIP().equals(address) && node.getPort().equals(port)) {
-                return node;
+        return primaries;
+    }
+
+    /**
+     * Finds the first node after the given one that belongs to a different server.
+     * This server takes over the range of the node when the node's server leaves the ring.
+     *
+     * @param node The node whose successor is searched.
+     * @return The first node of a different server, or null if the ring consists of the node's server only.
+     */
+    public Node findSuccessorServer(Node node) {
+        Node successor = node.getNext();
+        while (successor != node) {
+            if (!successor.getAddress().equals(node.getAddress())) {
+                return successor;
             }
-            node = node.getNext();
-        } while (node != head);
+            successor = successor.getNext();
+        }
         return null;
     }
 
     /**
      * Generates a string representation of the ring list,
      * including replication range and server IP and port.
+     * With virtual nodes, every node is listed once for each server that may answer reads of its range.
      *
      * @return A string representation of the ring list's key range and server details.
      */
     public String getKeyRangeRead() {
-        StringBuilder builder = new StringBuilder();
-
-        Node node = head;
-
-        if (getSize() > 2) {
-            do {
+        RoutingTable table = routingTable;
+        if (table.nodes.length > table.nodesByAddress.size() && table.nodesByAddress.size() > 2) {
+            StringBuilder builder = new StringBuilder();
+            for (Node node : table.nodes) {
+                List<String> readers = new ArrayList<>();
+                readers.add(node.getAddress());
+                readers.addAll(table.replicasByAddress.get(node.getAddress()).subList(0, 2));
+                for (String reader : readers) {
+                    builder.append(node.getStartRange());
+                    builder.append(",");
+                    builder.append(node.getEndRange());
+                    builder.append(",");
+                    builder.append(reader);
+                    builder.append(";");
+                }
+            }
+            return builder.toString();
+        }
+        if (table.nodes.length > 2) {
+            StringBuilder builder = new StringBuilder();
+            for (Node node : table.nodes) {
                 builder.append(node.getPrev().getPrev().getStartRange());
                 builder.append(",");
                 builder.append(node.getEndRange());
@@ -220,12 +216,11 @@ public class RingList {
                 builder.append(":");
                 builder.append(node.getPort());
                 builder.append(";");
-                node = node.next;
-            } while (node != head);
+            }
             return builder.toString();
         }
 
-        return toString();
+        return toString(table);
     }
 
     /**
@@ -235,14 +230,15 @@ public class RingList {
      */
     @Override
     public String toString() {
-        if (size == 0) {
+        return toString(routingTable);
+    }
+
+    private static String toString(RoutingTable table) {
+        if (table.nodes.length == 0) {
             return null;
         }
         StringBuilder builder = new StringBuilder();
-
-        Node node = head;
-
-        do {
+        for (Node node : table.nodes) {
             builder.append(node.getStartRange());
             builder.append(",");
             builder.append(node.getEndRange());
@@ -251,112 +247,268 @@ public class RingList {
             builder.append(":");
             builder.append(node.getPort());
             builder.append(";");
-            node = node.next;
-        } while (node != head);
+        }
         return builder.toString();
     }
 
     public boolean isEmpty() {
-        return size == 0;
+        return routingTable.nodes.length == 0;
     }
 
     /**
      * Parses and updates the metadata for the ring list based on the provided data string.
+     * The new ring is built completely before it replaces the old one.
      *
      * @param data The metadata string to parse and apply.
      */
     public void parseAndUpdateMetaData(String data) {
+        parseAndUpdateMetaData(data, routingTable.epoch);
+    }
+
+    /**
+     * Parses and updates the metadata for the ring list based on the provided data string.
+     * The new ring is built completely before it replaces the old one.
+     *
+     * @param data  The metadata string to parse and apply.
+     * @param epoch The epoch of the metadata.
+     */
+    public synchronized void parseAndUpdateMetaData(String data, long epoch) {
         if (data.equals("null")) {
             return;
         }
-        head = null;
-        size = 0;
+        List<Entry> entries = new ArrayList<>();
         String[] splitted = data.split(";");
         for (String valueString : splitted) {
             String[] values = valueString.split(",");
             String[] server = values[2].split(":");
-            add(server[0], server[1], values[1]);
+            entries.add(new Entry(server[0], server[1], HashKey.fromHex(values[1])));
         }
+        routingTable = RoutingTable.build(entries, epoch);
     }
 
+    /**
+     * Applies the changes between two epochs of the metadata. A change is either an added node +endRange,IP:Port;
+     * or a removed node -endRange,IP:Port; since every node starts where its predecessor ends.
+     * The delta is only applied if the ring is at the epoch the delta is based on.
+     *
+     * @param baseEpoch The epoch the changes are based on.
+     * @param epoch     The epoch after the changes.
+     * @param changes   The added and removed nodes.
+     * @return true if the changes were applied, false if the ring missed an update and needs the complete metadata.
+     */
+    public synchronized boolean applyMetaDataDelta(long baseEpoch, long epoch, String changes) {
+        if (routingTable.epoch != baseEpoch) {
+            return false;
+        }
+        List<Entry> entries = routingTable.getEntries();
+        for (String change : changes.split(";")) {
+            if (change.length() < 2) {
+                continue;
+            }
+            String[] values = change.substring(1).split(",");
+            String[] server = values[1].split(":");
+            Entry entry = new Entry(server[0], server[1], HashKey.fromHex(values[0]));
+            if (change.charAt(0) == '+') {
+                entries.add(entry);
+            } else {
+                entries.remove(entry);
+            }
+        }
+        routingTable = RoutingTable.build(entries, epoch);
+        return true;
+    }
+
+    /**
+     * A server of the ring, identified by its address and the end of its key range.
+     */
+    private record Entry(String IP, String port, HashKey endRange) {
+    }
+
+    /**
+     * An immutable snapshot of the ring. The nodes are sorted by the end of their key ranges, so the node
+     * responsible for a hash is the first one whose end range isn't smaller than the hash, wrapping around to the first node.
+     */
+    private static final class RoutingTable {
+        static final RoutingTable EMPTY = new RoutingTable(new Node[0], 0);
+
+        private final long epoch;
+        private final Node[] nodes;
+        private final HashKey[] endRanges;
+        private final Map<String, List<Node>> nodesByAddress;
+        private final Map<String, List<String>> replicasByAddress;
+        // the owner of every partition if keys are mapped to partitions, so a lookup is a single array access
+        private final PartitionedHash partitioning;
+        private final Node[] partitionOwners;
+
+        private RoutingTable(Node[] nodes, long epoch) {
+            this.epoch = epoch;
+            this.nodes = nodes;
+            this.endRanges = new HashKey[nodes.length];
+            this.nodesByAddress = new HashMap<>();
+            for (int i = 0; i < nodes.length; i++) {
+                endRanges[i] = nodes[i].getEndKey();
+                nodesByAddress.computeIfAbsent(nodes[i].getAddress(), k -> new ArrayList<>()).add(nodes[i]);
+            }
+            if (ConsistentHashing.getHashFunction() instanceof PartitionedHash partitionedHash && nodes.length > 0) {
+                this.partitioning = partitionedHash;
+                this.partitionOwners = new Node[partitionedHash.getPartitions()];
+                for (int i = 0; i < partitionOwners.length; i++) {
+                    partitionOwners[i] = search(partitionedHash.getBoundary(i));
+                }
+            } else {
+                this.partitioning = null;
+                this.partitionOwners = null;
+            }
+            this.replicasByAddress = new HashMap<>();
+            if (nodesByAddress.size() > 2) {
+                for (Map.Entry<String, List<Node>> entry : nodesByAddress.entrySet()) {
+                    replicasByAddress.put(entry.getKey(), findReplicas(entry.getKey(), entry.getValue()));
+                }
+            }
+        }
+
+        /**
+         * Collects the first two distinct servers following the first node of a server. The nodes of a server are
+         * sorted by their end ranges, so every server and client determines the same replicas.
+         */
+        private static List<String> findReplicas(String address, List<Node> serverNodes) {
+            List<String> replicas = new ArrayList<>();
+            Node node = serverNodes.get(0).getNext();
+            while (replicas.size() < 2) {
+                if (!node.getAddress().equals(address) && !replicas.contains(node.getAddress())) {
+                    replicas.add(node.getAddress());
+                }
+                node = node.getNext();
+            }
+            return replicas;
+        }
+
+        /**
+         * Builds the linked nodes of a ring. Every node starts where its predecessor ends, a single node covers the whole ring.
+         */
+        static RoutingTable build(List<Entry> entries, long epoch) {
+            List<Entry> sorted = new ArrayList<>(entries);
+            sorted.sort(Comparator.comparing(Entry::endRange));
+            Node[] nodes = new Node[sorted.size()];
+            for (int i = 0; i < nodes.length; i++) {
+                Entry entry = sorted.get(i);
+                HashKey startRange = sorted.get((i + nodes.length - 1) % nodes.length).endRange();
+                nodes[i] = new Node(entry.IP(), entry.port(), startRange, entry.endRange());
+            }
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i].prev = nodes[(i + nodes.length - 1) % nodes.length];
+                nodes[i].next = nodes[(i + 1) % nodes.length];
+            }
+            return new RoutingTable(nodes, epoch);
+        }
+
+        Node findByHashKey(HashKey key) {
+            if (partitionOwners != null && partitioning == ConsistentHashing.getHashFunction()) {
+                int partition = partitioning.getPartition(key);
+                if (partition >= 0) {
+                    return partitionOwners[partition];
+                }
+            }
+            return search(key);
+        }
+
+        private Node search(HashKey key) {
+            if (nodes.length == 0) {
+                return null;
+            }
+            int low = 0;
+            int high = nodes.length - 1;
+            // the last node whose end range is smaller than the key is followed by the responsible node
+            if (endRanges[high].compareTo(key) < 0) {
+                return nodes[0];
+            }
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (endRanges[middle].compareTo(key) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return nodes[low];
+        }
+
+        Node findByAddress(String IP, String port) {
+            List<Node> serverNodes = nodesByAddress.get(IP + ":" + port);
+            return serverNodes == null ? null : serverNodes.get(0);
+        }
+
+        List<Entry> getEntries() {
+            List<Entry> entries = new ArrayList<>();
+            for (Node node : nodes) {
+                entries.add(new Entry(node.getIP(), node.getPort(), node.getEndKey()));
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * A server of a published ring. Nodes are never changed after their routing table was published.
+     */
     public static class Node {
         private Node prev;
         private Node next;
-        private String IP;
-        private String port;
-        private String startRange;
-        private String endRange;
-
-        public Node(String IP, String port, String endRange) {
-            this.prev = this;
-            this.next = this;
-            this.IP = IP;
-            this.port = port;
-            this.startRange = endRange;
-            this.endRange = endRange;
-        }
+        private final String IP;
+        private final String port;
+        private final HashKey startRange;
+        private final HashKey endRange;
 
-        public Node(Node prev, String IP, String port, String endRange) {
+        private Node(String IP, String port, HashKey startRange, HashKey endRange) {
             this.IP = IP;
             this.port = port;
-
-            this.prev = prev.getPrev();
-            this.next = prev;
-            prev.getPrev().setNext(this);
-            prev.setPrev(this);
-
-
-            this.startRange = prev.getStartRange();
+            this.startRange = startRange;
             this.endRange = endRange;
-            this.getNext().setStartRange(endRange);
         }
 
         public Node getPrev() {
             return prev;
         }
 
-        public void setPrev(Node prev) {
-            this.prev = prev;
-        }
-
         public Node getNext() {
             return next;
         }
 
-        public void setNext(Node next) {
-            this.next = next;
-        }
-
         public String getIP() {
             return IP;
         }
 
-        public void setIP(String IP) {
-            this.IP = IP;
-        }
-
         public String getPort() {
             return port;
         }
 
-        public void setPort(String port) {
-            this.port = port;
+        public String getAddress() {
+            return IP + ":" + port;
         }
 
         public String getStartRange() {
-            return startRange;
+            return startRange.toHex();
         }
 
-        public void setStartRange(String startRange) {
-            this.startRange = startRange;
+        public String getEndRange() {
+            return endRange.toHex();
         }
 
-        public String getEndRange() {
+        public HashKey getStartKey() {
+            return startRange;
+        }
+
+        public HashKey getEndKey() {
             return endRange;
         }
 
-        public void setEndRange(String endRange) {
-            this.endRange = endRange;
+        /**
+         * Checks whether the node is responsible for a hash, i.e. whether the hash lies in (startRange, endRange].
+         *
+         * @param hash The hash of a key.
+         * @return true if the node is responsible for the hash, false otherwise.
+         */
+        public boolean isResponsibleFor(HashKey hash) {
+            return hash.isInRange(startRange, endRange);
         }
 
 
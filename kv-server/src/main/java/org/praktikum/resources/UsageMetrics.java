@@ -1,45 +1,176 @@
 package org.praktikum.resources;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
 
 public class UsageMetrics {
 
-    private int totalOperations;
-    private int operationsLast30s;
-    private final static long TIME_FRAME = 300000L;
+    // the length of the sliding window in seconds, every second has its own slot
+    public final static int WINDOW_SECONDS = 30;
+    // latencies are counted in buckets of powers of two microseconds, the last bucket holds everything above
+    private final static int LATENCY_BUCKETS = 32;
+
+    private final Slot[] slots = new Slot[WINDOW_SECONDS];
+    private final LongAdder totalReads = new LongAdder();
+    private final LongAdder totalWrites = new LongAdder();
+    private final LongSupplier clock;
+
+    /**
+     * The operations of a single second. The second a slot counts is stored with it, so a slot that was last used
+     * a full window ago is recognized as outdated and reused by the first operation of its new second.
+     */
+    private static class Slot {
+        private final AtomicLong second = new AtomicLong(-1);
+        private final LongAdder reads = new LongAdder();
+        private final LongAdder writes = new LongAdder();
+        private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BUCKETS);
+    }
 
     /**
-     * Initializes the usage metrics with initial values and starts the reset thread.
+     * Initializes the usage metrics with an empty window.
      */
     public UsageMetrics() {
-        totalOperations = 0;
-        operationsLast30s = 0;
-        startResetThread();
+        this(System::currentTimeMillis);
+    }
+
+    /**
+     * Initializes the usage metrics with an empty window and a custom clock.
+     *
+     * @param clock Supplies the current time in milliseconds.
+     */
+    public UsageMetrics(LongSupplier clock) {
+        this.clock = clock;
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            slots[i] = new Slot();
+        }
     }
 
     /**
-     * Increments the operation counts.
+     * Counts a read operation.
      */
-    public void addOperation() {
-        totalOperations = totalOperations + 1;
-        operationsLast30s = operationsLast30s + 1;
+    public void addRead() {
+        totalReads.increment();
+        currentSlot().reads.increment();
     }
 
     /**
-     * Starts a thread that resets the count of operations in the last 30 seconds after every TIME_FRAME duration.
+     * Counts a write operation.
      */
-    private void startResetThread() {
-        Thread resetThread = new Thread(() -> {
-            while (true) {
-                try {
-                    Thread.sleep(TIME_FRAME);
-                    operationsLast30s = 0;
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+    public void addWrite() {
+        totalWrites.increment();
+        currentSlot().writes.increment();
+    }
+
+    /**
+     * Records how long a request took to be answered.
+     *
+     * @param nanos The duration of the request in nanoseconds.
+     */
+    public void recordLatency(long nanos) {
+        long micros = Math.max(1, nanos / 1000);
+        int bucket = Math.min(LATENCY_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+        currentSlot().latencies.incrementAndGet(bucket);
+    }
+
+    /**
+     * Returns the slot of the current second. If the slot still holds an older second, the first thread that
+     * notices claims it for the current second and clears it. An operation counted by another thread right
+     * before the clear is lost, which is negligible for a load estimate.
+     *
+     * @return The slot of the current second.
+     */
+    private Slot currentSlot() {
+        long now = currentSecond();
+        Slot slot = slots[(int) (now % WINDOW_SECONDS)];
+        long second = slot.second.get();
+        if (second < now && slot.second.compareAndSet(second, now)) {
+            slot.reads.reset();
+            slot.writes.reset();
+            for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                slot.latencies.set(i, 0);
             }
-        });
-        resetThread.start();
+        }
+        return slot;
+    }
+
+    private long currentSecond() {
+        return clock.getAsLong() / 1000;
+    }
+
+    /**
+     * Counts the operations of the given second, or 0 if its slot was already reused.
+     */
+    private long countAt(long second, boolean reads, boolean writes) {
+        Slot slot = slots[(int) (second % WINDOW_SECONDS)];
+        if (slot.second.get() != second) {
+            return 0;
+        }
+        return (reads ? slot.reads.sum() : 0) + (writes ? slot.writes.sum() : 0);
+    }
+
+    /**
+     * Sums the operations of the last WINDOW_SECONDS seconds, including the current one.
+     */
+    private long windowSum(boolean reads, boolean writes) {
+        long now = currentSecond();
+        long sum = 0;
+        for (long second = now - WINDOW_SECONDS + 1; second <= now; second++) {
+            sum += countAt(second, reads, writes);
+        }
+        return sum;
+    }
+
+    /**
+     * Computes an exponentially weighted moving average of the operations per second over the completed seconds
+     * of the window. The average is derived from the slots whenever it's requested, so no thread has to update it.
+     * As the window only holds a few time constants, the weights of its seconds don't add up to 1; the average is
+     * divided by their sum, so a steady load is reported at its actual rate.
+     *
+     * @param seconds The time constant of the average in seconds.
+     * @return The average operations per second.
+     */
+    public double getRate(int seconds) {
+        double alpha = 1 - Math.exp(-1.0 / seconds);
+        long now = currentSecond();
+        double rate = 0;
+        for (long second = now - WINDOW_SECONDS + 1; second < now; second++) {
+            rate += alpha * (countAt(second, true, true) - rate);
+        }
+        return rate / (1 - Math.pow(1 - alpha, WINDOW_SECONDS - 1));
+    }
+
+    /**
+     * Estimates a percentile of the request latencies in the usage window.
+     *
+     * @param percentile The percentile between 0 and 1, e.g. 0.99.
+     * @return The upper bound of the latency bucket the percentile falls into in microseconds, or 0 without requests.
+     */
+    public long getLatencyPercentile(double percentile) {
+        long now = currentSecond();
+        long[] counts = new long[LATENCY_BUCKETS];
+        long total = 0;
+        for (long second = now - WINDOW_SECONDS + 1; second <= now; second++) {
+            Slot slot = slots[(int) (second % WINDOW_SECONDS)];
+            if (slot.second.get() != second) {
+                continue;
+            }
+            for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                long count = slot.latencies.get(i);
+                counts[i] += count;
+                total += count;
+            }
+        }
+        long rank = (long) Math.ceil(total * percentile);
+        long cumulative = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            cumulative += counts[i];
+            if (cumulative >= rank && cumulative > 0) {
+                return 2L << i;
+            }
+        }
+        return 0;
     }
 
     /**
@@ -54,24 +185,32 @@ public class UsageMetrics {
     /**
      * Provides a string representation of the usage metrics.
      *
-     * @return A string detailing total operations and operations in the last 30 seconds.
+     * @return A string detailing total operations, operations in the last 30 seconds and the recent rates.
      */
     @Override
     public String toString() {
-        return "the total amount of operations on this server is: " + getTotalOperations() + "\n"
-                + "in the last 30 seconds the server recieved: " + getOperationsLast30s() + " operations";
+        return "the total amount of operations on this server is: " + getTotalOperations()
+                + " (" + totalReads.sum() + " reads, " + totalWrites.sum() + " writes)\n"
+                + "in the last 30 seconds the server recieved: " + getOperationsLast30s() + " operations"
+                + " (" + getReadsLast30s() + " reads, " + getWritesLast30s() + " writes)\n"
+                + String.format("operations per second (1s/5s/15s): %.2f / %.2f / %.2f", getRate(1), getRate(5), getRate(15)) + "\n"
+                + "99th percentile of the request latency: " + getLatencyPercentile(0.99) + " microseconds";
     }
 
-    public int getTotalOperations() {
-        return totalOperations;
+    public long getTotalOperations() {
+        return totalReads.sum() + totalWrites.sum();
     }
 
     public int getOperationsLast30s() {
-        return operationsLast30s;
+        return (int) Math.min(Integer.MAX_VALUE, windowSum(true, true));
+    }
+
+    public long getReadsLast30s() {
+        return windowSum(true, false);
     }
 
-    public void resetCount() {
-        operationsLast30s = 0;
+    public long getWritesLast30s() {
+        return windowSum(false, true);
     }
 
 }
@@ -1,6 +1,7 @@
 package org.praktikum.storage;
 
 import org.praktikum.resources.ConsistentHashing;
+import org.praktikum.resources.HashKey;
 import org.praktikum.resources.KVPair;
 import org.praktikum.resources.PutResult;
 import org.praktikum.storage.cache.Cache;
@@ -8,7 +9,8 @@ import org.praktikum.storage.cache.FIFOCache;
 import org.praktikum.storage.cache.LFUCache;
 import org.praktikum.storage.cache.LRUCache;
 
-import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Function;
 
 public class KVStore {
     public Cache getCache() {
@@ -17,6 +19,7 @@ public class KVStore {
 
     private Cache cache;
     private final PersistentStorage persistentStorage;
+    private static final ConsistentHashing hashing = new ConsistentHashing();
 
     private final String displacementStrategy;
     private final String storageLocation;
@@ -82,6 +85,96 @@ public class KVStore {
     }
 
 
+    /**
+     * Inserts or updates several key-value pairs with a single write of the persistent storage.
+     * Cached entries of the written keys are refreshed, other keys are not brought into the cache.
+     *
+     * @param pairs The key-value pairs to be stored.
+     * @return The result of the put operation for each key, in the order of the given pairs.
+     */
+    public Map<String, PutResult> putBatch(List<KVPair<String, String>> pairs) {
+        Map<String, PutResult> result = persistentStorage.putBatch(pairs);
+        for (KVPair<String, String> pair : pairs) {
+            cache.refresh(pair.getKey(), pair.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Retrieves the values of several keys. Cached keys are answered from the cache,
+     * all remaining keys are looked up with a single pass over the persistent storage.
+     *
+     * @param keys The keys for which to retrieve the values.
+     * @return A map from each found key to its value. Keys that are not found are omitted.
+     */
+    public Map<String, String> getBatch(Collection<String> keys) {
+        Map<String, String> result = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String key : keys) {
+            if (cache.contains(key)) {
+                result.put(key, get(key));
+            } else {
+                missing.add(key);
+            }
+        }
+        result.putAll(persistentStorage.getBatch(missing));
+        return result;
+    }
+
+    /**
+     * Removes several keys with a single write of the persistent storage.
+     *
+     * @param keys The keys to be removed.
+     * @return A map from each removed key to its former value. Keys that were not found are omitted.
+     */
+    public Map<String, String> deleteBatch(Collection<String> keys) {
+        Map<String, String> cached = new HashMap<>();
+        for (String key : keys) {
+            String value = cache.evict(key);
+            if (value != null) {
+                cached.put(key, value);
+            }
+        }
+        Map<String, String> result = persistentStorage.deleteBatch(keys);
+        // mirrors Cache.delete: a cached value takes precedence over the persisted one
+        result.putAll(cached);
+        return result;
+    }
+
+    /**
+     * Computes the hash of a node of the Merkle tree over this store's data.
+     *
+     * @param level The level of the node, 0 is the root.
+     * @param index The index of the node within its level.
+     * @return The hash of the node.
+     */
+    public long getMerkleHash(int level, int index) {
+        return persistentStorage.getMerkleTree().getHash(level, index);
+    }
+
+    /**
+     * Fetches all key-value pairs that belong to the given leaves of the Merkle tree.
+     *
+     * @param leafIndices The indices of the leaves.
+     * @return The key-value pairs grouped by their leaf. Leaves without data are omitted.
+     */
+    public Map<Integer, Map<String, String>> getLeafData(Set<Integer> leafIndices) {
+        return persistentStorage.getLeafData(leafIndices);
+    }
+
+    /**
+     * Replaces the content of the given leaves of the Merkle tree with the provided key-value pairs.
+     * Cached entries of all affected keys are dropped, so they are read from the repaired storage next time.
+     *
+     * @param leafIndices The indices of the leaves to replace.
+     * @param leafData    The new key-value pairs of the leaves.
+     */
+    public void replaceLeaves(Set<Integer> leafIndices, Map<String, String> leafData) {
+        for (String key : persistentStorage.replaceLeaves(leafIndices, leafData)) {
+            cache.evict(key);
+        }
+    }
+
     /**
      * Clears all entries from the cache.
      */
@@ -108,12 +201,21 @@ public class KVStore {
      */
     public String getDataBetweenKeyRanges(String startKeyRange, String keyRangeToSplitAt) {
         cache.flushCache();
-        try {
-            ConsistentHashing consistentHashing = new ConsistentHashing();
-            return persistentStorage.getDataBetweenKeyRanges(startKeyRange, keyRangeToSplitAt, consistentHashing);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        return persistentStorage.getDataBetweenKeyRanges(startKeyRange, keyRangeToSplitAt, hashing);
+    }
+
+    /**
+     * Collects the data of all keys that belong to other servers, grouped by these servers. The keys stay in the store
+     * until they are removed, e.g. once their owner acknowledged them.
+     *
+     * @param ownerOf    Maps the hash of a key to the IP:Port address of the server that owns it.
+     * @param ownAddress The IP:Port address of this server.
+     * @return The data in the format key,value;key,value; mapped to the address of its owner.
+     */
+    public Map<String, String> findDataOfOtherServers(Function<HashKey, String> ownerOf, String ownAddress) {
+        // the cache may hold values that aren't persisted yet
+        cache.flushCache();
+        return persistentStorage.findDataOfOtherServers(ownerOf, ownAddress, hashing);
     }
 
     /**
@@ -145,6 +247,15 @@ public class KVStore {
         return filename;
     }
 
+    /**
+     * Returns the size of the persistent storage. Entries that are only in the cache yet aren't counted.
+     *
+     * @return The size of the persistent storage in bytes.
+     */
+    public long getStorageSize() {
+        return persistentStorage.getFileSize();
+    }
+
     /**
      * Deletes all data from the persistent storage.
      *
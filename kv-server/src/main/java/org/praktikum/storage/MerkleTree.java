@@ -0,0 +1,132 @@
+package org.praktikum.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A Merkle tree over the hash range of a store, used to find the parts of a replica that diverged from its primary.
+ * The leaves split the MD5 hash range into 2^DEPTH equally sized slices by the top bits of the key hash.
+ * A leaf digest is the XOR of the 64-bit hashes of all key-value pairs in its slice, so it can be updated
+ * incrementally on every write. Inner nodes are combined on demand from their children.
+ * <p>
+ * Nodes are addressed by their level (0 is the root, DEPTH are the leaves) and their index within the level.
+ */
+public class MerkleTree {
+    public static final int DEPTH = 10;
+    public static final int LEAF_COUNT = 1 << DEPTH;
+
+    private final long[] leaves = new long[LEAF_COUNT];
+    private final MessageDigest md5;
+    private boolean valid = false;
+
+    public MerkleTree() {
+        try {
+            this.md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Adds a key-value pair to the digest of its leaf.
+     *
+     * @param key   The key.
+     * @param value The value.
+     */
+    public synchronized void add(String key, String value) {
+        leaves[leafIndex(key)] ^= hashPair(key, value);
+    }
+
+    /**
+     * Removes a key-value pair from the digest of its leaf. This has to be the pair that was added before.
+     *
+     * @param key   The key.
+     * @param value The value that was stored for the key.
+     */
+    public synchronized void remove(String key, String value) {
+        // XOR is its own inverse
+        add(key, value);
+    }
+
+    /**
+     * Rebuilds all leaves from the complete content of the store.
+     *
+     * @param data All key-value pairs of the store.
+     */
+    public synchronized void rebuild(Map<String, String> data) {
+        Arrays.fill(leaves, 0);
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            add(entry.getKey(), entry.getValue());
+        }
+        valid = true;
+    }
+
+    /**
+     * Marks the tree as outdated after a bulk change of the store that wasn't tracked pair by pair.
+     */
+    public synchronized void invalidate() {
+        valid = false;
+    }
+
+    public synchronized boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Computes the hash of a node.
+     *
+     * @param level The level of the node, 0 is the root.
+     * @param index The index of the node within its level.
+     * @return The hash of the node, 0 if the subtree is empty.
+     */
+    public synchronized long getHash(int level, int index) {
+        if (level >= DEPTH) {
+            return leaves[index];
+        }
+        long left = getHash(level + 1, 2 * index);
+        long right = getHash(level + 1, 2 * index + 1);
+        if (left == 0 && right == 0) {
+            return 0;
+        }
+        return mix(left ^ Long.rotateLeft(right, 29) ^ 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * Determines the leaf a key belongs to by the top DEPTH bits of its MD5 hash.
+     *
+     * @param key The key.
+     * @return The index of the leaf.
+     */
+    public synchronized int leafIndex(String key) {
+        byte[] digest = md5.digest(key.getBytes(StandardCharsets.UTF_8));
+        int top = ((digest[0] & 0xFF) << 8) | (digest[1] & 0xFF);
+        return top >>> (16 - DEPTH);
+    }
+
+    /**
+     * Hashes a key-value pair with 64-bit FNV-1a followed by a finalizer, so single bit changes spread over the digest.
+     */
+    private static long hashPair(String key, String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ ',') * 0x100000001b3L;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -2,6 +2,7 @@ package org.praktikum.storage;
 
 import org.praktikum.KVServer;
 import org.praktikum.resources.ConsistentHashing;
+import org.praktikum.resources.HashKey;
 import org.praktikum.resources.KVPair;
 import org.praktikum.resources.PutResult;
 
@@ -10,11 +11,13 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.function.Function;
 
 public class PersistentStorage {
 
     private final String storageLocation;
     private final String filename;
+    private final MerkleTree merkleTree = new MerkleTree();
 
     public PersistentStorage(String storageLocation, String filename) {
         this.storageLocation = storageLocation;
@@ -67,6 +70,7 @@ public class PersistentStorage {
     public PutResult put(String key, String value) {
         try {
             boolean flag = false;
+            String oldValue = null;
             Scanner input = new Scanner(new File("/" + storageLocation + "/" + filename));
             input.useDelimiter(";");
             LinkedList<KVPair<String, String>> linkedList = new LinkedList<>();
@@ -80,6 +84,9 @@ public class PersistentStorage {
                     KVPair<String, String> kvPair = new KVPair<>(keyOutput, valueOutput);
 
                     if (kvPair.getKey().equals(key)) {
+                        if (!flag) {
+                            oldValue = valueOutput;
+                        }
                         kvPair.setValue(value);
                         flag = true;
                     }
@@ -95,10 +102,13 @@ public class PersistentStorage {
                         Paths.get("/" + storageLocation + "/" + filename),
                         outPutString.getBytes(),
                         StandardOpenOption.APPEND);
+                merkleTree.add(key, value);
                 return PutResult.SUCCESS;
             }
             //if the key is in the file we need to update the value
             writeOutKVPairs(linkedList);
+            merkleTree.remove(key, oldValue);
+            merkleTree.add(key, value);
             return PutResult.UPDATE;
 
         } catch (FileNotFoundException fileNotFoundException) {
@@ -148,6 +158,9 @@ public class PersistentStorage {
             }
             //if the key is in the file we need to update the value
             writeOutKVPairs(linkedList);
+            if (outPutKvPair != null) {
+                merkleTree.remove(outPutKvPair.getKey(), outPutKvPair.getValue());
+            }
 
             return outPutKvPair;
         } catch (FileNotFoundException fileNotFoundException) {
@@ -156,6 +169,193 @@ public class PersistentStorage {
         }
     }
 
+    /**
+     * Fetches the values of several keys with a single pass over the storage file.
+     *
+     * @param keys The keys whose associated values are to be fetched.
+     * @return A map from each found key to its value. Keys that are not present are omitted.
+     */
+    public Map<String, String> getBatch(Collection<String> keys) {
+        Set<String> wanted = new HashSet<>(keys);
+        Map<String, String> result = new HashMap<>();
+        if (wanted.isEmpty()) {
+            return result;
+        }
+        try {
+            Scanner input = new Scanner(new File("/" + storageLocation + "/" + filename));
+            input.useDelimiter(";");
+            while (input.hasNext() && result.size() < wanted.size()) {
+                String[] output = input.next().split(",");
+                try {
+                    if (wanted.contains(output[0])) {
+                        result.put(output[0], output[1]);
+                    }
+                } catch (ArrayIndexOutOfBoundsException indexOutOfBoundsException) {
+                    //ignore any incorrect input
+                }
+            }
+            input.close();
+        } catch (FileNotFoundException fileNotFoundException) {
+            KVServer.log.warning("Error while trying to open non-existent storage file");
+        }
+        return result;
+    }
+
+    /**
+     * Stores or updates several key-value pairs with a single read and a single write of the storage file.
+     *
+     * @param pairs The key-value pairs to be stored, in the order they should be applied.
+     * @return A map from each key to the result of its put operation, in the order of the given pairs.
+     */
+    public Map<String, PutResult> putBatch(List<KVPair<String, String>> pairs) {
+        Map<String, PutResult> result = new LinkedHashMap<>();
+        try {
+            LinkedHashMap<String, String> data = readAllPairs();
+            for (KVPair<String, String> pair : pairs) {
+                PutResult status = data.containsKey(pair.getKey()) ? PutResult.UPDATE : PutResult.SUCCESS;
+                String oldValue = data.put(pair.getKey(), pair.getValue());
+                if (oldValue != null) {
+                    merkleTree.remove(pair.getKey(), oldValue);
+                }
+                merkleTree.add(pair.getKey(), pair.getValue());
+                // a key that appears twice in one batch was created by its first occurrence
+                result.putIfAbsent(pair.getKey(), status);
+            }
+            writeOutKVPairs(data);
+        } catch (FileNotFoundException fileNotFoundException) {
+            KVServer.log.warning("Error while trying to open non-existent storage file");
+            for (KVPair<String, String> pair : pairs) {
+                result.put(pair.getKey(), PutResult.ERROR);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Deletes several keys with a single read and a single write of the storage file.
+     *
+     * @param keys The keys to be deleted.
+     * @return A map from each deleted key to its former value. Keys that were not present are omitted.
+     */
+    public Map<String, String> deleteBatch(Collection<String> keys) {
+        Map<String, String> result = new HashMap<>();
+        try {
+            LinkedHashMap<String, String> data = readAllPairs();
+            for (String key : keys) {
+                String value = data.remove(key);
+                if (value != null) {
+                    result.put(key, value);
+                    merkleTree.remove(key, value);
+                }
+            }
+            if (!result.isEmpty()) {
+                writeOutKVPairs(data);
+            }
+        } catch (FileNotFoundException fileNotFoundException) {
+            KVServer.log.warning("Error while trying to open non-existent storage file");
+        }
+        return result;
+    }
+
+    /**
+     * Reads every key-value pair of the storage file, preserving the order in which they are stored.
+     *
+     * @return An ordered map of all stored key-value pairs.
+     * @throws FileNotFoundException If the storage file does not exist.
+     */
+    private LinkedHashMap<String, String> readAllPairs() throws FileNotFoundException {
+        LinkedHashMap<String, String> data = new LinkedHashMap<>();
+        Scanner input = new Scanner(new File("/" + storageLocation + "/" + filename));
+        input.useDelimiter(";");
+        while (input.hasNext()) {
+            String[] output = input.next().split(",");
+            try {
+                data.put(output[0], output[1]);
+            } catch (ArrayIndexOutOfBoundsException indexOutOfBoundsException) {
+                //ignore any incorrect input
+            }
+        }
+        input.close();
+        return data;
+    }
+
+    private void writeOutKVPairs(Map<String, String> data) throws FileNotFoundException {
+        PrintWriter writer = new PrintWriter("/" + storageLocation + "/" + filename);
+        StringBuilder stringBuilder = new StringBuilder();
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            stringBuilder.append(entry.getKey()).append(",").append(entry.getValue()).append(";");
+        }
+        writer.write(stringBuilder.toString());
+        writer.flush();
+        writer.close();
+    }
+
+    /**
+     * Returns the Merkle tree of the stored data, rebuilding it first if a bulk change made it outdated.
+     *
+     * @return The up-to-date Merkle tree.
+     */
+    public MerkleTree getMerkleTree() {
+        if (!merkleTree.isValid()) {
+            try {
+                merkleTree.rebuild(readAllPairs());
+            } catch (FileNotFoundException fileNotFoundException) {
+                KVServer.log.warning("Error while trying to open non-existent storage file");
+            }
+        }
+        return merkleTree;
+    }
+
+    /**
+     * Fetches all key-value pairs that belong to the given leaves of the Merkle tree with a single pass over the storage file.
+     *
+     * @param leafIndices The indices of the leaves.
+     * @return The key-value pairs grouped by their leaf. Leaves without data are omitted.
+     */
+    public Map<Integer, Map<String, String>> getLeafData(Set<Integer> leafIndices) {
+        Map<Integer, Map<String, String>> result = new HashMap<>();
+        try {
+            for (Map.Entry<String, String> entry : readAllPairs().entrySet()) {
+                int leafIndex = merkleTree.leafIndex(entry.getKey());
+                if (leafIndices.contains(leafIndex)) {
+                    result.computeIfAbsent(leafIndex, k -> new LinkedHashMap<>()).put(entry.getKey(), entry.getValue());
+                }
+            }
+        } catch (FileNotFoundException fileNotFoundException) {
+            KVServer.log.warning("Error while trying to open non-existent storage file");
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the content of the given leaves of the Merkle tree with the provided key-value pairs,
+     * i.e. every stored key of those leaves is removed and the provided pairs are stored.
+     *
+     * @param leafIndices The indices of the leaves to replace.
+     * @param leafData    The new key-value pairs of the leaves.
+     * @return The keys that were removed or written.
+     */
+    public Set<String> replaceLeaves(Set<Integer> leafIndices, Map<String, String> leafData) {
+        Set<String> affectedKeys = new HashSet<>(leafData.keySet());
+        try {
+            LinkedHashMap<String, String> data = readAllPairs();
+            Iterator<String> keys = data.keySet().iterator();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (leafIndices.contains(merkleTree.leafIndex(key))) {
+                    affectedKeys.add(key);
+                    keys.remove();
+                }
+            }
+            data.putAll(leafData);
+            writeOutKVPairs(data);
+            merkleTree.rebuild(data);
+        } catch (FileNotFoundException fileNotFoundException) {
+            KVServer.log.warning("Error while trying to open non-existent storage file");
+        }
+        return affectedKeys;
+    }
+
     /**
      * Initializes the persistent storage. This method ensures that the storage file exists.
      * If the file doesn't exist, it will create one.
@@ -224,6 +424,7 @@ public class PersistentStorage {
             FileWriter fw = new FileWriter("/" + storageLocation + "/" + filename, append);
             fw.write(data);
             fw.close();
+            merkleTree.invalidate();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -240,6 +441,8 @@ public class PersistentStorage {
     public String getDataBetweenKeyRanges(String startKeyRange, String keyRangeToSplitAt, ConsistentHashing consistentHashing) {
         StringBuilder dataToStay = new StringBuilder();
         StringBuilder dataToTransfer = new StringBuilder();
+        HashKey start = HashKey.fromHex(startKeyRange);
+        HashKey end = HashKey.fromHex(keyRangeToSplitAt);
         Scanner input;
         try {
             input = new Scanner(new File("/" + storageLocation + "/" + filename));
@@ -247,8 +450,7 @@ public class PersistentStorage {
             while (input.hasNext()) {
                 try {
                     String[] output = input.next().split(",");
-                    String key = consistentHashing.getMD5Hash(output[0]);
-                    if (checkIfInRange(key, startKeyRange, keyRangeToSplitAt)) {
+                    if (consistentHashing.getHashKey(output[0]).isInRange(start, end)) {
                         String input1 = output[0].replaceAll("\r\n", "");
                         String input2 = output[1].replaceAll("\r\n", "");
 
@@ -278,30 +480,58 @@ public class PersistentStorage {
         }
     }
 
+
     /**
-     * @param hash
-     * @param startRange
-     * @param endRange
-     * @return
+     * Splits the data by the server that owns each key, without changing the storage.
+     * This is needed when the cluster switches its hash function, since nearly every key moves to another server then.
+     *
+     * @param ownerOf           Maps the hash of a key to the IP:Port address of the server that owns it.
+     * @param ownAddress        The IP:Port address of this server.
+     * @param consistentHashing An instance of the ConsistentHashing class to hash the keys.
+     * @return The data that has to be transferred, mapped to the address of its owner.
      */
-    private boolean checkIfInRange(String hash, String startRange, String endRange) {
-        if (startRange.compareTo(hash) < 0 && endRange.compareTo(hash) >= 0) {
-            return true;
-        } else if (startRange.compareTo(endRange) >= 0) {
-            if (startRange.compareTo(hash) < 0 && endRange.compareTo(hash) <= 0) {
-                return true;
-            } else return startRange.compareTo(hash) > 0 && endRange.compareTo(hash) >= 0;
+    public Map<String, String> findDataOfOtherServers(Function<HashKey, String> ownerOf, String ownAddress, ConsistentHashing consistentHashing) {
+        Map<String, StringBuilder> dataToTransfer = new LinkedHashMap<>();
+        Scanner input;
+        try {
+            input = new Scanner(new File("/" + storageLocation + "/" + filename));
+            input.useDelimiter(";");
+            while (input.hasNext()) {
+                try {
+                    String[] output = input.next().split(",");
+                    String input1 = output[0].replaceAll("\r\n", "");
+                    String input2 = output[1].replaceAll("\r\n", "");
+                    String owner = ownerOf.apply(consistentHashing.getHashKey(input1));
+                    if (owner == null || owner.equals(ownAddress)) {
+                        continue;
+                    }
+                    StringBuilder builder = dataToTransfer.computeIfAbsent(owner, k -> new StringBuilder());
+                    builder.append(input1);
+                    builder.append(",");
+                    builder.append(input2);
+                    builder.append(";");
+                } catch (NullPointerException | ArrayIndexOutOfBoundsException e) {
+                    //skip over invalid/malformed data
+                }
+            }
+            input.close();
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException(e);
         }
-        return false;
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<String, StringBuilder> entry : dataToTransfer.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toString());
+        }
+        return result;
     }
 
-
     /**
      * Clears the storage file, removing all data.
      */
     public void clearFile() {
         try {
             new FileWriter("/" + storageLocation + "/" + filename, false).close();
+            merkleTree.rebuild(Map.of());
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         } catch (IOException e) {
@@ -309,6 +539,15 @@ public class PersistentStorage {
         }
     }
 
+    /**
+     * Returns the size of the storage file.
+     *
+     * @return The size of the storage file in bytes, or 0 if it doesn't exist.
+     */
+    public long getFileSize() {
+        return new File("/" + storageLocation + "/" + filename).length();
+    }
+
     /**
      * Deletes the storage file from the system.
      *
@@ -317,6 +556,7 @@ public class PersistentStorage {
     public boolean deleteFile() {
         try {
             File f = new File("/" + storageLocation + "/" + filename);
+            merkleTree.invalidate();
             return f.delete();
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -47,6 +47,37 @@ public abstract class Cache {
         } else return persistentValue;
     }
 
+    /**
+     * Checks whether the provided key is currently held in the cache.
+     *
+     * @param key The key to look up.
+     * @return true if the key is cached, false otherwise.
+     */
+    public boolean contains(String key) {
+        return hashMap.containsKey(key);
+    }
+
+    /**
+     * Replaces the cached value of a key that was written to the persistent storage directly.
+     * Keys that are not cached are left alone, so bulk writes do not displace the working set.
+     *
+     * @param key   The key that was written.
+     * @param value The new value of the key.
+     */
+    public void refresh(String key, String value) {
+        hashMap.replace(key, value);
+    }
+
+    /**
+     * Removes a key from the cache without touching the persistent storage.
+     *
+     * @param key The key to remove.
+     * @return The cached value of the key, or null if it wasn't cached.
+     */
+    public String evict(String key) {
+        return hashMap.remove(key);
+    }
+
     /**
      * Flushes the cache, storing all key-value pairs into the persistent storage.
      */
@@ -28,10 +28,25 @@ public class LRUCache extends Cache {
      * @param value The value of the accessed item.
      */
     private void addActivity(String key, String value) {
-        activityLog.remove(key, value);
+        // removed by key, so an updated value moves to the end of the log as well
+        activityLog.remove(key);
         activityLog.put(key, value);
     }
 
+    /**
+     * Replaces the cached value of a key that was written to the persistent storage directly
+     * and logs the write as the most recent access of the key.
+     *
+     * @param key   The key that was written.
+     * @param value The new value of the key.
+     */
+    @Override
+    public void refresh(String key, String value) {
+        if (hashMap.replace(key, value) != null) {
+            addActivity(key, value);
+        }
+    }
+
     /**
      * Retrieves the value associated with the provided key from the cache or persistent storage.
      * If the key is found in the cache, it updates the LRU log.
@@ -1,17 +1,38 @@
 package org.praktikum;
 
 import org.junit.jupiter.api.Test;
+import org.praktikum.balancing.LoadSummary;
+import org.praktikum.communication.MessageHandler;
 import org.praktikum.resources.Bucket;
 import org.praktikum.resources.ConsistentHashing;
 import org.praktikum.resources.FrequencyTable;
+import org.praktikum.resources.HashFunction;
+import org.praktikum.resources.HashKey;
+import org.praktikum.resources.PartitionedHash;
+import org.praktikum.resources.QuantileSummary;
+import org.praktikum.resources.RingList;
+import org.praktikum.resources.UsageMetrics;
+import org.praktikum.replication.HintStore;
+import org.praktikum.replication.OperationLog;
+import org.praktikum.replication.ReplicationOp;
+import org.praktikum.storage.MerkleTree;
 
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class Tests {
 
@@ -86,9 +107,9 @@ public class Tests {
         FrequencyTable frequencyTable = new FrequencyTable(3,20);
         frequencyTable.createBuckets("10000000000000000000000000000000","40000000000000000000000000000000");
         List<Bucket> bucketList = frequencyTable.getBuckets();
-        bucketList.get(0).getBucketList().add("bucket 1");
-        bucketList.get(1).getBucketList().add("bucket 2");
-        bucketList.get(2).getBucketList().add("bucket 3");
+        bucketList.get(0).increment();
+        bucketList.get(1).increment();
+        bucketList.get(2).increment();
         frequencyTable.setTotalBucketSize(3);
         String[] calculatedRanges = frequencyTable.calculateOffloadKeyRange(true);
         assertEquals("10000000000000000000000000000000", calculatedRanges[0]);
@@ -106,9 +127,9 @@ public class Tests {
         frequencyTable.createBuckets("10000000000000000000000000000000","40000000000000000000000000000000");
         List<Bucket> bucketList = frequencyTable.getBuckets();
         frequencyTable.setTotalBucketSize(3);
-        bucketList.get(0).getBucketList().add("bucket 1");
-        bucketList.get(1).getBucketList().add("bucket 2");
-        bucketList.get(2).getBucketList().add("bucket 3");
+        bucketList.get(0).increment();
+        bucketList.get(1).increment();
+        bucketList.get(2).increment();
         String[] calculatedRanges = frequencyTable.calculateOffloadKeyRange(false);
         assertEquals("30000000000000000000000000000000", calculatedRanges[0]);
         assertEquals("40000000000000000000000000000000", calculatedRanges[1]);
@@ -116,5 +137,377 @@ public class Tests {
         frequencyTable.calculateOffloadKeyRange(false);
         frequencyTable.calculateOffloadKeyRange(false);
     }
-}
 
+    @Test
+    public void testOperationLogTruncation() {
+        OperationLog operationLog = new OperationLog(3, 1000);
+        for (int i = 1; i <= 5; i++) {
+            operationLog.append(new ReplicationOp(i, ReplicationOp.PUT, "key" + i, "value" + i));
+        }
+        assertEquals(5, operationLog.getLastSequenceNumber());
+        assertEquals(2, operationLog.since(3).size());
+        assertEquals(4, operationLog.since(3).get(0).getSequenceNumber());
+        assertEquals(0, operationLog.since(5).size());
+        // operations 1 and 2 were truncated, so a replica at sequence number 1 needs a snapshot
+        assertNull(operationLog.since(1));
+    }
+
+    @Test
+    public void testMerkleTreeIncrementalUpdates() {
+        MerkleTree incremental = new MerkleTree();
+        incremental.rebuild(Map.of());
+        incremental.add("a", "1");
+        incremental.add("b", "2");
+        incremental.remove("a", "1");
+        incremental.add("a", "3");
+
+        MerkleTree rebuilt = new MerkleTree();
+        rebuilt.rebuild(Map.of("a", "3", "b", "2"));
+        assertEquals(rebuilt.getHash(0, 0), incremental.getHash(0, 0));
+
+        int leaf = incremental.leafIndex("b");
+        incremental.remove("b", "2");
+        assertNotEquals(rebuilt.getHash(0, 0), incremental.getHash(0, 0));
+        assertNotEquals(rebuilt.getHash(MerkleTree.DEPTH, leaf), incremental.getHash(MerkleTree.DEPTH, leaf));
+    }
+
+    @Test
+    public void testHintStoreOverflow() throws IOException {
+        String directory = Files.createTempDirectory("hints").toString();
+        HintStore hintStore = new HintStore(directory, "store", 40);
+        hintStore.append("127.0.0.1:5000", 1, 1, "P,a,1;");
+        hintStore.append("127.0.0.1:5000", 2, 1, "D,a;");
+        assertTrue(hintStore.hasHints("127.0.0.1:5000"));
+        assertEquals(List.of("1 1 P,a,1;", "2 1 D,a;"), hintStore.load("127.0.0.1:5000"));
+
+        // the third frame exceeds the limit, so the hints are discarded but the replica is still marked as behind
+        hintStore.append("127.0.0.1:5000", 3, 1, "P,bbbbbbbbbbbbbbbb,2;");
+        assertTrue(hintStore.hasHints("127.0.0.1:5000"));
+        assertEquals(0, hintStore.load("127.0.0.1:5000").size());
+
+        hintStore.clear("127.0.0.1:5000");
+        assertFalse(hintStore.hasHints("127.0.0.1:5000"));
+
+        // the limit is in bytes, this frame has 22 chars but 47 bytes in UTF-8
+        hintStore.append("127.0.0.1:5000", 4, 1, "P,\u00e4,\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac\u20ac;");
+        assertEquals(0, hintStore.load("127.0.0.1:5000").size());
+    }
+
+    @Test
+    public void testHashKeyOrderingAndRanges() throws NoSuchAlgorithmException {
+        HashKey low = HashKey.fromHex("7FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF");
+        HashKey high = HashKey.fromHex("80000000000000000000000000000000");
+        // the most significant bit must not make the key negative
+        assertTrue(low.compareTo(high) < 0);
+        assertEquals("80000000000000000000000000000000", high.toHex());
+        assertEquals(new ConsistentHashing().getMD5Hash("key"), new ConsistentHashing().getHashKey("key").toHex());
+
+        HashKey start = HashKey.fromHex("F0000000000000000000000000000000");
+        HashKey end = HashKey.fromHex("10000000000000000000000000000000");
+        assertTrue(HashKey.MAX.isInRange(start, end));
+        assertTrue(HashKey.MIN.isInRange(start, end));
+        assertTrue(end.isInRange(start, end));
+        assertFalse(start.isInRange(start, end));
+        assertFalse(low.isInRange(start, end));
+        assertTrue(low.isInRange(end, start));
+        // equal bounds cover the whole ring, as for a single server
+        assertTrue(low.isInRange(start, start));
+    }
+
+    @Test
+    public void testHashingMatchesDigest() throws NoSuchAlgorithmException {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        // ASCII keys, keys longer than the reused buffer and non-ASCII keys take different paths
+        for (String key : List.of("key", "x".repeat(1000), "schl\u00FCssel", "")) {
+            HashKey expected = HashKey.fromDigest(md5.digest(key.getBytes(StandardCharsets.UTF_8)));
+            assertEquals(expected, hashing.getHashKey(key));
+        }
+        HashKey[] hashes = hashing.getHashKeys(List.of("a", "b"));
+        assertEquals(hashing.getHashKey("a"), hashes[0]);
+        assertEquals(hashing.getHashKey("b"), hashes[1]);
+    }
+
+    @Test
+    public void testRingListRouting() {
+        RingList ringList = new RingList();
+        // the metadata isn't sorted, the routing table sorts it by end range
+        ringList.parseAndUpdateMetaData("40000000000000000000000000000000,80000000000000000000000000000000,127.0.0.1:5001;"
+                + "80000000000000000000000000000000,40000000000000000000000000000000,127.0.0.1:5000;");
+        assertEquals(2, ringList.getSize());
+        assertEquals("5000", ringList.findByHashKey(HashKey.fromHex("40000000000000000000000000000000")).getPort());
+        assertEquals("5001", ringList.findByHashKey(HashKey.fromHex("40000000000000000000000000000001")).getPort());
+        assertEquals("5001", ringList.findByHashKey(HashKey.fromHex("80000000000000000000000000000000")).getPort());
+        // keys behind the last end range wrap around to the first server
+        assertEquals("5000", ringList.findByHashKey(HashKey.MAX).getPort());
+        assertEquals("5000", ringList.findByHashKey(HashKey.MIN).getPort());
+
+        RingList.Node node = ringList.findByIPandPort("127.0.0.1", "5001");
+        assertEquals("5000", node.getNext().getPort());
+        assertEquals("40000000000000000000000000000000", node.getStartRange());
+
+        ringList.remove("127.0.0.1", "5000");
+        assertEquals(1, ringList.getSize());
+        assertNull(ringList.findByIPandPort("127.0.0.1", "5000"));
+        assertTrue(ringList.findByHashKey(HashKey.MIN).isResponsibleFor(HashKey.MIN));
+    }
+
+    @Test
+    public void testVirtualNodeReplicas() {
+        RingList ringList = new RingList();
+        // 5000 owns two virtual nodes, its second node is followed by 5001 and its own first node
+        ringList.parseAndUpdateMetaData("C0000000000000000000000000000000,20000000000000000000000000000000,127.0.0.1:5000;"
+                + "20000000000000000000000000000000,40000000000000000000000000000000,127.0.0.1:5001;"
+                + "40000000000000000000000000000000,60000000000000000000000000000000,127.0.0.1:5002;"
+                + "60000000000000000000000000000000,A0000000000000000000000000000000,127.0.0.1:5000;"
+                + "A0000000000000000000000000000000,C0000000000000000000000000000000,127.0.0.1:5001;");
+        assertEquals(5, ringList.getSize());
+        assertEquals(3, ringList.getServerCount());
+        assertEquals(2, ringList.findAllByIPandPort("127.0.0.1", "5000").size());
+        assertEquals(List.of("127.0.0.1:5001", "127.0.0.1:5002"), ringList.getReplicaAddresses("127.0.0.1", "5000"));
+        // replicas are distinct servers, so the own node between 5001 and 5002 is skipped
+        assertEquals(List.of("127.0.0.1:5002", "127.0.0.1:5000"), ringList.getReplicaAddresses("127.0.0.1", "5001"));
+        assertTrue(ringList.getReplicatedServers("127.0.0.1", "5002").containsAll(List.of("127.0.0.1:5000", "127.0.0.1:5001")));
+
+        RingList.Node node = ringList.findByHashKey(HashKey.fromHex("B0000000000000000000000000000000"));
+        assertEquals("127.0.0.1:5001", node.getAddress());
+        assertEquals("127.0.0.1:5000", ringList.findSuccessorServer(node).getAddress());
+
+        // the second node of 5000 is followed by 5003, which still doesn't make it a third replica
+        ringList.parseAndUpdateMetaData("C0000000000000000000000000000000,20000000000000000000000000000000,127.0.0.1:5000;"
+                + "20000000000000000000000000000000,40000000000000000000000000000000,127.0.0.1:5001;"
+                + "40000000000000000000000000000000,60000000000000000000000000000000,127.0.0.1:5002;"
+                + "60000000000000000000000000000000,80000000000000000000000000000000,127.0.0.1:5000;"
+                + "80000000000000000000000000000000,A0000000000000000000000000000000,127.0.0.1:5003;"
+                + "A0000000000000000000000000000000,C0000000000000000000000000000000,127.0.0.1:5001;");
+        assertEquals(List.of("127.0.0.1:5001", "127.0.0.1:5002"), ringList.getReplicaAddresses("127.0.0.1", "5000"));
+        assertFalse(ringList.getReplicatedServers("127.0.0.1", "5003").contains("127.0.0.1:5000"));
+    }
+
+    @Test
+    public void testMurmur3Hash() {
+        HashFunction murmur3 = HashFunction.forName("murmur3");
+        // reference values of MurmurHash3 x64 128 with seed 0, covering a short tail and full blocks with a long tail
+        byte[] hell = "hell".getBytes(StandardCharsets.UTF_8);
+        assertEquals(new HashKey(0x629942693e10f867L, 0x92db0b82baeb5347L), murmur3.hash(hell, 0, hell.length));
+        byte[] fox = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+        assertEquals(new HashKey(0xe34bbc7bbc071b6cL, 0x7a433ca9c49a9347L), murmur3.hash(fox, 0, fox.length));
+        // hashing a part of a buffer gives the same hash as hashing the part alone
+        byte[] request = "put hell 1".getBytes(StandardCharsets.UTF_8);
+        assertEquals(murmur3.hash(hell, 0, hell.length), murmur3.hash(request, 4, 4));
+        assertEquals(HashFunction.MD5, HashFunction.forName("MD5").getName());
+        assertNull(HashFunction.forName("sha1"));
+    }
+
+    @Test
+    public void testPartitionedRouting() {
+        PartitionedHash partitioned = (PartitionedHash) HashFunction.forName("murmur3/4");
+        assertEquals("murmur3/4", partitioned.getName());
+        assertNull(HashFunction.forName("murmur3/3"));
+        // every key is placed at the end of its partition
+        for (int i = 0; i < 100; i++) {
+            byte[] key = ("key" + i).getBytes(StandardCharsets.UTF_8);
+            HashKey hash = partitioned.hash(key, 0, key.length);
+            int partition = partitioned.getPartition(hash);
+            assertTrue(partition >= 0 && partition < 4);
+            assertEquals(partitioned.getBoundary(partition), hash);
+        }
+        assertEquals("40000000000000000000000000000000", partitioned.getBoundary(1).toHex());
+        assertEquals(-1, partitioned.getPartition(HashKey.MAX));
+
+        HashFunction previous = ConsistentHashing.getHashFunction();
+        ConsistentHashing.setHashFunction(partitioned);
+        try {
+            RingList ringList = new RingList();
+            // 5000 owns the partitions 0 and 1, 5001 the partitions 2 and 3
+            ringList.parseAndUpdateMetaData("C0000000000000000000000000000000,00000000000000000000000000000000,127.0.0.1:5000;"
+                    + "00000000000000000000000000000000,40000000000000000000000000000000,127.0.0.1:5000;"
+                    + "40000000000000000000000000000000,80000000000000000000000000000000,127.0.0.1:5001;"
+                    + "80000000000000000000000000000000,C0000000000000000000000000000000,127.0.0.1:5001;");
+            assertEquals("5000", ringList.findByHashKey(partitioned.getBoundary(0)).getPort());
+            assertEquals("5000", ringList.findByHashKey(partitioned.getBoundary(1)).getPort());
+            assertEquals("5001", ringList.findByHashKey(partitioned.getBoundary(2)).getPort());
+            assertEquals("5001", ringList.findByHashKey(partitioned.getBoundary(3)).getPort());
+            // positions that aren't partition boundaries are still found on the ring
+            assertEquals("5001", ringList.findByHashKey(HashKey.fromHex("50000000000000000000000000000000")).getPort());
+        } finally {
+            ConsistentHashing.setHashFunction(previous);
+        }
+    }
+
+    @Test
+    public void testNotResponsibleRedirect() {
+        RingList ringList = new RingList();
+        ringList.parseAndUpdateMetaData("80000000000000000000000000000000,40000000000000000000000000000000,127.0.0.1:5000;"
+                + "40000000000000000000000000000000,80000000000000000000000000000000,127.0.0.1:5001;", 7);
+        HashKey hash = HashKey.fromHex("60000000000000000000000000000000");
+        assertEquals("server_not_responsible 127.0.0.1:5001 7", ClientConnection.createNotResponsibleResponse(ringList, "127.0.0.1", 5000, hash));
+        // if the ring names this server itself, it must not redirect the client to itself
+        assertEquals("server_not_responsible", ClientConnection.createNotResponsibleResponse(ringList, "127.0.0.1", 5001, hash));
+    }
+
+    @Test
+    public void testMetaDataDelta() {
+        RingList ringList = new RingList();
+        ringList.parseAndUpdateMetaData("80000000000000000000000000000000,80000000000000000000000000000000,127.0.0.1:5000;", 3);
+        assertEquals(3, ringList.getEpoch());
+        // a delta based on a different epoch is rejected and leaves the ring untouched
+        assertFalse(ringList.applyMetaDataDelta(2, 4, "+40000000000000000000000000000000,127.0.0.1:5001;"));
+        assertEquals(1, ringList.getSize());
+
+        assertTrue(ringList.applyMetaDataDelta(3, 4, "+40000000000000000000000000000000,127.0.0.1:5001;"));
+        assertEquals(4, ringList.getEpoch());
+        assertEquals("5001", ringList.findByHashKey(HashKey.fromHex("30000000000000000000000000000000")).getPort());
+        assertEquals("40000000000000000000000000000000", ringList.findByIPandPort("127.0.0.1", "5000").getStartRange());
+
+        assertTrue(ringList.applyMetaDataDelta(4, 5, "-80000000000000000000000000000000,127.0.0.1:5000;"));
+        assertEquals(1, ringList.getSize());
+        assertNull(ringList.findByIPandPort("127.0.0.1", "5000"));
+    }
+
+    @Test
+    public void testSplitPairs() {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            data.append("key").append(i).append(",value ").append(i).append(";");
+        }
+        List<String> chunks = MessageHandler.splitPairs(data.toString(), 1000);
+        assertTrue(chunks.size() > 1);
+        for (String chunk : chunks) {
+            // every chunk ends after a complete pair and stays below the limit
+            assertTrue(chunk.getBytes(StandardCharsets.UTF_8).length <= 1000);
+            assertTrue(chunk.endsWith(";"));
+        }
+        assertEquals(data.toString(), String.join("", chunks));
+        assertTrue(MessageHandler.splitPairs("", 1000).isEmpty());
+    }
+
+    @Test
+    public void testUsageMetricsWindow() {
+        AtomicLong time = new AtomicLong(1_000_000L);
+        UsageMetrics metrics = new UsageMetrics(time::get);
+        metrics.addRead();
+        metrics.addWrite();
+        metrics.addWrite();
+        time.addAndGet(10_000L);
+        metrics.addRead();
+        assertEquals(4, metrics.getOperationsLast30s());
+        assertEquals(2, metrics.getReadsLast30s());
+        assertEquals(2, metrics.getWritesLast30s());
+
+        // the operations of the first second drop out of the window without being reset
+        time.addAndGet(25_000L);
+        assertEquals(1, metrics.getOperationsLast30s());
+        time.addAndGet(10_000L);
+        assertEquals(0, metrics.getOperationsLast30s());
+        assertEquals(4, metrics.getTotalOperations());
+    }
+
+    @Test
+    public void testUsageMetricsSteadyRate() {
+        AtomicLong time = new AtomicLong(1_000_000L);
+        UsageMetrics metrics = new UsageMetrics(time::get);
+        for (int second = 0; second < UsageMetrics.WINDOW_SECONDS; second++) {
+            for (int i = 0; i < 20; i++) {
+                metrics.addRead();
+            }
+            time.addAndGet(1000L);
+        }
+        // every completed second of the window had 20 operations
+        assertEquals(20, metrics.getRate(1), 1e-9);
+        assertEquals(20, metrics.getRate(5), 1e-9);
+        assertEquals(20, metrics.getRate(15), 1e-9);
+    }
+
+    @Test
+    public void testLoadReport() {
+        AtomicLong time = new AtomicLong(1_000_000L);
+        UsageMetrics metrics = new UsageMetrics(time::get);
+        for (int i = 0; i < 99; i++) {
+            metrics.recordLatency(100_000L);
+        }
+        metrics.recordLatency(50_000_000L);
+        // 100 microseconds fall into the bucket up to 128
+        assertEquals(128, metrics.getLatencyPercentile(0.99));
+        assertTrue(metrics.getLatencyPercentile(1) >= 50_000);
+
+        LoadSummary summary = new LoadSummary(42, 1.5, 1000, 65536, 128);
+        String message = summary.toMessage("127.0.0.1", 5000);
+        assertEquals("load_report 127.0.0.1 5000 42 1.50 1000 65536 128", message);
+        assertEquals(summary, LoadSummary.parse(message.split("\\s+")));
+        assertNull(LoadSummary.parse(new String[]{"load_report", "127.0.0.1", "5000", "x"}));
+    }
+
+    @Test
+    public void testRangeCalculationByAccesses() {
+        FrequencyTable frequencyTable = new FrequencyTable(3, 50);
+        frequencyTable.createBuckets("10000000000000000000000000000000", "40000000000000000000000000000000");
+        HashKey coldKey = HashKey.fromHex("38000000000000000000000000000000");
+        for (int i = 0; i < 10; i++) {
+            frequencyTable.addToTable("key" + i, HashKey.fromHex("3" + i + "000000000000000000000000000000"));
+        }
+        HashKey hotKey = HashKey.fromHex("18000000000000000000000000000000");
+        frequencyTable.addToTable("hot", hotKey);
+        for (int i = 0; i < 6; i++) {
+            frequencyTable.recordAccess(hotKey);
+        }
+        for (int i = 0; i < 4; i++) {
+            frequencyTable.recordAccess(coldKey);
+        }
+        assertTrue(frequencyTable.estimateAccesses(hotKey) >= 6);
+        // the hot key carries most of the accesses, so the range is split right after it
+        String[] calculatedRanges = frequencyTable.calculateOffloadKeyRange(true);
+        assertEquals("10000000000000000000000000000000", calculatedRanges[0]);
+        assertEquals("18000000000000000000000000000000", calculatedRanges[1]);
+        // the remaining range is divided into new buckets that hold the remaining keys
+        List<Bucket> buckets = frequencyTable.getBuckets();
+        assertEquals("18000000000000000000000000000000", buckets.get(0).getStartRange());
+        assertEquals("40000000000000000000000000000000", buckets.get(buckets.size() - 1).getEndRange());
+        assertEquals(10, frequencyTable.getTotalBucketSize());
+    }
+
+    @Test
+    public void testBucketLookup() {
+        FrequencyTable frequencyTable = new FrequencyTable(5, 50);
+        frequencyTable.createBuckets("F0000000000000000000000000000000", "40000000000000000000000000000000");
+        frequencyTable.addToTable(HashKey.fromHex("F8000000000000000000000000000000"));
+        frequencyTable.addToTable(HashKey.fromHex("00000000000000000000000000000000"));
+        frequencyTable.addToTable(HashKey.fromHex("10000000000000000000000000000000"));
+        frequencyTable.addToTable(HashKey.fromHex("3FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF"));
+        // outside the range of the table
+        frequencyTable.addToTable(HashKey.fromHex("F0000000000000000000000000000000"));
+        frequencyTable.addToTable(HashKey.fromHex("50000000000000000000000000000000"));
+        List<Bucket> buckets = frequencyTable.getBuckets();
+        assertEquals(2, buckets.get(0).size());
+        assertEquals(1, buckets.get(1).size());
+        assertEquals(0, buckets.get(2).size());
+        assertEquals(1, buckets.get(4).size());
+
+        FrequencyTable wholeRing = new FrequencyTable(4, 50);
+        wholeRing.createBuckets("80000000000000000000000000000000", "80000000000000000000000000000000");
+        wholeRing.addToTable(HashKey.fromHex("80000000000000000000000000000000"));
+        wholeRing.addToTable(HashKey.fromHex("80000000000000000000000000000001"));
+        assertEquals(1, wholeRing.getBuckets().get(0).size());
+        assertEquals(1, wholeRing.getBuckets().get(3).size());
+    }
+
+    @Test
+    public void testQuantileSummary() {
+        QuantileSummary summary = new QuantileSummary(16);
+        // 1000 keys with evenly spread positions, the summary can only keep 16 of them
+        for (int i = 1; i <= 1000; i++) {
+            summary.add(new HashKey(i, 0), 1);
+        }
+        assertEquals(1000, summary.getTotal(), 0.001);
+        long median = summary.quantile(0.5).getHigh();
+        assertTrue(median > 400 && median < 600, "median was " + median);
+        // a skewed load moves the split points towards the hot key
+        summary.add(new HashKey(900, 0), 3000);
+        assertEquals(900, summary.quantile(0.9).getHigh());
+        assertTrue(summary.quantile(0.1).getHigh() < 500);
+
+        // the keys after the split are known up to the weight of a centroid
+        summary.retainAfter(new HashKey(900, 0));
+        assertEquals(100, summary.getTotal(), 1000.0 / 16);
+        assertTrue(summary.quantile(1).getHigh() <= 100);
+    }
+}